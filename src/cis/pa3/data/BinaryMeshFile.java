@@ -0,0 +1,106 @@
+package cis.pa3.data;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * A compact binary mesh file. After a 16 byte header (magic number, version,
+ * vertex count and triangle count) come the vertex coordinates as doubles
+ * and then the triangle vertex indices as ints, all little endian, which is
+ * exactly the layout of a PackedMesh. Reading maps the file and copies both
+ * arrays out in bulk, without any parsing.
+ *
+ * Run as a program to convert a .sur file: BinaryMeshFile in.sur out.msh
+ */
+public class BinaryMeshFile {
+	public static final String EXTENSION = ".msh";
+	private static final int FILE_MAGIC = 0x5041334D;
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int DIM = 3;
+
+	/**
+	 * Writes a packed mesh to a binary file
+	 * @param mesh the mesh to write
+	 * @param path the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(PackedMesh mesh, String path) throws IOException {
+		double[] vertices = mesh.getVertices();
+		int[] indices = mesh.getIndices();
+		long size = HEADER_SIZE + 8L*vertices.length + 4L*indices.length;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The mesh is too large for a mesh file: " + size + " bytes");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(mesh.getVertexCount()).putInt(mesh.getTriangleCount());
+		buffer.asDoubleBuffer().put(vertices);
+		buffer.position(HEADER_SIZE + 8*vertices.length);
+		buffer.asIntBuffer().put(indices);
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(buffer.array());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a packed mesh from a binary file through a memory mapping
+	 * @param path the file to read
+	 * @return the mesh
+	 * @throws IOException if the file cannot be read or is not a mesh file
+	 */
+	public static PackedMesh read(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException(path + " is not a mesh file");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+				throw new IOException(path + " is not a mesh file");
+			}
+			int numVertices = buffer.getInt();
+			int numTriangles = buffer.getInt();
+			if (numVertices < 0 || numTriangles < 0
+					|| channel.size() != HEADER_SIZE + 8L*DIM*numVertices + 4L*DIM*numTriangles) {
+				throw new IOException(path + " is truncated");
+			}
+			// a mapping, and so a file that was written in one, holds at most this many bytes
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large for a mesh file");
+			}
+			double[] vertices = new double[DIM*numVertices];
+			int[] indices = new int[DIM*numTriangles];
+			buffer.asDoubleBuffer().get(vertices);
+			buffer.position(HEADER_SIZE + 8*vertices.length);
+			buffer.asIntBuffer().get(indices);
+			try {
+				return new PackedMesh(vertices, indices);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(path + ": " + e.getMessage());
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: BinaryMeshFile <input.sur> <output" + EXTENSION + ">");
+			return;
+		}
+		DataFileParser parser = new DataFileParser();
+		write(new PackedMesh(parser.parseMeshData(args[0])), args[1]);
+	}
+}
@@ -1,12 +1,15 @@
 package cis.pa3.data;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
 
 /**
  * A utility class that parses each of the different kinds of data files.
@@ -102,10 +105,45 @@ public class DataFileParser {
 		this.parseDataFile(data, path, "\\s+");
 		return data;
 	}
+	/**
+	 * Opens a binary mesh file written by BinaryMeshFile through a memory mapping
+	 * @param path the binary mesh file
+	 * @return the packed mesh
+	 * @throws IOException if the file cannot be read or is not a mesh file
+	 */
+	public PackedMesh parseBinaryMesh(String path) throws IOException {
+		return BinaryMeshFile.read(path);
+	}
+	/**
+	 * Reads a mesh from the binary copy of a .sur file if one that is at least
+	 * as new sits next to it, and from the .sur file itself otherwise
+	 * @param path the .sur file
+	 * @return the mesh
+	 */
+	public Mesh parseMesh(String path) {
+		File text = new File(path);
+		File binary = new File(path.replaceFirst("\\.sur$", "") + BinaryMeshFile.EXTENSION);
+		if (binary.isFile() && binary.lastModified() >= text.lastModified()) {
+			try {
+				return new Mesh(this.parseBinaryMesh(binary.getPath()));
+			} catch (IOException e) {
+				System.err.println("Reading " + path + " instead: " + e.getMessage());
+			}
+		}
+		return new Mesh(this.parseMeshData(path));
+	}
 	
 	public SampleReadingsData parseSampleReadingsData(String readingsPath, String bodyAPath, String bodyBPath) {
-		BodyData bodyDataA = this.parseBodyData(bodyAPath);
-		BodyData bodyDataB = this.parseBodyData(bodyBPath);
+		return this.parseSampleReadingsData(readingsPath, this.parseBodyData(bodyAPath), this.parseBodyData(bodyBPath));
+	}
+	/**
+	 * Parses sample readings for bodies that have already been read
+	 * @param readingsPath the sample readings file
+	 * @param bodyDataA the body whose tip is tracked
+	 * @param bodyDataB the body rigidly attached to the bone
+	 * @return the sample readings
+	 */
+	public SampleReadingsData parseSampleReadingsData(String readingsPath, BodyData bodyDataA, BodyData bodyDataB) {
 		SampleReadingsData readingsData = new SampleReadingsData(bodyDataA, bodyDataB);
 		this.parseDataFile(readingsData, readingsPath, "[, \t]");
 		return readingsData;
@@ -0,0 +1,277 @@
+package cis.pa3.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A disk cache of registration results, addressed by a hash of everything
+ * the result depends on: the mesh, the bodies, the sample readings and the
+ * registration parameters. Each entry is one file named by its key, holding
+ * the final registration, the d_k points and the closest points, as little
+ * endian doubles. Reading an entry marks it as recently used, and once the
+ * cache holds more entries or bytes than allowed the least recently used
+ * entries are deleted.
+ */
+public class RegistrationCache {
+	public static final String EXTENSION = ".reg";
+	/** the default limits on the number of entries and their total size */
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+	private static final int FILE_MAGIC = 0x50413352;
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int DIM = 3, FRAME_SIZE = 12;
+	private final File directory;
+	private final int maxEntries;
+	private final long maxBytes;
+
+	/**
+	 * A cached registration result
+	 */
+	public static class Entry {
+		private final double[] frame, dk, ck;
+		private final int iterations;
+		/**
+		 * @param frame the registration: its rotation matrix by rows, then its translation
+		 * @param dk the d_k points, three coordinates each
+		 * @param ck the closest points, three coordinates each
+		 * @param iterations the number of iterations the registration took
+		 */
+		public Entry(double[] frame, double[] dk, double[] ck, int iterations) {
+			if (frame.length != FRAME_SIZE || dk.length != ck.length || dk.length % DIM != 0) {
+				throw new IllegalArgumentException("Entry arrays do not match");
+			}
+			this.frame = frame;
+			this.dk = dk;
+			this.ck = ck;
+			this.iterations = iterations;
+		}
+		public double[] getFrame() {
+			return this.frame;
+		}
+		public double[] getDk() {
+			return this.dk;
+		}
+		public double[] getCk() {
+			return this.ck;
+		}
+		public int getIterations() {
+			return this.iterations;
+		}
+	}
+
+	/**
+	 * Builds a cache key as a SHA-256 hash of the values added to it, in order
+	 */
+	public static class KeyBuilder {
+		private final MessageDigest digest;
+		private final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		public KeyBuilder() {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+		public KeyBuilder add(int value) {
+			this.buffer.clear();
+			this.digest.update(this.buffer.putInt(value).array(), 0, 4);
+			return this;
+		}
+		public KeyBuilder add(double value) {
+			this.buffer.clear();
+			this.digest.update(this.buffer.putDouble(value).array(), 0, 8);
+			return this;
+		}
+		public KeyBuilder add(String value) {
+			byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+			this.add(bytes.length);
+			this.digest.update(bytes);
+			return this;
+		}
+		public KeyBuilder add(double[] values) {
+			this.add(values.length);
+			for (double value : values) {
+				this.add(value);
+			}
+			return this;
+		}
+		public KeyBuilder add(int[] values) {
+			this.add(values.length);
+			for (int value : values) {
+				this.add(value);
+			}
+			return this;
+		}
+		/**
+		 * Finishes the key; the builder cannot be used afterwards
+		 * @return the key as 64 hexadecimal digits
+		 */
+		public String build() {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : this.digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}
+	}
+
+	/**
+	 * Opens a cache with the default limits, creating its directory if needed
+	 * @param directory the directory the entries are kept in
+	 */
+	public RegistrationCache(String directory) {
+		this(directory, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+	/**
+	 * Opens a cache, creating its directory if needed
+	 * @param directory the directory the entries are kept in
+	 * @param maxEntries the most entries kept
+	 * @param maxBytes the most bytes kept over all entries
+	 */
+	public RegistrationCache(String directory, int maxEntries, long maxBytes) {
+		if (maxEntries < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("A cache must be able to hold an entry");
+		}
+		this.directory = new File(directory);
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.directory.mkdirs();
+	}
+
+	/**
+	 * Looks up an entry and marks it as recently used
+	 * @param key the key from a KeyBuilder
+	 * @return the entry, or null if it is not cached or cannot be read
+	 */
+	public synchronized Entry get(String key) {
+		File file = this.fileOf(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			Entry entry = read(file);
+			file.setLastModified(System.currentTimeMillis());
+			return entry;
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		}
+	}
+	/**
+	 * Stores an entry, then evicts the least recently used entries over the limits
+	 * @param key the key from a KeyBuilder
+	 * @param entry the result to store
+	 * @throws IOException if the entry cannot be written
+	 */
+	public synchronized void put(String key, Entry entry) throws IOException {
+		int n = entry.dk.length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8*(FRAME_SIZE + 2*n))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(n/DIM).putInt(entry.iterations);
+		buffer.asDoubleBuffer().put(entry.frame).put(entry.dk).put(entry.ck);
+		// write to a temporary file first so that a reader never sees half an entry
+		File temporary = new File(this.directory, key + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			out.write(buffer.array());
+		} finally {
+			out.close();
+		}
+		File file = this.fileOf(key);
+		file.delete();
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Cannot move " + temporary + " to " + file);
+		}
+		this.evict();
+	}
+	/**
+	 * Returns the number of entries in the cache
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return this.entries().length;
+	}
+
+	private File fileOf(String key) {
+		return new File(this.directory, key + EXTENSION);
+	}
+	private File[] entries() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int size = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(EXTENSION)) {
+				files[size++] = file;
+			}
+		}
+		return Arrays.copyOf(files, size);
+	}
+	/**
+	 * Deletes the least recently used entries until the cache is within its limits
+	 */
+	private void evict() {
+		File[] files = this.entries();
+		final long[] used = new long[files.length];
+		long total = 0;
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			used[i] = files[i].lastModified();
+			total += files[i].length();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(used[a], used[b]);
+			}
+		});
+		int count = files.length;
+		for (int i = 0; i < order.length && (count > this.maxEntries || total > this.maxBytes); i++) {
+			File file = files[order[i]];
+			long length = file.length();
+			if (file.delete()) {
+				count--;
+				total -= length;
+			}
+		}
+	}
+	private static Entry read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < HEADER_SIZE) {
+				throw new IOException(file + " is not a registration cache entry");
+			}
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+				throw new IOException(file + " is not a registration cache entry");
+			}
+			int numPoints = buffer.getInt();
+			int iterations = buffer.getInt();
+			if (numPoints < 0 || bytes.length != HEADER_SIZE + 8L*(FRAME_SIZE + 2*DIM*(long) numPoints)) {
+				throw new IOException(file + " is truncated");
+			}
+			double[] frame = new double[FRAME_SIZE];
+			double[] dk = new double[DIM*numPoints];
+			double[] ck = new double[DIM*numPoints];
+			buffer.asDoubleBuffer().get(frame).get(dk).get(ck);
+			return new Entry(frame, dk, ck, iterations);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package cis.pa3.drivers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cis.pa3.geometry.MeshIndexType;
+
+/**
+ * Runs the matching (PA3) and ICP (PA4) drivers on all of their datasets at
+ * once. The bodies, the mesh and its index are loaded a single time and
+ * shared; the datasets then run on a fixed pool of one thread per core, and
+ * each one writes its output files as soon as it finishes.
+ *
+ * Run as a program, optionally with the number of threads as the argument.
+ */
+public class BatchDriver {
+	private static final char[] MATCHING_DEBUG = {'A', 'B', 'C', 'D', 'E', 'F'};
+	private static final char[] MATCHING_UNKNOWN = {'G', 'H', 'J'};
+	private static final char[] ICP_DEBUG = {'A', 'B', 'C', 'D', 'E', 'F'};
+	private static final char[] ICP_UNKNOWN = {'G', 'H', 'J', 'K'};
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		long start = System.nanoTime();
+		RegistrationInputs icpInputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		RegistrationInputs matchingInputs = new RegistrationInputs("Problem3", icpInputs);
+		// one engine each, shared by every task; each thread gets its own buffers from it
+		RegistrationEngine icpEngine = new RegistrationEngine(icpInputs);
+		RegistrationEngine matchingEngine = new RegistrationEngine(matchingInputs);
+		System.out.printf("Loaded shared inputs in %.1f ms\n", (System.nanoTime() - start)/1e6);
+
+		List<Callable<String>> tasks = new ArrayList<>();
+		for (char letter : MATCHING_DEBUG) {
+			tasks.add(matchingTask(letter, true, matchingEngine));
+		}
+		for (char letter : MATCHING_UNKNOWN) {
+			tasks.add(matchingTask(letter, false, matchingEngine));
+		}
+		for (char letter : ICP_DEBUG) {
+			tasks.add(icpTask(letter, true, icpEngine));
+		}
+		for (char letter : ICP_UNKNOWN) {
+			tasks.add(icpTask(letter, false, icpEngine));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<String> completion = new ExecutorCompletionService<>(executor);
+			for (Callable<String> task : tasks) {
+				completion.submit(task);
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					System.out.println(completion.take().get());
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		System.out.printf("Ran %d datasets on %d threads in %.1f ms\n", tasks.size(), threads,
+				(System.nanoTime() - start)/1e6);
+	}
+
+	/**
+	 * Runs the matching driver on one dataset and writes its output
+	 */
+	private static Callable<String> matchingTask(final char letter, final boolean isDebug,
+			final RegistrationEngine registrations) {
+		return new Callable<String>() {
+			@Override
+			public String call() {
+				long start = System.nanoTime();
+				MatchingDriver driver = new MatchingDriver(letter, isDebug, registrations);
+				if (isDebug) {
+					// keep the comparison table in one piece on the console
+					synchronized (System.out) {
+						driver.compareToOutput();
+					}
+				}
+				driver.createOutput();
+				return String.format("Finished PA3-%c in %.1f ms", letter, (System.nanoTime() - start)/1e6);
+			}
+		};
+	}
+	/**
+	 * Runs the ICP driver on one dataset and writes its output and, for the
+	 * debug datasets, its comparison to the expected output
+	 */
+	private static Callable<String> icpTask(final char letter, final boolean isDebug,
+			final RegistrationEngine registrations) {
+		return new Callable<String>() {
+			@Override
+			public String call() throws FileNotFoundException {
+				long start = System.nanoTime();
+				ICPDriver driver = new ICPDriver(letter, isDebug, registrations, new ICPDriver.Options());
+				driver.createOutput();
+				if (isDebug) {
+					PrintWriter writer = new PrintWriter("debug" + File.separator + "PA4-" + letter + "-Output-comparison.txt");
+					try {
+						driver.compareToOutput(writer);
+					} finally {
+						writer.close();
+					}
+				}
+				return String.format("Finished PA4-%c in %.1f ms, %d iterations", letter,
+						(System.nanoTime() - start)/1e6, driver.getIterationCount());
+			}
+		};
+	}
+}
@@ -2,45 +2,96 @@ package cis.pa3.drivers;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import Jama.Matrix;
 import cis.pa3.data.BodyData;
 import cis.pa3.data.DataFileParser;
-import cis.pa3.data.MeshData;
 import cis.pa3.data.Output3Data;
+import cis.pa3.data.RegistrationCache;
 import cis.pa3.data.SampleReadingsData;
-import cis.pa3.geometry.Utilities;
+import cis.pa3.geometry.MeshIndexType;
 import cis.pa3.tools.ColumnVector;
 import cis.pa3.tools.Frame;
-import cis.pa3.tools.HornRegistration;
-import cis.pa3.tools.Math3D;
+import cis.pa3.tools.InitialPose;
 import cis.pa3.tools.MatrixHelper;
 import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
 import cis.pa3.tools.PointCloud;
 
 public class ICPDriver {
 	private static final int DIM = 3;
-	// maximum iteration number
-	private static final int MAX_ITER = 1000;
-	private static final double THRESHOLD_STRENGTH = 0.1, MIN_THRESHOLD = 0.01;
+	// part of every cache key; change it whenever the results of the iteration change
+	private static final String CACHE_VERSION = "ICPDriver 3";
+	/** where main keeps its cache of results */
+	public static final String CACHE_DIRECTORY = "cache";
+	// print every iteration to the console, off unless run with -Dcis.pa3.verbose=true
+	private static final boolean VERBOSE = Boolean.getBoolean("cis.pa3.verbose");
 	private BodyData bodyA, bodyB;
 	private SampleReadingsData sampleReadings;
 	private Mesh mesh;
-	private List<ColumnVector> DkVectors, SkVectors, CkVectors, errorvecs, A, B;
+	private RegistrationInputs inputs;
+	// wall times in milliseconds
+	private double alignmentTime, iterationTime;
+	private boolean cached;
+	// registers the dataset, shared with the other datasets and threads; the lists below are filled from its result
+	private final RegistrationEngine registrations;
+	private RegistrationResult result;
+	private List<ColumnVector> DkVectors, SkVectors, CkVectors, errorvecs;
 	private  List<Double> error;
 	private Frame Freg;
 	private char letter;
 	private String datasetType;
 	
+	/**
+	 * Where a driver's iteration starts and whether it may take its result
+	 * from a cache; the method and its settings belong to the engine. Every
+	 * setting starts at the identity without a cache, and each setter returns
+	 * the options so that they can be chained
+	 */
+	public static class Options {
+		private RegistrationCache cache = null;
+		private InitialPose start = InitialPose.IDENTITY;
+		/**
+		 * @param cache the cache of results, or null to always register; a
+		 *        result taken from the cache has an empty iteration trace
+		 */
+		public Options cache(RegistrationCache cache) {
+			this.cache = cache;
+			return this;
+		}
+		/**
+		 * @param start how to choose the registration the iteration starts from
+		 */
+		public Options start(InitialPose start) {
+			this.start = start;
+			return this;
+		}
+	}
+
 	public ICPDriver(char letter, boolean isDebug) {
+		this(letter, isDebug, new RegistrationEngine(new RegistrationInputs("Problem4", MeshIndexType.BVH, 1)),
+				new Options());
+	}
+	/**
+	 * Runs the driver on one dataset with an engine whose inputs are already
+	 * loaded, taking the result from the cache in the options if the same
+	 * inputs were registered by the same method and options before
+	 * @param letter the dataset letter
+	 * @param isDebug whether the dataset is a debug or an unknown dataset
+	 * @param registrations the engine on the Problem4 bodies, the mesh and its level indices
+	 * @param options where to start and which cache to use
+	 */
+	public ICPDriver(char letter, boolean isDebug, RegistrationEngine registrations, Options options) {
+		RegistrationInputs inputs = registrations.getInputs();
+		this.registrations = registrations;
 		this.letter = letter;
 		DataFileParser parser = new DataFileParser();
-		String bodyAPath = "data" + File.separator + "Problem4-BodyA.txt";
-		String bodyBPath = "data" + File.separator + "Problem4-BodyB.txt";
-		String meshpath = "data" + File.separator + "Problem3Mesh.sur";
 		String sampleReadingsPath;
 		if (isDebug) {
 			this.datasetType = "Debug";
@@ -50,110 +101,181 @@ public class ICPDriver {
 		}
 		sampleReadingsPath = "data" + File.separator + "PA4-" + letter + "-" + this.datasetType + "-SampleReadingsTest.txt";
 
-		this.bodyA = parser.parseBodyData(bodyAPath);
-		this.bodyB = parser.parseBodyData(bodyBPath);
-		this.sampleReadings = parser.parseSampleReadingsData(sampleReadingsPath, bodyAPath, bodyBPath);
-		MeshData meshA = parser.parseMeshData(meshpath);
-		this.mesh = new Mesh(meshA);
+		this.bodyA = inputs.getBodyA();
+		this.bodyB = inputs.getBodyB();
+		this.sampleReadings = parser.parseSampleReadingsData(sampleReadingsPath, this.bodyA, this.bodyB);
+		this.mesh = inputs.getMesh();
+		this.inputs = inputs;
 		this.Freg = new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM));
-		this.initialize();
-		this.iterate();
-	}
-	private void initialize() {
-		this.calcDkVectors();
-		this.calcSkVectors();
-		this.calcCkVectors();
-		this.calcErrors();
-	}
-	private void iterate() {
-		List<Double> avgerrors = new ArrayList<>();
-		double threshold = THRESHOLD_STRENGTH*Math3D.average(this.error);
-		System.out.println("Threshold:");
-		System.out.println(threshold);
-		avgerrors.add(Math3D.average(this.error));
-		int targetratiocount = 0;
-		System.out.printf("Iterating Dataset %c:\n", this.letter);
-		for (int i = 0; i < MAX_ITER; i++) {
-			this.setAB(threshold);
-			Matrix AM = ColumnVector.ColumnVectorListToMatrix(this.A);
-			Matrix BM = ColumnVector.ColumnVectorListToMatrix(this.B);
-			HornRegistration hr = new HornRegistration(AM, BM, true);
-			this.Freg = new Frame(hr.rotationMatrix(), hr.transVector());
-			this.calcSkVectors();
-			this.calcCkVectors();
-			this.calcErrors();
-			avgerrors.add(Math3D.average(this.error));
-			double curravgerror = avgerrors.get(avgerrors.size() - 1);
-			double prevavgerror = avgerrors.get(avgerrors.size() - 2);
-			double errorratio = curravgerror/prevavgerror;
-			System.out.println("error:");
-			System.out.println(curravgerror);
-			System.out.println("ratio:");
-			System.out.println(errorratio);
-			if (errorratio > 0.99 && errorratio <= 1.0 && curravgerror < Math.max(threshold, MIN_THRESHOLD)) {
-				targetratiocount++;
-				if (targetratiocount == 5) {
-					break;
-				}
-			} else {
-				targetratiocount = 0;
+		String key = null;
+		if (options.cache != null) {
+			key = this.cacheKey(options.start);
+			RegistrationCache.Entry entry = options.cache.get(key);
+			if (entry != null) {
+				this.restore(entry);
+				return;
 			}
 		}
-	}
-	private void setAB(double threshold) {
-		double selectionthreshold = 2*threshold/THRESHOLD_STRENGTH;
-		A = new ArrayList<>();
-		B = new ArrayList<>();
-		for (int i = 0; i < this.DkVectors.size(); i++) {
-			if (this.error.get(i) < selectionthreshold) {
-				this.A.add(this.DkVectors.get(i));
-				this.B.add(this.CkVectors.get(i));
+		long begin = System.nanoTime();
+		this.result = this.registrations.register(this.sampleReadings, options.start, Long.MAX_VALUE,
+				TimeUnit.NANOSECONDS, null, VERBOSE ? this.printer() : null);
+		this.Freg = this.result.getRegistration();
+		this.iterationTime = this.result.getTime();
+		this.alignmentTime = (System.nanoTime() - begin)/1e6 - this.iterationTime;
+		this.collect();
+		if (VERBOSE) {
+			System.out.printf("Dataset %c: %d iterations in %.1f ms\n", this.letter, this.getIterationCount(), this.iterationTime);
+		}
+		if (options.cache != null) {
+			try {
+				options.cache.put(key, this.toCacheEntry());
+			} catch (IOException e) {
+				System.err.println("Cannot cache dataset " + this.letter + ": " + e.getMessage());
 			}
 		}
 	}
-	private void calcDkVectors() {	
-		PointCloud bodyACloud = this.bodyA.getMarkers();
-		PointCloud bodyBCloud = this.bodyB.getMarkers();
-		ColumnVector Atip = this.bodyA.getTipCoordinates();
-		this.DkVectors = new ArrayList<>();
-
-		for (int i = 0; i < sampleReadings.getNsamps(); i++) {
-			PointCloud trackerACloud = this.sampleReadings.getAMarkerCloud().get(i);
-			PointCloud trackerBCloud = this.sampleReadings.getBMarkerCloud().get(i);
-			HornRegistration Areg = new HornRegistration(bodyACloud.asMatrix(), trackerACloud.asMatrix(), true);
-			HornRegistration Breg = new HornRegistration(bodyBCloud.asMatrix(), trackerBCloud.asMatrix(), true);
-			Frame FAk = Areg.getFrame();
-			Frame FBk = Breg.getFrame();			
-			this.DkVectors.add(FBk.inverse().combineFrames(FAk).timesVector(Atip));
+	/**
+	 * Hashes everything the registration depends on
+	 */
+	private String cacheKey(InitialPose start) {
+		RegistrationCache.KeyBuilder key = new RegistrationCache.KeyBuilder();
+		key.add(CACHE_VERSION);
+		PackedMesh packed = this.mesh.getPacked();
+		key.add(packed.getVertices()).add(packed.getIndices());
+		key.add(this.inputs.getLevelCount()).add(this.inputs.getIndex(0).getClass().getName());
+		for (BodyData body : new BodyData[] {this.bodyA, this.bodyB}) {
+			addPoints(key, body.getMarkers());
+			addPoints(key, new PointCloud(Arrays.asList(body.getTipCoordinates())));
+		}
+		for (int i = 0; i < this.sampleReadings.getNsamps(); i++) {
+			addPoints(key, this.sampleReadings.getAMarkerCloud().get(i));
+			addPoints(key, this.sampleReadings.getBMarkerCloud().get(i));
 		}
+		key.add(this.registrations.getMethod().name()).add(this.registrations.getKeepFraction())
+				.add(this.registrations.getAndersonWindow()).add(start.name());
+		return key.build();
 	}
-	
-	private void calcSkVectors() {
-		this.SkVectors = new ArrayList<>();
-		for (int i = 0; i < this.DkVectors.size(); i++) {
-			ColumnVector trans = this.Freg.timesVector(this.DkVectors.get(i));
-			this.SkVectors.add(trans);
+	private static void addPoints(RegistrationCache.KeyBuilder key, PointCloud points) {
+		key.add(points.getSize());
+		for (int i = 0; i < points.getSize(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				key.add(points.get(i).get(k));
+			}
 		}
 	}
-	private void calcCkVectors() {
-		this.CkVectors = new ArrayList<>();
-		for (int i = 0; i < this.SkVectors.size(); i++) {
-			ColumnVector closest = Utilities.findClosestPointOnMesh(this.mesh, this.SkVectors.get(i));
-			this.CkVectors.add(this.SkVectors.get(i).minus(closest));
+	private RegistrationCache.Entry toCacheEntry() {
+		double[] frame = new double[4*DIM];
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				frame[DIM*r + c] = this.Freg.getRotationMatrix().get(r, c);
+			}
+			frame[DIM*DIM + r] = this.Freg.getTranslationVector().get(r);
 		}
+		return new RegistrationCache.Entry(frame, RegistrationEngine.flatten(this.DkVectors),
+				RegistrationEngine.flatten(this.CkVectors), this.getIterationCount());
 	}
-	private void calcErrors() {
-		this.error = new ArrayList<>();
+	/**
+	 * Takes the registration, d_k and closest points from a cache entry and
+	 * recomputes the s_k points and errors from them
+	 */
+	private void restore(RegistrationCache.Entry entry) {
+		double[] frame = entry.getFrame();
+		Matrix R = new Matrix(DIM, DIM);
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				R.set(r, c, frame[DIM*r + c]);
+			}
+		}
+		this.Freg = new Frame(R, new ColumnVector(Arrays.copyOfRange(frame, DIM*DIM, 4*DIM)));
+		this.cached = true;
+		this.result = this.registrations.restore(entry.getDk(), entry.getCk(), this.Freg, entry.getIterations());
+		this.collect();
+	}
+	/**
+	 * Prints every iteration to the console, and the threshold before the first
+	 */
+	private IterationListener printer() {
+		return new IterationListener() {
+			private int level = ICPDriver.this.inputs.getLevelCount() - 1;
+			@Override
+			public void iterationDone(ICPEngine engine) {
+				if (engine.getIterationCount() == 1) {
+					System.out.printf("Iterating Dataset %c, threshold %s\n", ICPDriver.this.letter, engine.getThreshold());
+				}
+				IterationTrace trace = engine.getTrace();
+				System.out.println(trace.format(trace.size() - 1));
+				if (engine.getLevel() != this.level) {
+					this.level = engine.getLevel();
+					System.out.printf("Refining to mesh level %d\n", this.level);
+				}
+			}
+		};
+	}
+	/**
+	 * Fills the lists of d_k, s_k and c_k points and errors from the result
+	 */
+	private void collect() {
+		this.DkVectors = this.result.getDkVectors();
+		this.SkVectors = this.result.getSkVectors();
+		this.CkVectors = this.result.getCkVectors();
+		this.error = this.result.getErrors();
 		this.errorvecs = new ArrayList<>();
-		for (int i = 0; i < this.SkVectors.size(); i++) {
-			ColumnVector errorvector = this.SkVectors.get(i).minus(this.CkVectors.get(i));
-			this.errorvecs.add(errorvector);
-			this.error.add(errorvector.magnitude());
-		}		
+		for (int i = 0; i < this.result.getCount(); i++) {
+			double[] e = new double[DIM];
+			for (int k = 0; k < DIM; k++) {
+				e[k] = this.SkVectors.get(i).get(k) - this.CkVectors.get(i).get(k);
+			}
+			this.errorvecs.add(new ColumnVector(e));
+		}
 	}
+	
 	public List<ColumnVector> getErrorVectors() {
 		return this.errorvecs;
 	}
+	/**
+	 * Returns the number of registration updates made by the iteration
+	 * @return the number of iterations
+	 */
+	public int getIterationCount() {
+		return this.result.getIterationCount();
+	}
+	/**
+	 * Returns how often an accelerated update raised the error and was replaced
+	 * by the plain one
+	 * @return the number of rejected accelerated updates
+	 */
+	public int getRejectedAccelerationCount() {
+		return this.result.getRejectedAccelerationCount();
+	}
+	/**
+	 * Returns whether the result came from the cache instead of iterating
+	 * @return true for a cached result
+	 */
+	public boolean isCached() {
+		return this.cached;
+	}
+	/**
+	 * Returns the wall time spent on the starting registration and closest
+	 * points before iterating, including any global alignment
+	 * @return the time in milliseconds
+	 */
+	public double getAlignmentTime() {
+		return this.alignmentTime;
+	}
+	/**
+	 * Returns the wall time spent iterating, after the initial correspondences
+	 * @return the time in milliseconds
+	 */
+	public double getIterationTime() {
+		return this.iterationTime;
+	}
+	/**
+	 * Returns the record of the iterations, which can be written out as CSV or JSON
+	 * @return the iteration trace
+	 */
+	public IterationTrace getTrace() {
+		return this.result.getTrace();
+	}
 	public List<Double> getErrors() {
 		return this.error;
 	}
@@ -228,8 +350,10 @@ public class ICPDriver {
 	
 	public static void main(String[] args) throws FileNotFoundException {
 		ICPDriver driver;
+		RegistrationEngine registrations = new RegistrationEngine(new RegistrationInputs("Problem4", MeshIndexType.BVH, 1));
+		RegistrationCache cache = new RegistrationCache(CACHE_DIRECTORY);
 		for (char letter = 'A'; letter <= 'F'; letter++) {
-			driver = new ICPDriver(letter, true);						
+			driver = new ICPDriver(letter, true, registrations, new Options().cache(cache));						
 			driver.createOutput();
 			PrintWriter writer = new PrintWriter("debug" + File.separator + "PA4-" + letter + "-Output-comparison.txt");
 			driver.compareToOutput(writer);
@@ -239,7 +363,7 @@ public class ICPDriver {
 			if (letter == 'I') {
 				continue;
 			}
-			driver = new ICPDriver(letter, false);
+			driver = new ICPDriver(letter, false, registrations, new Options().cache(cache));
 			driver.createOutput();
 			
 		}
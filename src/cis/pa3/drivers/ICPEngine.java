@@ -0,0 +1,672 @@
+package cis.pa3.drivers;
+
+import java.util.concurrent.TimeUnit;
+
+import Jama.Matrix;
+import Jama.util.Maths;
+import cis.pa3.geometry.ClosestPointBatch;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.tools.AndersonAccelerator;
+import cis.pa3.tools.CancellationToken;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornSolver;
+import cis.pa3.tools.Math3D;
+import cis.pa3.tools.PointToPlaneRegistration;
+import cis.pa3.tools.RegistrationMethod;
+
+/**
+ * The ICP iteration of ICPDriver, one step at a time. The d_k, s_k and c_k
+ * points, the errors and the pairs an update registers are kept in primitive
+ * arrays that are allocated once for the number of samples and reused by every
+ * iteration, as are the closest point batch and the registration's rotation
+ * and translation. A plain point-to-point step solves into the reused buffers
+ * of a HornSolver and builds no frame, so it allocates next to nothing; the
+ * closest point queries use per-thread scratch space in the mesh index. The
+ * frame of the registration is built only when asked for, and point-to-plane
+ * and accelerated steps still allocate the matrices of their updates.
+ *
+ * The iteration either runs step by step or in one call of run, which can
+ * stop early at a time budget or a cancellation token and ends at the best
+ * registration found so far.
+ *
+ * An engine registers one set of points at a time and may be started again on
+ * another set; it is not safe for use by several threads at once.
+ */
+public class ICPEngine {
+	private static final int DIM = 3;
+	/** the most iterations of one registration */
+	public static final int MAX_ITER = 1000;
+	private static final double THRESHOLD_STRENGTH = 0.1, MIN_THRESHOLD = 0.01;
+	// error ratio above which a coarse mesh level is left for the next finer one
+	private static final double LEVEL_RATIO = 0.99;
+	// point-to-plane steps smaller than this count as a leveled off error,
+	// since the error then only jitters in its last digits
+	private static final double STALL_STEP = 1e-9;
+	// trimmed ICP keeps at least enough pairs for either registration
+	private static final int MIN_PAIRS = 6;
+	// Horn's method needs at least four pairs
+	private static final int HORN_PAIRS = 4;
+	// a frame is accelerated as its rotation vector and translation
+	private static final int FRAME_PARAMETERS = 6;
+	// the number of leveled off iterations in a row that end the iteration
+	private static final int LEVELED_ITERATIONS = 5;
+	private final RegistrationInputs inputs;
+	private final RegistrationMethod method;
+	private final double keepFraction;
+	private final AndersonAccelerator accelerator;
+	private final IterationTrace trace = new IterationTrace(MAX_ITER);
+	private final ClosestPointBatch correspondences = new ClosestPointBatch(true);
+	private final HornSolver solver = new HornSolver();
+	// three coordinates per sample, reused until a larger set of samples comes
+	private double[] dk = new double[0], sk = new double[0], ck = new double[0], errors = new double[0];
+	// the pairs an update registers, three coordinates each, and the errors to trim
+	private double[] inlierSources = new double[0], inlierTargets = new double[0], inlierNormals = new double[0],
+			trimErrors = new double[0];
+	// the registration as its rows and translation, and as a frame built from them
+	// when first asked for, null until then
+	private Frame registration;
+	private final double[] rotation = new double[DIM*DIM], translation = new double[DIM];
+	// the registration with the lowest error of a run, kept the same way
+	private final double[] bestRotation = new double[DIM*DIM], bestTranslation = new double[DIM];
+	private MeshIndex meshIndex;
+	private int count, level, iterations, inliers, rejected, leveledCount;
+	private double startScale, threshold, meanError, ratio;
+	// how long the first closest points took, the estimate of a step before any was made
+	private long startTime;
+	// converged means leveled off below the threshold, limited out of iterations,
+	// starved left with too few inlier pairs for an update
+	private boolean started, converged, limited, starved, stalled;
+
+	/**
+	 * Creates an engine for point-to-point updates of all pairs below the threshold
+	 * @param inputs the mesh and its level indices
+	 */
+	public ICPEngine(RegistrationInputs inputs) {
+		this(inputs, RegistrationMethod.POINT_TO_POINT, 0, 0);
+	}
+	/**
+	 * Creates an engine
+	 * @param inputs the mesh and its level indices
+	 * @param method how each iteration updates the registration
+	 * @param keepFraction the fraction of the pairs, those with the smallest
+	 *        errors, that each iteration registers; 0 registers the pairs whose
+	 *        error is below a fixed multiple of the starting error instead
+	 * @param andersonWindow the number of past updates combined by Anderson
+	 *        acceleration, 0 for plain updates
+	 */
+	public ICPEngine(RegistrationInputs inputs, RegistrationMethod method, double keepFraction, int andersonWindow) {
+		if (!(keepFraction >= 0 && keepFraction <= 1)) {
+			throw new IllegalArgumentException("The kept fraction must be between 0 and 1");
+		}
+		if (andersonWindow < 0) {
+			throw new IllegalArgumentException("The Anderson window cannot be negative");
+		}
+		this.inputs = inputs;
+		this.method = method;
+		this.keepFraction = keepFraction;
+		this.accelerator = andersonWindow > 0 ? new AndersonAccelerator(FRAME_PARAMETERS, andersonWindow) : null;
+	}
+
+	/**
+	 * Starts registering a set of points on the coarsest mesh level: finds
+	 * their first closest points and the thresholds the iteration uses
+	 * @param points the d_k points, three coordinates each
+	 * @param count the number of points
+	 * @param initial the registration to start from
+	 * @param startScale the error the inlier and stopping thresholds scale with
+	 *        at least, such as the precision of a global alignment; 0 to scale
+	 *        them with the starting error only
+	 * @throws IllegalArgumentException if there are fewer than four points
+	 */
+	public void start(double[] points, int count, Frame initial, double startScale) {
+		if (count < HORN_PAIRS) {
+			throw new IllegalArgumentException("Need at least four points to register");
+		}
+		this.load(points, count, initial);
+		this.startScale = startScale;
+		this.level = this.inputs.getLevelCount() - 1;
+		this.meshIndex = this.inputs.getIndex(this.level);
+		this.iterations = 0;
+		this.rejected = 0;
+		this.leveledCount = 0;
+		this.stalled = false;
+		this.converged = false;
+		this.limited = false;
+		this.starved = false;
+		this.ratio = Double.NaN;
+		this.trace.clear();
+		if (this.accelerator != null) {
+			this.accelerator.reset();
+		}
+		long begin = System.nanoTime();
+		this.calcSk();
+		this.calcCk();
+		this.calcErrors();
+		this.startTime = System.nanoTime() - begin;
+		this.threshold = THRESHOLD_STRENGTH*Math.max(average(this.errors, count), startScale);
+		this.meanError = this.trimmedMean();
+		this.started = true;
+	}
+	/**
+	 * Takes a finished registration instead of iterating to it, and computes
+	 * the s_k points and errors from it
+	 * @param points the d_k points, three coordinates each
+	 * @param closest the closest points, three coordinates each
+	 * @param count the number of points
+	 * @param frame the registration
+	 * @param iterations the number of iterations it took
+	 * @return the points and errors, with the status CONVERGED
+	 */
+	public RegistrationResult restore(double[] points, double[] closest, int count, Frame frame, int iterations) {
+		this.load(points, count, frame);
+		System.arraycopy(closest, 0, this.ck, 0, DIM*count);
+		this.calcSk();
+		this.calcErrors();
+		this.meanError = this.trimmedMean();
+		this.iterations = iterations;
+		this.startTime = 0;
+		this.trace.clear();
+		this.converged = true;
+		this.limited = false;
+		this.starved = false;
+		this.started = true;
+		return new RegistrationResult(frame, this, this.meanError, iterations, 0, RegistrationResult.Status.CONVERGED);
+	}
+	/**
+	 * Finds the closest points on the full mesh of a set of points moved by
+	 * a registration, without iterating
+	 * @param points the d_k points, three coordinates each
+	 * @param count the number of points
+	 * @param frame the registration
+	 * @return the closest points and errors, with the status MATCHED
+	 */
+	public RegistrationResult match(double[] points, int count, Frame frame) {
+		long begin = System.nanoTime();
+		this.load(points, count, frame);
+		this.level = 0;
+		this.meshIndex = this.inputs.getIndex(0);
+		this.calcSk();
+		this.calcCk();
+		this.calcErrors();
+		this.meanError = average(this.errors, count);
+		this.iterations = 0;
+		this.startTime = 0;
+		this.trace.clear();
+		this.converged = true;
+		this.limited = false;
+		this.starved = false;
+		this.started = true;
+		return new RegistrationResult(frame, this, this.meanError, 0, System.nanoTime() - begin,
+				RegistrationResult.Status.MATCHED);
+	}
+	private void load(double[] points, int count, Frame frame) {
+		if (count < 1 || DIM*count > points.length) {
+			throw new IllegalArgumentException("Need between one and " + points.length/DIM + " points");
+		}
+		if (this.errors.length < count) {
+			this.dk = new double[DIM*count];
+			this.sk = new double[DIM*count];
+			this.ck = new double[DIM*count];
+			this.errors = new double[count];
+			this.inlierSources = new double[DIM*count];
+			this.inlierTargets = new double[DIM*count];
+			this.inlierNormals = new double[DIM*count];
+			this.trimErrors = new double[count];
+		}
+		this.count = count;
+		System.arraycopy(points, 0, this.dk, 0, DIM*count);
+		this.setRegistration(frame);
+	}
+
+	/**
+	 * Runs one iteration: updates the registration, finds the new closest
+	 * points, moves to the next finer mesh level once the error levels off
+	 * and decides whether the iteration has converged
+	 * @return true if more iterations are needed, false once converged,
+	 *         after MAX_ITER iterations or once fewer than four pairs are inliers
+	 * @throws IllegalStateException if the engine was never started
+	 */
+	public boolean step() {
+		if (!this.started) {
+			throw new IllegalStateException("The engine has not been started");
+		}
+		if (this.converged || this.limited || this.starved) {
+			return false;
+		}
+		long start = System.nanoTime();
+		// the accelerator works on frames, so only it needs the one before the update
+		Frame previous = this.accelerator != null ? this.getRegistration() : null;
+		if (this.method != RegistrationMethod.POINT_TO_PLANE || !this.stepPointToPlane()) {
+			this.selectInliers(this.dk, false);
+			if (this.inliers < HORN_PAIRS) {
+				// keep the registration rather than fit it to too few pairs
+				this.starved = true;
+				return false;
+			}
+			this.solver.solve(this.inlierSources, this.inlierTargets, this.inliers, true);
+			this.setRegistration(this.solver.getRotation(), this.solver.getTranslation());
+		}
+		this.calcSk();
+		long registered = System.nanoTime();
+		double previousError = this.meanError;
+		if (this.accelerator != null) {
+			this.accelerate(previous, previousError);
+		} else {
+			this.calcCk();
+			this.calcErrors();
+		}
+		this.iterations++;
+		double error = this.trimmedMean();
+		this.ratio = error/previousError;
+		this.meanError = error;
+		this.trace.record(this.iterations, this.level, error, this.ratio, this.inliers,
+				System.nanoTime() - registered, registered - start);
+		if (this.level > 0) {
+			if (this.ratio > LEVEL_RATIO && this.ratio <= 1.0 || this.stalled) {
+				// refine, and measure the errors against the finer mesh
+				this.level--;
+				this.meshIndex = this.inputs.getIndex(this.level);
+				if (this.accelerator != null) {
+					this.accelerator.reset();
+				}
+				this.calcCk();
+				this.calcErrors();
+				this.meanError = this.trimmedMean();
+			}
+		} else {
+			// an accelerated iteration can overshoot to below the error the plain
+			// updates level off at, after which they creep back up slowly, and a
+			// search for the starting pose can already end up below it
+			double upper = this.accelerator != null || this.startScale > 0 ? 1/0.99 : 1.0;
+			boolean leveled = this.ratio > 0.99 && this.ratio <= upper || this.stalled;
+			if (leveled && error < Math.max(this.threshold, MIN_THRESHOLD)) {
+				this.leveledCount++;
+				this.converged = this.leveledCount == LEVELED_ITERATIONS;
+			} else {
+				this.leveledCount = 0;
+			}
+		}
+		this.limited = !this.converged && this.iterations == MAX_ITER;
+		return !this.converged && !this.limited;
+	}
+	/**
+	 * Steps until the iteration converges, makes its most iterations or is
+	 * left with too few inlier pairs
+	 * @param listener told about every iteration, or null
+	 * @return the registration, its error and why the run stopped
+	 * @throws IllegalStateException if the engine was never started
+	 */
+	public RegistrationResult run(IterationListener listener) {
+		return this.run(Long.MAX_VALUE, TimeUnit.NANOSECONDS, null, listener);
+	}
+	/**
+	 * Steps until the iteration converges, makes its most iterations, spends
+	 * the time budget or is cancelled, whichever comes first. A step is not
+	 * begun when the longest step of the run so far, or before the first step
+	 * the time the engine took to find the first closest points, would end
+	 * past the budget. A run stopped early ends at the registration with the lowest
+	 * mean error on the finest mesh level reached, and the engine can be run
+	 * on from there; otherwise it ends where the iteration stopped.
+	 * @param budget the time the run may take
+	 * @param unit the unit of the budget
+	 * @param token the token that cancels the run, or null
+	 * @param listener told about every iteration, or null
+	 * @return the registration, its error and why the run stopped
+	 * @throws IllegalStateException if the engine was never started
+	 */
+	public RegistrationResult run(long budget, TimeUnit unit, CancellationToken token, IterationListener listener) {
+		if (!this.started) {
+			throw new IllegalStateException("The engine has not been started");
+		}
+		long begin = System.nanoTime(), limit = unit.toNanos(budget), longest = this.startTime;
+		this.keepBest();
+		int bestIteration = this.iterations;
+		double bestError = this.meanError;
+		int bestLevel = this.level;
+		RegistrationResult.Status status = null;
+		while (status == null) {
+			if (this.converged) {
+				status = RegistrationResult.Status.CONVERGED;
+			} else if (this.limited) {
+				status = RegistrationResult.Status.ITERATION_LIMIT;
+			} else if (this.starved) {
+				status = RegistrationResult.Status.TOO_FEW_PAIRS;
+			} else if (token != null && token.isCancelled()) {
+				status = RegistrationResult.Status.CANCELLED;
+			} else if (System.nanoTime() - begin + longest > limit) {
+				status = RegistrationResult.Status.DEADLINE;
+			} else {
+				long start = System.nanoTime();
+				this.step();
+				longest = Math.max(longest, System.nanoTime() - start);
+				if (listener != null) {
+					listener.iterationDone(this);
+				}
+				// errors on a finer level are not comparable to those on a coarser one
+				if (this.level < bestLevel || this.meanError < bestError) {
+					this.keepBest();
+					bestIteration = this.iterations;
+					bestError = this.meanError;
+					bestLevel = this.level;
+				}
+			}
+		}
+		boolean partial = status == RegistrationResult.Status.DEADLINE || status == RegistrationResult.Status.CANCELLED;
+		if (partial && bestIteration != this.iterations) {
+			this.setRegistration(this.bestRotation, this.bestTranslation);
+			this.calcSk();
+			this.calcCk();
+			this.calcErrors();
+			this.meanError = this.trimmedMean();
+			this.leveledCount = 0;
+			if (this.accelerator != null) {
+				this.accelerator.reset();
+			}
+		}
+		return new RegistrationResult(this.getRegistration(), this, this.meanError, this.iterations,
+				System.nanoTime() - begin, status);
+	}
+	/**
+	 * Replaces the plain update just made by its Anderson extrapolation over
+	 * the past updates, and finds the new correspondences. If that raises the
+	 * error above the one before the update, the plain update is kept instead
+	 * and the history is cleared.
+	 * @param previous the registration before the update
+	 * @param previousError the error before the update
+	 */
+	private void accelerate(Frame previous, double previousError) {
+		Frame plain = this.getRegistration();
+		double[] accelerated = this.accelerator.accelerate(previous.toParameters(), plain.toParameters());
+		if (this.accelerator.getHistorySize() > 0) {
+			this.setRegistration(Frame.fromParameters(accelerated));
+			this.calcSk();
+			this.calcCk();
+			this.calcErrors();
+			if (this.trimmedMean() <= previousError) {
+				return;
+			}
+			this.rejected++;
+			this.accelerator.reset();
+			this.setRegistration(plain);
+			this.calcSk();
+		}
+		this.calcCk();
+		this.calcErrors();
+	}
+	/**
+	 * Gathers the pairs the next update registers into the inlier buffers:
+	 * either those whose error is below a fixed multiple of the starting
+	 * error, or in trimmed mode the kept fraction with the smallest errors,
+	 * found by quickselect
+	 * @param sources the points paired with the closest points
+	 * @param withNormals whether to also gather the normals of the matched triangles
+	 */
+	private void selectInliers(double[] sources, boolean withNormals) {
+		int n = this.count;
+		double cutoff;
+		int limit;
+		if (this.keepFraction > 0) {
+			limit = this.keptCount(n);
+			System.arraycopy(this.errors, 0, this.trimErrors, 0, n);
+			cutoff = Math.nextUp(Math3D.select(this.trimErrors, n, limit - 1));
+		} else {
+			limit = n;
+			cutoff = 2*this.threshold/THRESHOLD_STRENGTH;
+		}
+		double[] normals = withNormals ? this.meshIndex.getMesh().getFaceNormals() : null;
+		int[] triangles = this.correspondences.getTriangles();
+		int selected = 0;
+		for (int i = 0; i < n && selected < limit; i++) {
+			if (this.errors[i] < cutoff) {
+				for (int k = 0; k < DIM; k++) {
+					this.inlierSources[DIM*selected + k] = sources[DIM*i + k];
+					this.inlierTargets[DIM*selected + k] = this.ck[DIM*i + k];
+					if (withNormals) {
+						this.inlierNormals[DIM*selected + k] = normals[DIM*triangles[i] + k];
+					}
+				}
+				selected++;
+			}
+		}
+		this.inliers = selected;
+	}
+	/**
+	 * The error the iteration converges on: the mean of all errors, or in
+	 * trimmed mode the mean of the kept fraction with the smallest errors
+	 */
+	private double trimmedMean() {
+		int n = this.count;
+		if (this.keepFraction == 0) {
+			return average(this.errors, n);
+		}
+		System.arraycopy(this.errors, 0, this.trimErrors, 0, n);
+		int kept = this.keptCount(n);
+		Math3D.select(this.trimErrors, n, kept - 1);
+		return average(this.trimErrors, kept);
+	}
+	private int keptCount(int n) {
+		return Math.min(n, Math.max(MIN_PAIRS, (int) Math.ceil(this.keepFraction*n)));
+	}
+	/**
+	 * The mean of the first n values, summed in order as Math3D.average does
+	 */
+	private static double average(double[] values, int n) {
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += values[i];
+		}
+		return sum/n;
+	}
+	/**
+	 * Copies the first count points of an inlier buffer into a matrix with
+	 * one point per column, as the registrations take them
+	 */
+	private static Matrix toMatrix(double[] points, int count) {
+		Matrix M = new Matrix(DIM, count);
+		double[][] rows = M.getArray();
+		for (int i = 0; i < count; i++) {
+			for (int k = 0; k < DIM; k++) {
+				rows[k][i] = points[DIM*i + k];
+			}
+		}
+		return M;
+	}
+	/**
+	 * Moves the registration one point-to-plane step, pairing each selected
+	 * sample with the plane of the triangle it matched
+	 * @return false if the pairs could not constrain the step, in which case
+	 *         the registration is left unchanged
+	 */
+	private boolean stepPointToPlane() {
+		this.selectInliers(this.sk, true);
+		this.stalled = false;
+		if (this.inliers == 0) {
+			return false;
+		}
+		PointToPlaneRegistration step;
+		try {
+			step = new PointToPlaneRegistration(toMatrix(this.inlierSources, this.inliers),
+					toMatrix(this.inlierTargets, this.inliers), toMatrix(this.inlierNormals, this.inliers));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		this.setRegistration(step.getFrame().combineFrames(this.getRegistration()));
+		this.stalled = step.getAngle() < STALL_STEP && step.getShift() < STALL_STEP;
+		return true;
+	}
+	private void setRegistration(Frame frame) {
+		this.registration = frame;
+		double[][] R = frame.getRotationMatrix().getArray();
+		ColumnVector p = frame.getTranslationVector();
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				this.rotation[DIM*r + c] = R[r][c];
+			}
+			this.translation[r] = p.get(r);
+		}
+	}
+	/**
+	 * Takes a registration as its rows and translation, leaving its frame to
+	 * be built when first asked for
+	 */
+	private void setRegistration(double[] rotation, double[] translation) {
+		System.arraycopy(rotation, 0, this.rotation, 0, DIM*DIM);
+		System.arraycopy(translation, 0, this.translation, 0, DIM);
+		this.registration = null;
+	}
+	private void keepBest() {
+		System.arraycopy(this.rotation, 0, this.bestRotation, 0, DIM*DIM);
+		System.arraycopy(this.translation, 0, this.bestTranslation, 0, DIM);
+	}
+	/**
+	 * Moves the d_k points by the registration, in the order of operations of
+	 * Frame.timesVector
+	 */
+	private void calcSk() {
+		for (int i = 0; i < this.count; i++) {
+			int q = DIM*i;
+			for (int r = 0; r < DIM; r++) {
+				double s = 0;
+				for (int c = 0; c < DIM; c++) {
+					s += this.rotation[DIM*r + c]*this.dk[q + c];
+				}
+				this.sk[q + r] = s + this.translation[r];
+			}
+		}
+	}
+	private void calcCk() {
+		// the samples move little between iterations, so each search starts
+		// from the triangle the sample matched last time
+		this.correspondences.run(this.meshIndex, this.sk, this.count, ClosestPointBatch.getSharedPool());
+		double[] closest = this.correspondences.getPoints();
+		for (int i = 0; i < DIM*this.count; i++) {
+			// rounded the way the output files have always been computed
+			this.ck[i] = this.sk[i] - (this.sk[i] - closest[i]);
+		}
+	}
+	private void calcErrors() {
+		for (int i = 0; i < this.count; i++) {
+			int q = DIM*i;
+			// the Frobenius norm of the difference, accumulated as ColumnVector.magnitude does
+			double norm = 0;
+			for (int k = 0; k < DIM; k++) {
+				norm = Maths.hypot(norm, this.sk[q + k] - this.ck[q + k]);
+			}
+			this.errors[i] = norm;
+		}
+	}
+
+	/**
+	 * Returns the number of points being registered
+	 * @return the number of points
+	 */
+	public int getCount() {
+		return this.count;
+	}
+	/**
+	 * Returns the d_k points; not a copy, and possibly longer than needed
+	 * @return the points, three coordinates each
+	 */
+	public double[] getDk() {
+		return this.dk;
+	}
+	/**
+	 * Returns the d_k points moved by the registration; not a copy, and
+	 * possibly longer than needed
+	 * @return the s_k points, three coordinates each
+	 */
+	public double[] getSk() {
+		return this.sk;
+	}
+	/**
+	 * Returns the closest points on the mesh to the s_k points; not a copy,
+	 * and possibly longer than needed
+	 * @return the c_k points, three coordinates each
+	 */
+	public double[] getCk() {
+		return this.ck;
+	}
+	/**
+	 * Returns the distances between the s_k and c_k points; not a copy, and
+	 * possibly longer than needed
+	 * @return the errors
+	 */
+	public double[] getErrors() {
+		return this.errors;
+	}
+	/**
+	 * Returns the current registration
+	 * @return the frame moving the d_k points onto the mesh
+	 */
+	public Frame getRegistration() {
+		if (this.registration == null) {
+			Matrix R = new Matrix(DIM, DIM);
+			for (int r = 0; r < DIM; r++) {
+				for (int c = 0; c < DIM; c++) {
+					R.set(r, c, this.rotation[DIM*r + c]);
+				}
+			}
+			this.registration = new Frame(R, new ColumnVector(this.translation.clone()));
+		}
+		return this.registration;
+	}
+	/**
+	 * Returns the error the iteration converges on after the last step
+	 * @return the mean, or in trimmed mode the trimmed mean, of the errors
+	 */
+	public double getMeanError() {
+		return this.meanError;
+	}
+	/**
+	 * Returns the threshold below which the error must level off
+	 * @return the stopping threshold
+	 */
+	public double getThreshold() {
+		return this.threshold;
+	}
+	/**
+	 * Returns the mesh level the iteration is on, 0 for the full mesh
+	 * @return the mesh level
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Returns the number of registration updates made so far
+	 * @return the number of iterations
+	 */
+	public int getIterationCount() {
+		return this.iterations;
+	}
+	/**
+	 * Returns how often an accelerated update raised the error and was replaced
+	 * by the plain one
+	 * @return the number of rejected accelerated updates
+	 */
+	public int getRejectedAccelerationCount() {
+		return this.rejected;
+	}
+	/**
+	 * Returns whether the error has leveled off below the threshold
+	 * @return true if the iteration converged
+	 */
+	public boolean isConverged() {
+		return this.converged;
+	}
+	/**
+	 * Returns whether the iteration converged, reached its most iterations or
+	 * was left with too few inlier pairs for an update
+	 * @return true if no more steps are made
+	 */
+	public boolean isFinished() {
+		return this.converged || this.limited || this.starved;
+	}
+	/**
+	 * Returns the record of the iterations since the last start
+	 * @return the iteration trace
+	 */
+	public IterationTrace getTrace() {
+		return this.trace;
+	}
+}
@@ -0,0 +1,249 @@
+package cis.pa3.drivers;
+
+import java.util.Arrays;
+
+import Jama.Matrix;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.geometry.TriangleTable;
+import cis.pa3.geometry.Utilities;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornSolver;
+
+/**
+ * Online ICP for samples that arrive one at a time. The registration is kept
+ * as running sums of the sample points, the closest points paired with them
+ * and their products, so solving for it costs the same however many samples
+ * there are. The sums are taken relative to the first sample and its first
+ * closest point, so that the products stay small and the covariance formed
+ * from them keeps its precision far from the origin of the tracker. A new sample costs one closest point query for itself, and then
+ * each of a few refinement steps re-solves the registration and renews the
+ * closest points of some older samples, taken in turn. A renewal only
+ * searches for triangles closer than the one the sample matched before,
+ * which prunes most of the index since the registration moves little
+ * between samples.
+ * refine() runs full ICP iterations over all samples when there is time for it.
+ *
+ * The registration is rigid and every sample is used; until MIN_SAMPLES
+ * samples have arrived it stays at the starting registration.
+ */
+public class IncrementalRegistration {
+	private static final int DIM = 3;
+	/** the fewest samples the registration is solved from */
+	public static final int MIN_SAMPLES = 4;
+	/** refinement steps after each new sample unless another number is given */
+	public static final int DEFAULT_REFINEMENTS = 2;
+	/** older correspondences renewed in each refinement step */
+	public static final int RENEWALS = 4;
+	private final MeshIndex index;
+	private final TriangleTable table;
+	private final int refinements;
+	private Frame Freg;
+	private double[] samples = new double[DIM*64], closest = new double[DIM*64];
+	private int[] triangles = new int[64];
+	private int count, cursor;
+	// the first sample and its first closest point, which the sums are taken relative to
+	private final double[] sampleOrigin = new double[DIM], closestOrigin = new double[DIM];
+	// sums of the samples, of their closest points and of their outer products
+	private final double[] sumSamples = new double[DIM], sumClosest = new double[DIM];
+	private final double[] sumProducts = new double[DIM*DIM];
+	private final double[] point = new double[DIM];
+	// the centered cross covariance and centroids the registration is solved from
+	private final double[] covariance = new double[DIM*DIM];
+	private final double[] sampleCentroid = new double[DIM], closestCentroid = new double[DIM];
+	private final HornSolver solver = new HornSolver();
+
+	/**
+	 * Starts an empty registration at the identity
+	 * @param index the closest point index of the mesh
+	 */
+	public IncrementalRegistration(MeshIndex index) {
+		this(index, DEFAULT_REFINEMENTS, new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM)));
+	}
+	/**
+	 * Starts an empty registration
+	 * @param index the closest point index of the mesh
+	 * @param refinements the number of refinement steps after each new sample
+	 * @param initial the registration to start from
+	 */
+	public IncrementalRegistration(MeshIndex index, int refinements, Frame initial) {
+		if (refinements < 0) {
+			throw new IllegalArgumentException("The number of refinements cannot be negative");
+		}
+		this.index = index;
+		this.table = index.getMesh().getTriangleTable();
+		this.refinements = refinements;
+		this.Freg = initial;
+	}
+
+	/**
+	 * Adds a sample and updates the registration
+	 * @param sample the new d_k point, in the frame of body B
+	 */
+	public void addSample(ColumnVector sample) {
+		if (this.count == this.triangles.length) {
+			this.samples = Arrays.copyOf(this.samples, 2*this.samples.length);
+			this.closest = Arrays.copyOf(this.closest, 2*this.closest.length);
+			this.triangles = Arrays.copyOf(this.triangles, 2*this.triangles.length);
+		}
+		int i = this.count++;
+		for (int k = 0; k < DIM; k++) {
+			this.samples[DIM*i + k] = sample.get(k);
+		}
+		this.triangles[i] = -1;
+		this.match(i);
+		if (i == 0) {
+			System.arraycopy(this.samples, 0, this.sampleOrigin, 0, DIM);
+			System.arraycopy(this.closest, 0, this.closestOrigin, 0, DIM);
+		}
+		this.addPair(i, 1);
+		for (int r = 0; r < this.refinements && this.count > 1; r++) {
+			this.solve();
+			// renew the stalest correspondences; the new sample's is current
+			for (int m = 0; m < Math.min(RENEWALS, this.count - 1); m++) {
+				int j = this.cursor;
+				this.cursor = (this.cursor + 1) % (this.count - 1);
+				this.addPair(j, -1);
+				this.match(j);
+				this.addPair(j, 1);
+			}
+		}
+		this.solve();
+	}
+	/**
+	 * Runs full ICP iterations: renews the closest points of all samples and
+	 * solves the registration again, and also recomputes the running sums
+	 * @param iterations the number of iterations
+	 */
+	public void refine(int iterations) {
+		for (int it = 0; it < iterations; it++) {
+			Arrays.fill(this.sumSamples, 0);
+			Arrays.fill(this.sumClosest, 0);
+			Arrays.fill(this.sumProducts, 0);
+			for (int i = 0; i < this.count; i++) {
+				this.match(i);
+				this.addPair(i, 1);
+			}
+			this.solve();
+		}
+	}
+
+	/**
+	 * Returns the current registration from the body B frame to the CT frame
+	 * @return the registration
+	 */
+	public Frame getRegistration() {
+		return this.Freg;
+	}
+	public int getSampleCount() {
+		return this.count;
+	}
+	/**
+	 * Returns the closest point paired with a sample, as found the last time
+	 * it was renewed
+	 * @param i the sample index, in order of arrival
+	 * @return the closest point on the mesh
+	 */
+	public ColumnVector getClosestPoint(int i) {
+		this.check(i);
+		return new ColumnVector(Arrays.copyOfRange(this.closest, DIM*i, DIM*i + DIM));
+	}
+	/**
+	 * Returns the distance between a registered sample and its closest point
+	 * @param i the sample index, in order of arrival
+	 * @return the error of that sample
+	 */
+	public double getError(int i) {
+		this.check(i);
+		this.transform(i, this.point);
+		double sum = 0;
+		for (int k = 0; k < DIM; k++) {
+			double d = this.point[k] - this.closest[DIM*i + k];
+			sum += d*d;
+		}
+		return Math.sqrt(sum);
+	}
+	/**
+	 * Returns the mean error over all samples
+	 * @return the mean error, or 0 without samples
+	 */
+	public double getMeanError() {
+		double sum = 0;
+		for (int i = 0; i < this.count; i++) {
+			sum += this.getError(i);
+		}
+		return this.count == 0 ? 0 : sum/this.count;
+	}
+
+	/**
+	 * Finds the closest point of a registered sample, searching only for
+	 * triangles closer than the one it matched before if it has one
+	 */
+	private void match(int i) {
+		this.transform(i, this.point);
+		int previous = this.triangles[i];
+		if (previous < 0) {
+			this.triangles[i] = this.index.findClosestPoint(this.point[0], this.point[1], this.point[2],
+					this.closest, DIM*i);
+			return;
+		}
+		// only triangles closer than the previous one need to be searched
+		double bound = Utilities.findClosestPointOnTriangle(this.table, previous, this.point[0], this.point[1],
+				this.point[2], this.closest, DIM*i);
+		int found = this.index.findClosestPoint(this.point[0], this.point[1], this.point[2], bound, -1,
+				this.closest, DIM*i);
+		if (found >= 0) {
+			this.triangles[i] = found;
+		}
+	}
+	private void transform(int i, double[] out) {
+		Matrix R = this.Freg.getRotationMatrix();
+		ColumnVector p = this.Freg.getTranslationVector();
+		for (int r = 0; r < DIM; r++) {
+			double sum = p.get(r);
+			for (int k = 0; k < DIM; k++) {
+				sum += R.get(r, k)*this.samples[DIM*i + k];
+			}
+			out[r] = sum;
+		}
+	}
+	/**
+	 * Adds a pair, relative to the origins, to the running sums, or removes it
+	 * with a sign of -1
+	 */
+	private void addPair(int i, int sign) {
+		for (int r = 0; r < DIM; r++) {
+			double a = this.samples[DIM*i + r] - this.sampleOrigin[r];
+			this.sumSamples[r] += sign*a;
+			this.sumClosest[r] += sign*(this.closest[DIM*i + r] - this.closestOrigin[r]);
+			for (int c = 0; c < DIM; c++) {
+				this.sumProducts[DIM*r + c] += sign*a*(this.closest[DIM*i + c] - this.closestOrigin[c]);
+			}
+		}
+	}
+	/**
+	 * Solves for the rigid registration of the samples onto their closest
+	 * points from the running sums, with Horn's quaternion method on the
+	 * cross covariance, which does not change with the origins
+	 */
+	private void solve() {
+		if (this.count < MIN_SAMPLES) {
+			return;
+		}
+		double n = this.count;
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				this.covariance[DIM*r + c] = this.sumProducts[DIM*r + c] - this.sumSamples[r]*this.sumClosest[c]/n;
+			}
+			this.sampleCentroid[r] = this.sampleOrigin[r] + this.sumSamples[r]/n;
+			this.closestCentroid[r] = this.closestOrigin[r] + this.sumClosest[r]/n;
+		}
+		this.solver.solve(this.covariance, this.sampleCentroid, this.closestCentroid);
+		this.Freg = this.solver.getFrame();
+	}
+	private void check(int i) {
+		if (i < 0 || i >= this.count) {
+			throw new IndexOutOfBoundsException("No sample " + i + " of " + this.count);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package cis.pa3.drivers;
+
+/**
+ * Is told about every iteration of an ICPEngine run, on the thread that runs
+ * it. A listener may read the engine's state, such as its mean error, level,
+ * registration and trace, but must not start or step the engine; to stop the
+ * run early, it cancels the run's token.
+ */
+public interface IterationListener {
+	/**
+	 * Called after each iteration
+	 * @param engine the engine that made the iteration
+	 */
+	public void iterationDone(ICPEngine engine);
+}
@@ -0,0 +1,199 @@
+package cis.pa3.drivers;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A record of the iterations of a registration, kept in preallocated primitive
+ * arrays. Every iteration stores its number, mesh level, mean error, error
+ * ratio, number of inlier pairs and the time spent finding correspondences
+ * and updating the registration. When more iterations are recorded than the
+ * trace holds, the oldest are overwritten. Nothing is printed while
+ * recording; the trace is written out as CSV or JSON afterwards.
+ */
+public class IterationTrace {
+	private static final String[] COLUMNS = {"iteration", "level", "meanError", "ratio", "inliers",
+			"correspondenceMs", "registrationMs"};
+	private final int[] iterations, levels, inliers;
+	private final double[] meanErrors, ratios;
+	private final long[] correspondenceNanos, registrationNanos;
+	private int next, count;
+
+	/**
+	 * Creates an empty trace
+	 * @param capacity the number of most recent iterations kept
+	 */
+	public IterationTrace(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("A trace must hold at least one iteration");
+		}
+		this.iterations = new int[capacity];
+		this.levels = new int[capacity];
+		this.inliers = new int[capacity];
+		this.meanErrors = new double[capacity];
+		this.ratios = new double[capacity];
+		this.correspondenceNanos = new long[capacity];
+		this.registrationNanos = new long[capacity];
+	}
+
+	/**
+	 * Creates a copy of a trace that holds just the iterations it holds
+	 * @param other the trace to copy
+	 */
+	public IterationTrace(IterationTrace other) {
+		this(Math.max(1, other.size()));
+		for (int i = 0; i < other.size(); i++) {
+			int s = other.slot(i);
+			this.record(other.iterations[s], other.levels[s], other.meanErrors[s], other.ratios[s], other.inliers[s],
+					other.correspondenceNanos[s], other.registrationNanos[s]);
+		}
+	}
+
+	/**
+	 * Records one iteration, overwriting the oldest one if the trace is full
+	 * @param iteration the iteration number
+	 * @param level the mesh level the iteration ran on
+	 * @param meanError the mean error after the iteration
+	 * @param ratio the mean error divided by that of the iteration before
+	 * @param inlierCount the number of point pairs the registration used
+	 * @param correspondenceTime nanoseconds spent on closest points and errors
+	 * @param registrationTime nanoseconds spent updating the registration
+	 */
+	public void record(int iteration, int level, double meanError, double ratio, int inlierCount,
+			long correspondenceTime, long registrationTime) {
+		int i = this.next;
+		this.iterations[i] = iteration;
+		this.levels[i] = level;
+		this.meanErrors[i] = meanError;
+		this.ratios[i] = ratio;
+		this.inliers[i] = inlierCount;
+		this.correspondenceNanos[i] = correspondenceTime;
+		this.registrationNanos[i] = registrationTime;
+		this.next = (i + 1) % this.iterations.length;
+		this.count = Math.min(this.count + 1, this.iterations.length);
+	}
+	/**
+	 * Forgets all recorded iterations
+	 */
+	public void clear() {
+		this.next = 0;
+		this.count = 0;
+	}
+
+	/**
+	 * Returns the number of iterations held
+	 * @return the number of iterations, at most the capacity
+	 */
+	public int size() {
+		return this.count;
+	}
+	public int getCapacity() {
+		return this.iterations.length;
+	}
+	public int getIteration(int i) {
+		return this.iterations[this.slot(i)];
+	}
+	public int getLevel(int i) {
+		return this.levels[this.slot(i)];
+	}
+	public double getMeanError(int i) {
+		return this.meanErrors[this.slot(i)];
+	}
+	public double getRatio(int i) {
+		return this.ratios[this.slot(i)];
+	}
+	public int getInlierCount(int i) {
+		return this.inliers[this.slot(i)];
+	}
+	public long getCorrespondenceTime(int i) {
+		return this.correspondenceNanos[this.slot(i)];
+	}
+	public long getRegistrationTime(int i) {
+		return this.registrationNanos[this.slot(i)];
+	}
+
+	/**
+	 * Writes the trace as CSV with a header row, oldest iteration first
+	 * @param out where to write
+	 * @throws IOException if writing fails
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		for (int k = 0; k < COLUMNS.length; k++) {
+			out.write(k == 0 ? COLUMNS[k] : "," + COLUMNS[k]);
+		}
+		out.write("\n");
+		for (int i = 0; i < this.count; i++) {
+			String[] values = this.values(i);
+			for (int k = 0; k < values.length; k++) {
+				out.write(k == 0 ? values[k] : "," + values[k]);
+			}
+			out.write("\n");
+		}
+	}
+	/**
+	 * Writes the trace as a JSON array with one object per iteration, oldest first
+	 * @param out where to write
+	 * @throws IOException if writing fails
+	 */
+	public void writeJson(Writer out) throws IOException {
+		out.write("[");
+		for (int i = 0; i < this.count; i++) {
+			String[] values = this.values(i);
+			out.write(i == 0 ? "\n  {" : ",\n  {");
+			for (int k = 0; k < values.length; k++) {
+				out.write((k == 0 ? "\"" : ", \"") + COLUMNS[k] + "\": " + values[k]);
+			}
+			out.write("}");
+		}
+		out.write("\n]\n");
+	}
+	/**
+	 * Writes the trace to a file, as JSON if its name ends in .json and as CSV otherwise
+	 * @param path the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(String path) throws IOException {
+		Writer out = new FileWriter(path);
+		try {
+			if (path.endsWith(".json")) {
+				this.writeJson(out);
+			} else {
+				this.writeCsv(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	/**
+	 * Returns one line of the trace in its console form
+	 * @param i the position, 0 for the oldest iteration held
+	 * @return the formatted line
+	 */
+	public String format(int i) {
+		int s = this.slot(i);
+		return String.format("iteration %d level %d error %s ratio %s inliers %d correspondence %.3f ms registration %.3f ms",
+				this.iterations[s], this.levels[s], this.meanErrors[s], this.ratios[s], this.inliers[s],
+				this.correspondenceNanos[s]/1e6, this.registrationNanos[s]/1e6);
+	}
+
+	private int slot(int i) {
+		if (i < 0 || i >= this.count) {
+			throw new IndexOutOfBoundsException("No iteration " + i + " in a trace of " + this.count);
+		}
+		return (this.next - this.count + i + this.iterations.length) % this.iterations.length;
+	}
+	/**
+	 * The values of one iteration as text; JSON has no NaN or infinity, so
+	 * both forms write those as null
+	 */
+	private String[] values(int i) {
+		int s = this.slot(i);
+		return new String[] {Integer.toString(this.iterations[s]), Integer.toString(this.levels[s]),
+				number(this.meanErrors[s]), number(this.ratios[s]), Integer.toString(this.inliers[s]),
+				Double.toString(this.correspondenceNanos[s]/1e6), Double.toString(this.registrationNanos[s]/1e6)};
+	}
+	private static String number(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+	}
+}
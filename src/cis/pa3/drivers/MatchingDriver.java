@@ -9,19 +9,16 @@ import java.util.List;
 import Jama.Matrix;
 import cis.pa3.data.BodyData;
 import cis.pa3.data.DataFileParser;
-import cis.pa3.data.MeshData;
 import cis.pa3.data.Output3Data;
 import cis.pa3.data.SampleReadingsData;
-import cis.pa3.geometry.Utilities;
+import cis.pa3.geometry.MeshIndexType;
 import cis.pa3.tools.ColumnVector;
 import cis.pa3.tools.Frame;
-import cis.pa3.tools.HornRegistration;
 import cis.pa3.tools.MatrixHelper;
 import cis.pa3.tools.Mesh;
 import cis.pa3.tools.PointCloud;
 
 public class MatchingDriver {
-	private static final int DIM = 3;
 	private BodyData bodyA, bodyB;
 	private SampleReadingsData sampleReadings;
 	private Mesh mesh;
@@ -31,11 +28,18 @@ public class MatchingDriver {
 	private String datasetType;
 	
 	public MatchingDriver(char letter, boolean isDebug) {
+		this(letter, isDebug, new RegistrationEngine(new RegistrationInputs("Problem3", MeshIndexType.BVH, 1)));
+	}
+	/**
+	 * Runs the driver on one dataset with an engine whose inputs are already loaded
+	 * @param letter the dataset letter
+	 * @param isDebug whether the dataset is a debug or an unknown dataset
+	 * @param registrations the engine on the Problem3 bodies and the mesh; only its full level is used
+	 */
+	public MatchingDriver(char letter, boolean isDebug, RegistrationEngine registrations) {
+		RegistrationInputs inputs = registrations.getInputs();
 		this.letter = letter;
 		DataFileParser parser = new DataFileParser();
-		String bodyAPath = "data" + File.separator + "Problem3-BodyA.txt";
-		String bodyBPath = "data" + File.separator + "Problem3-BodyB.txt";
-		String meshpath = "data" + File.separator + "Problem3Mesh.sur";
 		String sampleReadingsPath;
 		if (isDebug) {
 			this.datasetType = "Debug";
@@ -45,48 +49,17 @@ public class MatchingDriver {
 		}
 		sampleReadingsPath = "data" + File.separator + "PA3-" + letter + "-" + this.datasetType + "-SampleReadingsTest.txt";
 
-		this.bodyA = parser.parseBodyData(bodyAPath);
-		this.bodyB = parser.parseBodyData(bodyBPath);
-		this.sampleReadings = parser.parseSampleReadingsData(sampleReadingsPath, bodyAPath, bodyBPath);
-		MeshData meshA = parser.parseMeshData(meshpath);
-		this.mesh = new Mesh(meshA);
-		this.Freg = new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM));
-		this.calcDkVectors();
-		this.calcSkVectors();
-		this.calcCkVectors();
-	}
-	
-	private void calcDkVectors() {	
-		PointCloud bodyACloud = this.bodyA.getMarkers();
-		PointCloud bodyBCloud = this.bodyB.getMarkers();
-		ColumnVector Atip = this.bodyA.getTipCoordinates();
-		this.DkVectors = new ArrayList<>();
-
-		for (int i = 0; i < sampleReadings.getNsamps(); i++) {
-			PointCloud trackerACloud = this.sampleReadings.getAMarkerCloud().get(i);
-			PointCloud trackerBCloud = this.sampleReadings.getBMarkerCloud().get(i);
-			HornRegistration Areg = new HornRegistration(bodyACloud.asMatrix(), trackerACloud.asMatrix(), true);
-			HornRegistration Breg = new HornRegistration(bodyBCloud.asMatrix(), trackerBCloud.asMatrix(), true);
-			Frame FAk = Areg.getFrame();
-			Frame FBk = Breg.getFrame();			
-			this.DkVectors.add(FBk.inverse().combineFrames(FAk).timesVector(Atip));
-		}
+		this.bodyA = inputs.getBodyA();
+		this.bodyB = inputs.getBodyB();
+		this.sampleReadings = parser.parseSampleReadingsData(sampleReadingsPath, this.bodyA, this.bodyB);
+		this.mesh = inputs.getMesh();
+		RegistrationResult result = registrations.match(this.sampleReadings);
+		this.Freg = result.getRegistration();
+		this.DkVectors = result.getDkVectors();
+		this.SkVectors = result.getSkVectors();
+		this.CkVectors = result.getCkVectors();
 	}
 	
-	private void calcSkVectors() {
-		this.SkVectors = new ArrayList<>();
-		for (int i = 0; i < this.DkVectors.size(); i++) {
-			ColumnVector trans = this.Freg.timesVector(this.DkVectors.get(i));
-			this.SkVectors.add(trans);
-		}
-	}
-	private void calcCkVectors() {
-		this.CkVectors = new ArrayList<>();
-		for (int i = 0; i < this.SkVectors.size(); i++) {
-			ColumnVector closest = Utilities.findClosestPointOnMesh(this.mesh, this.SkVectors.get(i));
-			this.CkVectors.add(this.SkVectors.get(i).minus(closest));
-		}
-	}
 	public List<ColumnVector> getDkVectors() {
 		return this.DkVectors;
 	}
@@ -168,8 +141,9 @@ public class MatchingDriver {
 	
 	public static void main(String[] args) {
 		MatchingDriver driver;
+		RegistrationEngine registrations = new RegistrationEngine(new RegistrationInputs("Problem3", MeshIndexType.BVH, 1));
 		for (char letter = 'A'; letter <= 'F'; letter++) {
-			driver = new MatchingDriver(letter, true);						
+			driver = new MatchingDriver(letter, true, registrations);						
 			driver.compareToOutput();
 			driver.createOutput();
 		}
@@ -177,7 +151,7 @@ public class MatchingDriver {
 			if (letter == 'I') {
 				continue;
 			}
-			driver = new MatchingDriver(letter, false);
+			driver = new MatchingDriver(letter, false, registrations);
 			driver.createOutput();
 			
 		}
@@ -0,0 +1,344 @@
+package cis.pa3.drivers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import Jama.Matrix;
+import cis.pa3.geometry.ClosestPointBatch;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.tools.CancellationToken;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornSolver;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * Looks for the basin of the best registration by running point-to-point ICP
+ * from many starting poses at once. The hypotheses run in rounds of a few
+ * iterations each, side by side on a fork-join pool and all querying the
+ * same read-only mesh index. After each round the hypotheses whose mean
+ * error is clearly worse than the best one are dropped, but never more than
+ * half of them, since a few iterations from a far pose say little about
+ * where a hypothesis ends up. The search ends when one hypothesis is left
+ * or after MAX_ROUNDS rounds, and the best one is the
+ * result; only it needs to be run to convergence afterwards, as ICPDriver does.
+ * A search given a time budget or a cancellation token checks them between
+ * rounds and, once either stops it, takes the best hypothesis so far.
+ */
+public class MultiHypothesisICP {
+	private static final int DIM = 3;
+	/** iterations each hypothesis runs between two comparisons */
+	public static final int ROUND_ITERATIONS = 4;
+	/** hypotheses with a mean error above this multiple of the best are dropped, down to half */
+	public static final double PRUNE_RATIO = 1.5;
+	/** the most rounds before the best hypothesis is taken */
+	public static final int MAX_ROUNDS = 8;
+	/** pairs further apart than this multiple of a hypothesis' starting error are ignored */
+	private static final double INLIER_FACTOR = 2;
+	// Horn's method needs at least four pairs
+	private static final int MIN_PAIRS = 4;
+	private static final Comparator<Hypothesis> BY_ERROR = new Comparator<Hypothesis>() {
+		@Override
+		public int compare(Hypothesis a, Hypothesis b) {
+			return Double.compare(a.meanError, b.meanError);
+		}
+	};
+	private final MeshIndex index;
+	private final ForkJoinPool pool;
+	private final double[] source;
+	private final int numPoints;
+	private final Hypothesis best;
+	private final int hypotheses;
+	private int rounds, iterations;
+	private boolean stopped;
+
+	/**
+	 * Runs the search on the shared pool upon initialization
+	 * @param index the closest point index of the mesh
+	 * @param points the points to register onto the mesh
+	 * @param starts the starting poses, at least one
+	 */
+	public MultiHypothesisICP(MeshIndex index, List<ColumnVector> points, List<Frame> starts) {
+		this(index, points, starts, ClosestPointBatch.getSharedPool());
+	}
+	/**
+	 * Runs the search upon initialization
+	 * @param index the closest point index of the mesh
+	 * @param points the points to register onto the mesh
+	 * @param starts the starting poses, at least one
+	 * @param pool the pool the hypotheses and their queries run on
+	 */
+	public MultiHypothesisICP(MeshIndex index, List<ColumnVector> points, List<Frame> starts, ForkJoinPool pool) {
+		this(index, points, starts, pool, Long.MAX_VALUE, TimeUnit.NANOSECONDS, null);
+	}
+	/**
+	 * Runs the search upon initialization within a time budget; the errors at
+	 * the starting poses are always measured
+	 * @param index the closest point index of the mesh
+	 * @param points the points to register onto the mesh
+	 * @param starts the starting poses, at least one
+	 * @param pool the pool the hypotheses and their queries run on
+	 * @param budget the time the search may take
+	 * @param unit the unit of the budget
+	 * @param token the token that cancels the search, or null
+	 */
+	public MultiHypothesisICP(MeshIndex index, List<ColumnVector> points, List<Frame> starts, ForkJoinPool pool,
+			long budget, TimeUnit unit, CancellationToken token) {
+		long begin = System.nanoTime(), limit = unit.toNanos(budget);
+		if (starts.isEmpty()) {
+			throw new IllegalArgumentException("Need at least one starting pose");
+		}
+		if (points.size() < MIN_PAIRS) {
+			throw new IllegalArgumentException("Need at least four points");
+		}
+		this.index = index;
+		this.pool = pool;
+		this.numPoints = points.size();
+		this.source = new double[DIM*this.numPoints];
+		for (int i = 0; i < this.numPoints; i++) {
+			for (int k = 0; k < DIM; k++) {
+				this.source[DIM*i + k] = points.get(i).get(k);
+			}
+		}
+		this.hypotheses = starts.size();
+		List<Hypothesis> live = new ArrayList<>();
+		for (Frame start : starts) {
+			live.add(new Hypothesis(start));
+		}
+		this.runAll(live, 0);
+		for (Hypothesis hypothesis : live) {
+			hypothesis.startError = hypothesis.meanError;
+		}
+		while (live.size() > 1 && this.rounds < MAX_ROUNDS) {
+			if (token != null && token.isCancelled() || System.nanoTime() - begin > limit) {
+				this.stopped = true;
+				break;
+			}
+			this.runAll(live, ROUND_ITERATIONS);
+			this.rounds++;
+			Collections.sort(live, BY_ERROR);
+			double bestError = live.get(0).meanError;
+			int kept = live.size();
+			while (kept > (live.size() + 1)/2 && live.get(kept - 1).meanError > PRUNE_RATIO*bestError) {
+				kept--;
+			}
+			live = new ArrayList<>(live.subList(0, kept));
+		}
+		Collections.sort(live, BY_ERROR);
+		this.best = live.get(0);
+	}
+
+	/**
+	 * The identity and the 24 rotations that map the coordinate axes onto
+	 * each other, the latter about the centroid of the points and moving it
+	 * onto the centroid of the mesh vertices
+	 * @param points the points to register
+	 * @param mesh the mesh they are registered onto
+	 * @return 25 starting poses, the identity first
+	 */
+	public static List<Frame> startingPoses(List<ColumnVector> points, Mesh mesh) {
+		double[] centroid = new double[DIM], meshCentroid = new double[DIM];
+		for (ColumnVector point : points) {
+			for (int k = 0; k < DIM; k++) {
+				centroid[k] += point.get(k)/points.size();
+			}
+		}
+		PackedMesh packed = mesh.getPacked();
+		double[] vertices = packed.getVertices();
+		for (int v = 0; v < packed.getVertexCount(); v++) {
+			for (int k = 0; k < DIM; k++) {
+				meshCentroid[k] += vertices[DIM*v + k]/packed.getVertexCount();
+			}
+		}
+		List<Frame> poses = new ArrayList<>();
+		poses.add(new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM)));
+		int[][] permutations = {{0, 1, 2}, {1, 2, 0}, {2, 0, 1}, {0, 2, 1}, {2, 1, 0}, {1, 0, 2}};
+		for (int p = 0; p < permutations.length; p++) {
+			// odd permutations need an odd number of sign flips to stay a rotation
+			int parity = p < 3 ? 0 : 1;
+			for (int signs = 0; signs < 8; signs++) {
+				if (Integer.bitCount(signs) % 2 != parity) {
+					continue;
+				}
+				Matrix R = new Matrix(DIM, DIM);
+				for (int r = 0; r < DIM; r++) {
+					R.set(r, permutations[p][r], (signs >> r & 1) == 1 ? -1 : 1);
+				}
+				double[] shift = new double[DIM];
+				for (int r = 0; r < DIM; r++) {
+					shift[r] = meshCentroid[r];
+					for (int c = 0; c < DIM; c++) {
+						shift[r] -= R.get(r, c)*centroid[c];
+					}
+				}
+				poses.add(new Frame(R, new ColumnVector(shift)));
+			}
+		}
+		return poses;
+	}
+
+	/**
+	 * Returns the registration of the best hypothesis
+	 * @return the registration to continue ICP from
+	 */
+	public Frame getRegistration() {
+		return this.best.frame;
+	}
+	/**
+	 * Returns the mean error of the best hypothesis at its starting pose
+	 * @return the starting mean distance to the mesh
+	 */
+	public double getStartError() {
+		return this.best.startError;
+	}
+	/**
+	 * Returns the mean error of the best hypothesis at the end of the search
+	 * @return the mean distance to the mesh
+	 */
+	public double getMeanError() {
+		return this.best.meanError;
+	}
+	/**
+	 * Returns the number of starting poses
+	 * @return the number of hypotheses
+	 */
+	public int getHypothesisCount() {
+		return this.hypotheses;
+	}
+	/**
+	 * Returns the number of rounds before one hypothesis was left or the search stopped
+	 * @return the number of rounds
+	 */
+	public int getRoundCount() {
+		return this.rounds;
+	}
+	/**
+	 * Returns whether the budget or the token ended the search before one
+	 * hypothesis was left or it made its most rounds
+	 * @return true for a search stopped early
+	 */
+	public boolean isStopped() {
+		return this.stopped;
+	}
+	/**
+	 * Returns the iterations run by all hypotheses together
+	 * @return the total number of iterations
+	 */
+	public int getIterationCount() {
+		return this.iterations;
+	}
+
+	/**
+	 * Runs a number of iterations of every hypothesis on the pool, or only
+	 * measures their errors for 0
+	 */
+	private void runAll(List<Hypothesis> live, final int count) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (final Hypothesis hypothesis : live) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if (count == 0) {
+						hypothesis.measure();
+					}
+					for (int i = 0; i < count && !hypothesis.failed; i++) {
+						hypothesis.step();
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> future : this.pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while registering", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("A hypothesis failed", e.getCause());
+			}
+		}
+		for (Hypothesis hypothesis : live) {
+			this.iterations += count == 0 ? 0 : hypothesis.iterations;
+			hypothesis.iterations = 0;
+		}
+	}
+
+	/**
+	 * One ICP run, with its own warm started closest point batch
+	 */
+	private class Hypothesis {
+		private Frame frame;
+		private final ClosestPointBatch batch = new ClosestPointBatch(true);
+		private final double[] moved = new double[DIM*numPoints];
+		private final double[] pairSources = new double[DIM*numPoints], pairTargets = new double[DIM*numPoints];
+		private final HornSolver solver = new HornSolver();
+		private double startError = Double.POSITIVE_INFINITY, meanError;
+		private int iterations;
+		// a hypothesis with too few pairs near the mesh keeps its last pose and error
+		private boolean failed;
+
+		private Hypothesis(Frame start) {
+			this.frame = start;
+		}
+
+		/**
+		 * Finds the closest points of the moved points and their mean distance
+		 */
+		private void measure() {
+			Matrix R = this.frame.getRotationMatrix();
+			ColumnVector p = this.frame.getTranslationVector();
+			for (int i = 0; i < numPoints; i++) {
+				for (int r = 0; r < DIM; r++) {
+					this.moved[DIM*i + r] = R.get(r, 0)*source[DIM*i] + R.get(r, 1)*source[DIM*i + 1]
+							+ R.get(r, 2)*source[DIM*i + 2] + p.get(r);
+				}
+			}
+			this.batch.run(index, this.moved, numPoints, pool);
+			double sum = 0;
+			double[] distances = this.batch.getDistances();
+			for (int i = 0; i < numPoints; i++) {
+				sum += distances[i];
+			}
+			this.meanError = sum/numPoints;
+		}
+
+		/**
+		 * Registers the pairs closer than the inlier cutoff and measures again
+		 */
+		private void step() {
+			double cutoff = INLIER_FACTOR*this.startError;
+			double[] distances = this.batch.getDistances(), closest = this.batch.getPoints();
+			int count = 0;
+			for (int i = 0; i < numPoints; i++) {
+				if (distances[i] < cutoff) {
+					count++;
+				}
+			}
+			if (count < MIN_PAIRS) {
+				this.failed = true;
+				return;
+			}
+			int j = 0;
+			for (int i = 0; i < numPoints; i++) {
+				if (distances[i] < cutoff) {
+					System.arraycopy(source, DIM*i, this.pairSources, DIM*j, DIM);
+					System.arraycopy(closest, DIM*i, this.pairTargets, DIM*j, DIM);
+					j++;
+				}
+			}
+			this.solver.solve(this.pairSources, this.pairTargets, count, true);
+			this.frame = this.solver.getFrame();
+			this.iterations++;
+			this.measure();
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package cis.pa3.drivers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import Jama.Matrix;
+import cis.pa3.data.BodyData;
+import cis.pa3.data.SampleReadingsData;
+import cis.pa3.geometry.ClosestPointBatch;
+import cis.pa3.geometry.GlobalAlignment;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.tools.CancellationToken;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornSolver;
+import cis.pa3.tools.InitialPose;
+import cis.pa3.tools.PointCloud;
+import cis.pa3.tools.RegistrationMethod;
+
+/**
+ * Registers sample readings onto a mesh that is loaded and indexed once. The
+ * engine holds the bodies, the mesh and its level indices of a
+ * RegistrationInputs, and each call does only the work of its readings:
+ * the d_k points, the starting pose, and the ICP iteration or the closest
+ * points. Calls may come from several threads at once; each thread reuses
+ * its own ICPEngine and so its own buffers from call to call.
+ */
+public class RegistrationEngine {
+	private static final int DIM = 3;
+	// the random seed of every global alignment, fixed so that results repeat
+	private static final long ALIGNMENT_SEED = 0;
+	private final RegistrationInputs inputs;
+	private final RegistrationMethod method;
+	private final double keepFraction;
+	private final int andersonWindow;
+	private final ThreadLocal<ICPEngine> engines;
+
+	/**
+	 * Creates an engine for point-to-point ICP of all pairs below the threshold
+	 * @param inputs the bodies, the mesh and its level indices
+	 */
+	public RegistrationEngine(RegistrationInputs inputs) {
+		this(inputs, RegistrationMethod.POINT_TO_POINT, 0, 0);
+	}
+	/**
+	 * Creates an engine
+	 * @param inputs the bodies, the mesh and its level indices
+	 * @param method how each iteration updates the registration
+	 * @param keepFraction the fraction of the pairs, those with the smallest
+	 *        errors, that each iteration registers; 0 registers the pairs whose
+	 *        error is below a fixed multiple of the starting error instead
+	 * @param andersonWindow the number of past updates combined by Anderson
+	 *        acceleration, 0 for plain updates
+	 */
+	public RegistrationEngine(final RegistrationInputs inputs, final RegistrationMethod method,
+			final double keepFraction, final int andersonWindow) {
+		// fails early on bad settings rather than on each thread's first call
+		if (!(keepFraction >= 0 && keepFraction <= 1)) {
+			throw new IllegalArgumentException("The kept fraction must be between 0 and 1");
+		}
+		if (andersonWindow < 0) {
+			throw new IllegalArgumentException("The Anderson window cannot be negative");
+		}
+		this.inputs = inputs;
+		this.method = method;
+		this.keepFraction = keepFraction;
+		this.andersonWindow = andersonWindow;
+		this.engines = new ThreadLocal<ICPEngine>() {
+			@Override
+			protected ICPEngine initialValue() {
+				return new ICPEngine(inputs, method, keepFraction, andersonWindow);
+			}
+		};
+	}
+
+	/**
+	 * Registers the readings from the identity until the iteration converges
+	 * @param readings the tracker readings of the samples
+	 * @return the registration and the points
+	 */
+	public RegistrationResult register(SampleReadingsData readings) {
+		return this.register(readings, InitialPose.IDENTITY, Long.MAX_VALUE, TimeUnit.NANOSECONDS, null, null);
+	}
+	/**
+	 * Registers the readings within a time budget. The budget and the token
+	 * cover the whole call: a global alignment checks them between its RANSAC
+	 * trials and a multi-hypothesis search between its rounds, and a search
+	 * they stop gives the best pose it found so far. The d_k points and the
+	 * closest points at the starting pose are always found; the iteration then
+	 * stops early as ICPEngine.run does, and does not start at all if the
+	 * search for the starting pose was stopped.
+	 * @param readings the tracker readings of the samples
+	 * @param start how to choose the registration the iteration starts from
+	 * @param budget the time the call may take
+	 * @param unit the unit of the budget
+	 * @param token the token that cancels the iteration, or null
+	 * @param listener told about every iteration, or null; it must not call
+	 *        this engine on the same thread
+	 * @return the best registration found and the points
+	 */
+	public RegistrationResult register(SampleReadingsData readings, InitialPose start, long budget, TimeUnit unit,
+			CancellationToken token, IterationListener listener) {
+		long begin = System.nanoTime();
+		return this.register(this.engines.get(), this.computeDkVectors(readings), start, ALIGNMENT_SEED,
+				unit.toNanos(budget), begin, token, listener);
+	}
+	/**
+	 * Runs ICP on an engine from the chosen starting pose
+	 * @param engine the engine to iterate on
+	 * @param points the d_k points
+	 * @param start how to choose the registration the iteration starts from
+	 * @param seed the random seed of a global alignment
+	 * @param budget the time in nanoseconds the call may take from begin
+	 * @param begin when the call began, from System.nanoTime
+	 */
+	private RegistrationResult register(ICPEngine engine, List<ColumnVector> points, InitialPose start, long seed,
+			long budget, long begin, CancellationToken token, IterationListener listener) {
+		Frame initial = new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM));
+		// the inlier and stopping thresholds scale with the starting error, but
+		// after a global alignment with at least the precision it guarantees, and
+		// after a multi-hypothesis search with the error its best hypothesis started at
+		double startScale = 0;
+		// a call already out of time or cancelled keeps the identity rather than begin a search
+		boolean searching = (token == null || !token.isCancelled()) && System.nanoTime() - begin <= budget;
+		if (searching && start == InitialPose.GLOBAL_ALIGNMENT) {
+			GlobalAlignment alignment = this.inputs.getGlobalAlignment();
+			initial = alignment.align(points, initial, seed, budget - (System.nanoTime() - begin),
+					TimeUnit.NANOSECONDS, token);
+			startScale = alignment.getTolerance();
+		} else if (searching && start == InitialPose.MULTI_HYPOTHESIS) {
+			MeshIndex coarsest = this.inputs.getIndex(this.inputs.getLevelCount() - 1);
+			MultiHypothesisICP search = new MultiHypothesisICP(coarsest, points,
+					MultiHypothesisICP.startingPoses(points, coarsest.getMesh()), ClosestPointBatch.getSharedPool(),
+					budget - (System.nanoTime() - begin), TimeUnit.NANOSECONDS, token);
+			initial = search.getRegistration();
+			startScale = search.getStartError();
+		}
+		engine.start(flatten(points), points.size(), initial, startScale);
+		// a stopped search leaves the budget spent or the token cancelled, so
+		// the run ends at once with the searched pose and the matching status
+		return engine.run(budget - (System.nanoTime() - begin), TimeUnit.NANOSECONDS, token, listener);
+	}
+	/**
+	 * Finds the closest points on the full mesh of the readings' d_k points,
+	 * without moving them
+	 * @param readings the tracker readings of the samples
+	 * @return the points, with the identity as the registration
+	 */
+	public RegistrationResult match(SampleReadingsData readings) {
+		return this.match(readings, new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM)));
+	}
+	/**
+	 * Finds the closest points on the full mesh of the readings' d_k points
+	 * moved by a registration
+	 * @param readings the tracker readings of the samples
+	 * @param registration the frame to move the d_k points by
+	 * @return the points
+	 */
+	public RegistrationResult match(SampleReadingsData readings, Frame registration) {
+		List<ColumnVector> points = this.computeDkVectors(readings);
+		return this.engines.get().match(flatten(points), points.size(), registration);
+	}
+
+	/**
+	 * Takes a finished registration, such as one kept in a cache, instead of
+	 * iterating to it, and computes the s_k points and errors from it
+	 * @param points the d_k points, three coordinates each
+	 * @param closest the closest points, three coordinates each
+	 * @param registration the registration
+	 * @param iterations the number of iterations it took
+	 * @return the points, with the status CONVERGED
+	 */
+	public RegistrationResult restore(double[] points, double[] closest, Frame registration, int iterations) {
+		return this.engines.get().restore(points, closest, points.length/DIM, registration, iterations);
+	}
+
+	/**
+	 * Finds the pointer tip of body A in the frame of body B for every sample,
+	 * registering both bodies' markers onto their tracker readings
+	 * @param readings the tracker readings of the samples
+	 * @return the d_k points
+	 */
+	public List<ColumnVector> computeDkVectors(SampleReadingsData readings) {
+		BodyData bodyA = this.inputs.getBodyA(), bodyB = this.inputs.getBodyB();
+		PointCloud bodyACloud = bodyA.getMarkers();
+		PointCloud bodyBCloud = bodyB.getMarkers();
+		double[] bodyAMarkers = flatten(bodyACloud), bodyBMarkers = flatten(bodyBCloud);
+		double[] trackerAMarkers = new double[bodyAMarkers.length], trackerBMarkers = new double[bodyBMarkers.length];
+		HornSolver solver = new HornSolver();
+		ColumnVector Atip = bodyA.getTipCoordinates();
+		List<ColumnVector> points = new ArrayList<>();
+		for (int i = 0; i < readings.getNsamps(); i++) {
+			flatten(readings.getAMarkerCloud().get(i), trackerAMarkers);
+			flatten(readings.getBMarkerCloud().get(i), trackerBMarkers);
+			solver.solve(bodyAMarkers, trackerAMarkers, bodyACloud.getSize(), true);
+			Frame FAk = solver.getFrame();
+			solver.solve(bodyBMarkers, trackerBMarkers, bodyBCloud.getSize(), true);
+			Frame FBk = solver.getFrame();
+			points.add(FBk.inverse().combineFrames(FAk).timesVector(Atip));
+		}
+		return points;
+	}
+	/**
+	 * Returns the inputs the engine registers onto
+	 * @return the bodies, the mesh and its level indices
+	 */
+	public RegistrationInputs getInputs() {
+		return this.inputs;
+	}
+	/**
+	 * Returns how the engine registers the points onto the mesh
+	 * @return the registration method
+	 */
+	public RegistrationMethod getMethod() {
+		return this.method;
+	}
+	/**
+	 * Returns the fraction of the pairs kept by the trimmed methods
+	 * @return the kept fraction
+	 */
+	public double getKeepFraction() {
+		return this.keepFraction;
+	}
+	/**
+	 * Returns how many past iterates the Anderson acceleration mixes
+	 * @return the window, 0 when acceleration is off
+	 */
+	public int getAndersonWindow() {
+		return this.andersonWindow;
+	}
+
+	private static double[] flatten(PointCloud cloud) {
+		double[] values = new double[DIM*cloud.getSize()];
+		flatten(cloud, values);
+		return values;
+	}
+	private static void flatten(PointCloud cloud, double[] values) {
+		for (int i = 0; i < cloud.getSize(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				values[DIM*i + k] = cloud.get(i).get(k);
+			}
+		}
+	}
+	static double[] flatten(List<ColumnVector> points) {
+		double[] values = new double[DIM*points.size()];
+		for (int i = 0; i < points.size(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				values[DIM*i + k] = points.get(i).get(k);
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,116 @@
+package cis.pa3.drivers;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import cis.pa3.data.BodyData;
+import cis.pa3.data.DataFileParser;
+import cis.pa3.geometry.GlobalAlignment;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.MeshPyramid;
+
+/**
+ * The inputs that every dataset of a problem shares: the two rigid bodies,
+ * the mesh and the closest point indices of its levels. They are loaded once
+ * and only read afterwards, so any number of drivers may use them at the
+ * same time from different threads.
+ */
+public class RegistrationInputs {
+	private static final String MESH_PATH = "data" + File.separator + "Problem3Mesh.sur";
+	private final String bodyAPath, bodyBPath;
+	private final BodyData bodyA, bodyB;
+	private final Mesh mesh;
+	private final List<MeshIndex> levelIndices;
+	// the inputs whose mesh this one reuses, which also own its global alignment, or null
+	private final RegistrationInputs shared;
+	private GlobalAlignment alignment;
+
+	/**
+	 * Loads the bodies of a problem and the mesh, and builds the indices
+	 * @param problem the problem the body files belong to, such as "Problem4"
+	 * @param indexType the spatial index used for closest point queries
+	 * @param levels the number of mesh levels, 1 for the full mesh only
+	 */
+	public RegistrationInputs(String problem, MeshIndexType indexType, int levels) {
+		DataFileParser parser = new DataFileParser();
+		this.bodyAPath = "data" + File.separator + problem + "-BodyA.txt";
+		this.bodyBPath = "data" + File.separator + problem + "-BodyB.txt";
+		this.bodyA = parser.parseBodyData(this.bodyAPath);
+		this.bodyB = parser.parseBodyData(this.bodyBPath);
+		this.mesh = parser.parseMesh(MESH_PATH);
+		MeshPyramid pyramid = new MeshPyramid(this.mesh, levels);
+		List<MeshIndex> indices = new ArrayList<>();
+		for (int i = 0; i < pyramid.getLevelCount(); i++) {
+			Mesh level = pyramid.getLevel(i);
+			// fill the lazily built parts of the mesh before it is shared
+			level.getFaceNormals();
+			indices.add(indexType.build(level));
+		}
+		this.levelIndices = Collections.unmodifiableList(indices);
+		this.shared = null;
+	}
+	/**
+	 * Loads the bodies of another problem and shares the mesh and indices of
+	 * already loaded inputs
+	 * @param problem the problem the body files belong to, such as "Problem3"
+	 * @param shared the inputs whose mesh and indices are reused
+	 */
+	public RegistrationInputs(String problem, RegistrationInputs shared) {
+		DataFileParser parser = new DataFileParser();
+		this.bodyAPath = "data" + File.separator + problem + "-BodyA.txt";
+		this.bodyBPath = "data" + File.separator + problem + "-BodyB.txt";
+		this.bodyA = parser.parseBodyData(this.bodyAPath);
+		this.bodyB = parser.parseBodyData(this.bodyBPath);
+		this.mesh = shared.mesh;
+		this.levelIndices = shared.levelIndices;
+		this.shared = shared;
+	}
+
+	public BodyData getBodyA() {
+		return this.bodyA;
+	}
+	public BodyData getBodyB() {
+		return this.bodyB;
+	}
+	public String getBodyAPath() {
+		return this.bodyAPath;
+	}
+	public String getBodyBPath() {
+		return this.bodyBPath;
+	}
+	public Mesh getMesh() {
+		return this.mesh;
+	}
+	/**
+	 * Returns the index of one mesh level
+	 * @param level 0 for the full mesh up to getLevelCount() - 1 for the coarsest
+	 * @return the index of that level
+	 */
+	public MeshIndex getIndex(int level) {
+		return this.levelIndices.get(level);
+	}
+	public int getLevelCount() {
+		return this.levelIndices.size();
+	}
+	/**
+	 * Returns the descriptor index of the full mesh for a global initial
+	 * alignment, building it on first use; inputs that share another's mesh
+	 * share its alignment too
+	 * @return the global alignment onto the full mesh
+	 */
+	public GlobalAlignment getGlobalAlignment() {
+		if (this.shared != null) {
+			return this.shared.getGlobalAlignment();
+		}
+		synchronized (this) {
+			if (this.alignment == null) {
+				this.alignment = new GlobalAlignment(this.getIndex(0));
+			}
+			return this.alignment;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package cis.pa3.drivers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+
+/**
+ * The outcome of an ICPEngine run: the registration it ended with, the d_k
+ * points, the s_k points they are moved to, their closest points c_k on the
+ * mesh and the errors, the mean error and why the run stopped, and the
+ * iteration trace. The points and the trace are copies, so a result stays
+ * valid while its engine goes on to other work.
+ */
+public class RegistrationResult {
+	/**
+	 * The reasons a run can stop
+	 */
+	public enum Status {
+		/** the error leveled off below the threshold */
+		CONVERGED,
+		/** the engine made its most iterations */
+		ITERATION_LIMIT,
+		/** fewer than four pairs were inliers, so the registration was kept as it was */
+		TOO_FEW_PAIRS,
+		/** the time budget was spent, or the next iteration would overrun it */
+		DEADLINE,
+		/** the run's token was cancelled */
+		CANCELLED,
+		/** there was no iteration, only the closest points under a given registration */
+		MATCHED
+	}
+	private static final int DIM = 3;
+
+	private final Frame registration;
+	private final double[] dk, sk, ck, errors;
+	private final double meanError;
+	private final int iterations, rejected;
+	private final IterationTrace trace;
+	private final long elapsed;
+	private final Status status;
+
+	/**
+	 * Creates a result, copying the points and the trace
+	 * @param registration the registration the run ended with
+	 * @param engine the engine whose points to copy
+	 * @param meanError the mean error at that registration
+	 * @param iterations the iterations made since the engine was started
+	 * @param elapsed the wall time of the run in nanoseconds
+	 * @param status why the run stopped
+	 */
+	RegistrationResult(Frame registration, ICPEngine engine, double meanError, int iterations, long elapsed,
+			Status status) {
+		this.registration = registration;
+		int count = engine.getCount();
+		this.dk = Arrays.copyOf(engine.getDk(), DIM*count);
+		this.sk = Arrays.copyOf(engine.getSk(), DIM*count);
+		this.ck = Arrays.copyOf(engine.getCk(), DIM*count);
+		this.errors = Arrays.copyOf(engine.getErrors(), count);
+		this.meanError = meanError;
+		this.iterations = iterations;
+		this.rejected = engine.getRejectedAccelerationCount();
+		this.trace = new IterationTrace(engine.getTrace());
+		this.elapsed = elapsed;
+		this.status = status;
+	}
+
+	/**
+	 * Returns the registration the run ended with
+	 * @return the frame moving the d_k points onto the mesh
+	 */
+	public Frame getRegistration() {
+		return this.registration;
+	}
+	/**
+	 * Returns the number of points registered
+	 * @return the number of points
+	 */
+	public int getCount() {
+		return this.errors.length;
+	}
+	/**
+	 * Returns the d_k points as a new list
+	 * @return the points before the registration
+	 */
+	public List<ColumnVector> getDkVectors() {
+		return toVectors(this.dk);
+	}
+	/**
+	 * Returns the s_k points as a new list
+	 * @return the d_k points moved by the registration
+	 */
+	public List<ColumnVector> getSkVectors() {
+		return toVectors(this.sk);
+	}
+	/**
+	 * Returns the c_k points as a new list
+	 * @return the closest points on the mesh to the s_k points
+	 */
+	public List<ColumnVector> getCkVectors() {
+		return toVectors(this.ck);
+	}
+	/**
+	 * Returns the errors as a new list
+	 * @return the distances between the s_k and c_k points
+	 */
+	public List<Double> getErrors() {
+		List<Double> values = new ArrayList<>();
+		for (double error : this.errors) {
+			values.add(error);
+		}
+		return values;
+	}
+	/**
+	 * Returns the mean error at the registration, on the finest mesh level reached
+	 * @return the mean, or in trimmed mode the trimmed mean, of the errors
+	 */
+	public double getMeanError() {
+		return this.meanError;
+	}
+	/**
+	 * Returns the iterations made since the engine was started
+	 * @return the number of iterations
+	 */
+	public int getIterationCount() {
+		return this.iterations;
+	}
+	/**
+	 * Returns how often an accelerated update raised the error and was replaced
+	 * by the plain one
+	 * @return the number of rejected accelerated updates
+	 */
+	public int getRejectedAccelerationCount() {
+		return this.rejected;
+	}
+	/**
+	 * Returns the record of the iterations of the run, which can be written
+	 * out as CSV or JSON
+	 * @return the iteration trace
+	 */
+	public IterationTrace getTrace() {
+		return this.trace;
+	}
+	/**
+	 * Returns the wall time of the run
+	 * @return the time in milliseconds
+	 */
+	public double getTime() {
+		return this.elapsed/1e6;
+	}
+	/**
+	 * Returns why the run stopped
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return this.status;
+	}
+	/**
+	 * Returns whether the run stopped before the iteration converged or hit its limit
+	 * @return true for a run stopped by its deadline or token
+	 */
+	public boolean isPartial() {
+		return this.status == Status.DEADLINE || this.status == Status.CANCELLED;
+	}
+
+	private static List<ColumnVector> toVectors(double[] values) {
+		List<ColumnVector> points = new ArrayList<>();
+		for (int i = 0; i < values.length; i += DIM) {
+			points.add(new ColumnVector(Arrays.copyOfRange(values, i, i + DIM)));
+		}
+		return points;
+	}
+}
@@ -0,0 +1,309 @@
+package cis.pa3.geometry;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cis.pa3.tools.ColumnVector;
+
+/**
+ * Answers closest point queries for a whole set of points at once. The query
+ * points are given as one flat array x0, y0, z0, x1, ... and the results are
+ * kept in flat arrays of closest points, distances and triangle indices. The
+ * queries are split over a fork-join pool; the chunk size adapts to the
+ * number of queries and the parallelism of the pool, and small batches are
+ * answered on the calling thread.
+ *
+ * A batch may be run any number of times; the result arrays are reused
+ * whenever they are large enough, and the tasks that split the queries over
+ * the pool, with their scratch space, whenever the number of queries and the
+ * chunk size stay the same. A run like the previous one allocates nothing
+ * itself, only the small node the pool may create for the waiting caller.
+ *
+ * With a warm start, a batch run again on the same index with the same number
+ * of queries treats query i as the previous query i after a small motion, as
+ * with the sample points between ICP iterations. Each query remembers an
+ * anchor point and its clearance there, the distance to the nearest triangle
+ * other than the one it matched. Since distances change by at most the motion,
+ * the previous triangle is still the closest while its distance stays below
+ * the clearance minus the motion from the anchor, and the search is skipped.
+ * Otherwise the search starts with the distance to the previous triangle as
+ * its bound.
+ *
+ * The clearance costs a second search, so it is only measured for queries
+ * that kept their triangle, and only out to a few times the motion since the
+ * last anchor; a runner-up beyond that reach is recorded at the reach, which
+ * still bounds the true clearance from below.
+ */
+public class ClosestPointBatch {
+	private static final int DIM = 3;
+	/** the smallest number of queries worth handing to another thread */
+	private static final int MIN_CHUNK = 64;
+	/** the number of chunks per worker, so that uneven chunks even out */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/** slack in the skip test for rounding in the distances, in mm */
+	private static final double COHERENCE_TOLERANCE = 1e-9;
+	/** how many times the last motion the runner-up search reaches beyond the match */
+	private static final double CLEARANCE_REACH = 4;
+	/** the least reach of the runner-up search, in mm, for queries that barely moved */
+	private static final double MIN_CLEARANCE_REACH = 0.01;
+	private static ForkJoinPool sharedPool;
+	private double[] points = new double[0];
+	private double[] distances = new double[0];
+	private int[] triangles = new int[0];
+	private int size;
+	private final boolean warmStart;
+	private double[] anchors = new double[0];
+	private double[] clearances = new double[0];
+	private MeshIndex previousIndex;
+	private boolean coherent;
+	private final AtomicInteger skipped = new AtomicInteger();
+	// the tree of tasks of the last run and the queries it answers
+	private QueryTask tasks;
+	private MeshIndex taskIndex;
+	private double[] taskQueries;
+	// scratch space for runs on the calling thread
+	private final double[] point = new double[DIM];
+
+	/**
+	 * Creates a batch without a warm start
+	 */
+	public ClosestPointBatch() {
+		this(false);
+	}
+	/**
+	 * Creates a batch
+	 * @param warmStart whether later runs start from the results of the previous run
+	 */
+	public ClosestPointBatch(boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Finds the closest points of a set of queries on the shared pool
+	 * @param index the mesh index to query
+	 * @param queries the query points, three coordinates each
+	 * @return the results
+	 */
+	public static ClosestPointBatch query(MeshIndex index, double[] queries) {
+		ClosestPointBatch batch = new ClosestPointBatch();
+		batch.run(index, queries, queries.length/DIM, getSharedPool());
+		return batch;
+	}
+	/**
+	 * Finds the closest points of a list of points on the shared pool
+	 * @param index the mesh index to query
+	 * @param sources the query points
+	 * @return the results
+	 */
+	public static ClosestPointBatch query(MeshIndex index, List<ColumnVector> sources) {
+		ClosestPointBatch batch = new ClosestPointBatch();
+		batch.run(index, sources);
+		return batch;
+	}
+	/**
+	 * Returns the pool used when none is given, created on first use
+	 * @return the shared pool
+	 */
+	public static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) {
+			sharedPool = new ForkJoinPool();
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Finds the closest points of a list of points on the shared pool,
+	 * replacing any earlier results
+	 * @param index the mesh index to query
+	 * @param sources the query points
+	 */
+	public void run(MeshIndex index, List<ColumnVector> sources) {
+		double[] queries = new double[DIM*sources.size()];
+		for (int i = 0; i < sources.size(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				queries[DIM*i + k] = sources.get(i).get(k);
+			}
+		}
+		this.run(index, queries, sources.size(), getSharedPool());
+	}
+	/**
+	 * Finds the closest points of the first count queries, replacing any
+	 * earlier results
+	 * @param index the mesh index to query
+	 * @param queries the query points, three coordinates each
+	 * @param count the number of queries to answer
+	 * @param pool the pool to run on
+	 */
+	public void run(MeshIndex index, double[] queries, int count, ForkJoinPool pool) {
+		if (count < 0 || DIM*count > queries.length) {
+			throw new IllegalArgumentException("Query array holds fewer than " + count + " points");
+		}
+		this.coherent = this.warmStart && index == this.previousIndex && count == this.size;
+		if (this.distances.length < count) {
+			this.points = new double[DIM*count];
+			this.distances = new double[count];
+			this.triangles = new int[count];
+			if (this.warmStart) {
+				this.anchors = new double[DIM*count];
+				this.clearances = new double[count];
+			}
+		}
+		this.size = count;
+		this.previousIndex = index;
+		this.skipped.set(0);
+		int chunk = Math.max(MIN_CHUNK, count/(CHUNKS_PER_THREAD*pool.getParallelism()));
+		if (count <= chunk) {
+			this.solve(index, queries, 0, count, this.point);
+			return;
+		}
+		if (this.tasks == null || this.tasks.end != count || this.tasks.chunk != chunk) {
+			this.tasks = new QueryTask(0, count, chunk);
+		}
+		this.taskIndex = index;
+		this.taskQueries = queries;
+		try {
+			this.tasks.reinitialize();
+			pool.invoke(this.tasks);
+		} finally {
+			this.taskIndex = null;
+			this.taskQueries = null;
+		}
+	}
+
+	/**
+	 * Returns the number of answered queries
+	 * @return the number of results
+	 */
+	public int size() {
+		return this.size;
+	}
+	/**
+	 * Returns the number of queries of the last run that kept their previous
+	 * triangle without a search
+	 * @return the number of skipped searches
+	 */
+	public int getSkippedCount() {
+		return this.skipped.get();
+	}
+	/**
+	 * Returns the closest points; not a copy, and possibly longer than needed
+	 * @return the closest points, three coordinates each
+	 */
+	public double[] getPoints() {
+		return this.points;
+	}
+	/**
+	 * Returns the distances to the closest points; not a copy
+	 * @return the distances
+	 */
+	public double[] getDistances() {
+		return this.distances;
+	}
+	/**
+	 * Returns the indices of the triangles holding the closest points; not a copy
+	 * @return the triangle indices
+	 */
+	public int[] getTriangles() {
+		return this.triangles;
+	}
+	/**
+	 * Returns one closest point as a vector
+	 * @param i the query index
+	 * @return the closest point of query i
+	 */
+	public ColumnVector getPoint(int i) {
+		return new ColumnVector(new double[] {this.points[DIM*i], this.points[DIM*i + 1], this.points[DIM*i + 2]});
+	}
+
+	private void solve(MeshIndex index, double[] queries, int start, int end, double[] point) {
+		TriangleTable table = index.getMesh().getTriangleTable();
+		int skips = 0;
+		for (int i = start; i < end; i++) {
+			int q = DIM*i;
+			double px = queries[q], py = queries[q + 1], pz = queries[q + 2];
+			double motion = -1;
+			if (this.coherent) {
+				int previous = this.triangles[i];
+				double bound = Utilities.findClosestPointOnTriangle(table, previous, px, py, pz, point, 0);
+				double mx = px - this.anchors[q], my = py - this.anchors[q + 1], mz = pz - this.anchors[q + 2];
+				motion = Math.sqrt(mx*mx + my*my + mz*mz);
+				if (Math.sqrt(bound) + motion + COHERENCE_TOLERANCE < this.clearances[i]) {
+					System.arraycopy(point, 0, this.points, q, DIM);
+					this.distances[i] = Math.sqrt(bound);
+					skips++;
+					continue;
+				}
+				int found = index.findClosestPoint(px, py, pz, bound, -1, this.points, q);
+				if (found < 0) {
+					found = previous;
+					System.arraycopy(point, 0, this.points, q, DIM);
+				}
+				if (found != previous) {
+					motion = -1;
+				}
+				this.triangles[i] = found;
+			} else {
+				this.triangles[i] = index.findClosestPoint(px, py, pz, this.points, q);
+			}
+			double dx = this.points[q] - px;
+			double dy = this.points[q + 1] - py;
+			double dz = this.points[q + 2] - pz;
+			this.distances[i] = Math.sqrt(dx*dx + dy*dy + dz*dz);
+			if (this.warmStart) {
+				System.arraycopy(queries, q, this.anchors, q, DIM);
+				if (motion < 0) {
+					// a new triangle: no skip next time, and a clearance once it settles
+					this.clearances[i] = 0;
+				} else {
+					// measure how far the runner-up triangle is from here, within the reach
+					double reach = this.distances[i] + Math.max(CLEARANCE_REACH*motion, MIN_CLEARANCE_REACH);
+					int runnerUp = index.findClosestPoint(px, py, pz, reach*reach, this.triangles[i], point, 0);
+					this.clearances[i] = runnerUp < 0 ? reach
+							: Math.sqrt(Utilities.findClosestPointOnTriangle(table, runnerUp, px, py, pz, point, 0));
+				}
+			}
+		}
+		this.skipped.addAndGet(skips);
+	}
+
+	/**
+	 * Halves its range of queries until it is no longer than the chunk size.
+	 * The halves are built once with the task and run again by later runs.
+	 */
+	private class QueryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int start, end, chunk;
+		private final QueryTask left, right;
+		// scratch space of a leaf
+		private final double[] point;
+
+		QueryTask(int start, int end, int chunk) {
+			this.start = start;
+			this.end = end;
+			this.chunk = chunk;
+			if (end - start <= chunk) {
+				this.left = null;
+				this.right = null;
+				this.point = new double[DIM];
+			} else {
+				int mid = (start + end) >>> 1;
+				this.left = new QueryTask(start, mid, chunk);
+				this.right = new QueryTask(mid, end, chunk);
+				this.point = null;
+			}
+		}
+
+		@Override
+		protected void compute() {
+			if (this.left == null) {
+				ClosestPointBatch.this.solve(taskIndex, taskQueries, this.start, this.end, this.point);
+				return;
+			}
+			this.left.reinitialize();
+			this.right.reinitialize();
+			invokeAll(this.left, this.right);
+		}
+	}
+}
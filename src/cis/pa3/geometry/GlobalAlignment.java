@@ -0,0 +1,513 @@
+package cis.pa3.geometry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import Jama.Matrix;
+import cis.pa3.tools.CancellationToken;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornSolver;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * Finds a rough registration of a point set onto a mesh from any starting
+ * pose, to start ICP from. Every mesh vertex and every point gets a small
+ * rotation invariant descriptor of the surface around it: for two radii,
+ * the shares of the three principal variances of its neighbors within the
+ * radius and the offset of their centroid. The mesh descriptors are
+ * computed once, with the neighbors weighted by their share of the surface
+ * area, and serve as the descriptor index.
+ *
+ * Each point is matched to the mesh vertices with the nearest descriptors.
+ * RANSAC then draws triples of points far apart, takes every triple of their
+ * matches whose distances agree with those of the points, and scores the
+ * registration of the triple by the squared distances of the points to the
+ * mesh, each capped at the square of a tolerance (MSAC). The best
+ * registration is refit to the points it brings within the tolerance, and
+ * the refit is kept only if it scores better. The starting pose competes as
+ * one more hypothesis, so the result never fits the points worse than it.
+ *
+ * An alignment only reads its index after it is built, so it may be used
+ * from several threads at once.
+ */
+public class GlobalAlignment {
+	private static final int DIM = 3;
+	/** the two descriptor radii, as fractions of the mesh bounding box diagonal */
+	private static final double[] RADIUS_SCALES = {0.25, 0.5};
+	private static final int FEATURES = 4;
+	private static final int DESCRIPTOR_SIZE = FEATURES*RADIUS_SCALES.length;
+	/** the number of mesh vertices each point is matched to */
+	public static final int DEFAULT_MATCHES = 12;
+	/** the number of point triples drawn */
+	public static final int DEFAULT_TRIALS = 300;
+	/** points with fewer neighbors within the smaller radius get no matches */
+	private static final int MIN_NEIGHBORS = 6;
+	/** triple sides shorter than this fraction of the point set diameter are redrawn */
+	private static final double MIN_SIDE = 0.25;
+	/** how far the sides of matched triangles may differ, as a fraction of the tolerance */
+	private static final double CONGRUENCE = 0.5;
+	/** draws allowed per trial to find a triple with long enough sides */
+	private static final int MAX_DRAWS = 50;
+	/** the points scored before a hypothesis may be dropped early */
+	private static final int PREEMPT_SAMPLE = 10;
+	/** how far the sample's cost, scaled to all points, may exceed the best cost */
+	private static final double PREEMPT_FACTOR = 2;
+	private final MeshIndex index;
+	private final double[] vertices;
+	private final double[] descriptors;
+	private final double[] radii;
+	private final double tolerance;
+	private final int matches;
+	private final int trials;
+
+	/**
+	 * Builds the descriptor index of the mesh of a closest point index with
+	 * the default number of matches and trials
+	 * @param index the closest point index of the mesh to register to
+	 */
+	public GlobalAlignment(MeshIndex index) {
+		this(index, DEFAULT_MATCHES, DEFAULT_TRIALS);
+	}
+	/**
+	 * Builds the descriptor index of the mesh of a closest point index. This
+	 * compares every pair of vertices once, so it is meant to be built once
+	 * per mesh and shared.
+	 * @param index the closest point index of the mesh to register to
+	 * @param matches the number of mesh vertices each point is matched to
+	 * @param trials the number of point triples drawn
+	 */
+	public GlobalAlignment(MeshIndex index, int matches, int trials) {
+		if (matches < 1 || trials < 1) {
+			throw new IllegalArgumentException("Need at least one match and one trial");
+		}
+		this.index = index;
+		this.matches = matches;
+		this.trials = trials;
+		PackedMesh mesh = index.getMesh().getPacked();
+		this.vertices = mesh.getVertices();
+		int numVertices = mesh.getVertexCount();
+		double[] min = new double[DIM], max = new double[DIM];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int v = 0; v < numVertices; v++) {
+			for (int k = 0; k < DIM; k++) {
+				min[k] = Math.min(min[k], this.vertices[DIM*v + k]);
+				max[k] = Math.max(max[k], this.vertices[DIM*v + k]);
+			}
+		}
+		double diagonal = 0;
+		for (int k = 0; k < DIM; k++) {
+			diagonal += (max[k] - min[k])*(max[k] - min[k]);
+		}
+		diagonal = Math.sqrt(diagonal);
+		this.radii = new double[RADIUS_SCALES.length];
+		for (int s = 0; s < this.radii.length; s++) {
+			this.radii[s] = RADIUS_SCALES[s]*diagonal;
+		}
+		// each vertex stands for a third of the area of its triangles
+		double[] areas = new double[numVertices];
+		double edges = 0;
+		int[] indices = mesh.getIndices();
+		for (int t = 0; t < mesh.getTriangleCount(); t++) {
+			double[] e1 = new double[DIM], e2 = new double[DIM];
+			for (int k = 0; k < DIM; k++) {
+				e1[k] = mesh.getCoordinate(t, 1, k) - mesh.getCoordinate(t, 0, k);
+				e2[k] = mesh.getCoordinate(t, 2, k) - mesh.getCoordinate(t, 0, k);
+			}
+			double cx = e1[1]*e2[2] - e1[2]*e2[1], cy = e1[2]*e2[0] - e1[0]*e2[2], cz = e1[0]*e2[1] - e1[1]*e2[0];
+			double area = 0.5*Math.sqrt(cx*cx + cy*cy + cz*cz);
+			for (int j = 0; j < DIM; j++) {
+				areas[indices[DIM*t + j]] += area/DIM;
+			}
+			edges += Math.sqrt(e1[0]*e1[0] + e1[1]*e1[1] + e1[2]*e1[2]);
+		}
+		// the vertices matched to a point lie up to about an edge away from its true place
+		this.tolerance = 2*edges/mesh.getTriangleCount();
+		this.descriptors = new double[DESCRIPTOR_SIZE*numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			this.describe(this.vertices, areas, numVertices, v, this.descriptors, DESCRIPTOR_SIZE*v);
+		}
+	}
+
+	/**
+	 * Returns the distance within which a registered point counts as on the mesh
+	 * @return the inlier tolerance, about twice the mean edge length
+	 */
+	public double getTolerance() {
+		return this.tolerance;
+	}
+
+	/**
+	 * Registers a point set onto the mesh
+	 * @param points the points, which should lie on the mesh after registration
+	 * @param initial the starting pose, which is kept unless a better one is found
+	 * @param seed the seed of the random triples, so that results repeat
+	 * @return the registration that moves the points onto the mesh
+	 */
+	public Frame align(List<ColumnVector> points, Frame initial, long seed) {
+		return this.align(points, initial, seed, Long.MAX_VALUE, TimeUnit.NANOSECONDS, null);
+	}
+	/**
+	 * Registers a point set onto the mesh within a time budget. The budget and
+	 * the token are checked between RANSAC trials; once either stops the
+	 * search, the best registration so far is returned without a refit.
+	 * @param points the points, which should lie on the mesh after registration
+	 * @param initial the starting pose, which is kept unless a better one is found
+	 * @param seed the seed of the random triples, so that results repeat
+	 * @param budget the time the search may take
+	 * @param unit the unit of the budget
+	 * @param token the token that cancels the search, or null
+	 * @return the registration that moves the points onto the mesh
+	 */
+	public Frame align(List<ColumnVector> points, Frame initial, long seed, long budget, TimeUnit unit,
+			CancellationToken token) {
+		long begin = System.nanoTime(), limit = unit.toNanos(budget);
+		int n = points.size();
+		double[] source = new double[DIM*n];
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < DIM; k++) {
+				source[DIM*i + k] = points.get(i).get(k);
+			}
+		}
+		Random random = new Random(seed);
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		double[] closest = new double[DIM];
+		double[] rotation = new double[DIM*DIM], translation = new double[DIM];
+		fromFrame(initial, rotation, translation);
+		double[] best = new double[DIM*DIM + DIM];
+		System.arraycopy(rotation, 0, best, 0, DIM*DIM);
+		System.arraycopy(translation, 0, best, DIM*DIM, DIM);
+		double bestCost = this.score(source, order, n, rotation, translation, Double.POSITIVE_INFINITY, closest);
+		// the nearest mesh descriptors of every point
+		double[] ones = new double[n];
+		Arrays.fill(ones, 1);
+		int[] candidates = new int[this.matches*n];
+		boolean[] matched = new boolean[n];
+		double[] descriptor = new double[DESCRIPTOR_SIZE];
+		double[] candidateDistances = new double[this.matches];
+		double diameter = 0;
+		for (int i = 0; i < n; i++) {
+			matched[i] = this.describe(source, ones, n, i, descriptor, 0);
+			if (matched[i]) {
+				this.nearestDescriptors(descriptor, candidates, this.matches*i, candidateDistances);
+			}
+			for (int j = 0; j < i; j++) {
+				diameter = Math.max(diameter, distance(source, i, source, j));
+			}
+		}
+		double minSide = MIN_SIDE*diameter;
+		double slack = CONGRUENCE*this.tolerance;
+		int[] triple = new int[DIM];
+		boolean stopped = false;
+		for (int trial = 0; trial < this.trials; trial++) {
+			if (token != null && token.isCancelled() || System.nanoTime() - begin > limit) {
+				stopped = true;
+				break;
+			}
+			if (!drawTriple(source, matched, n, minSide, random, triple)) {
+				continue;
+			}
+			int p = triple[0], q = triple[1], r = triple[2];
+			double pq = distance(source, p, source, q), pr = distance(source, p, source, r);
+			double qr = distance(source, q, source, r);
+			for (int a = 0; a < this.matches; a++) {
+				int va = candidates[this.matches*p + a];
+				for (int b = 0; b < this.matches; b++) {
+					int vb = candidates[this.matches*q + b];
+					if (Math.abs(distance(this.vertices, va, this.vertices, vb) - pq) > slack) {
+						continue;
+					}
+					for (int c = 0; c < this.matches; c++) {
+						int vc = candidates[this.matches*r + c];
+						if (Math.abs(distance(this.vertices, va, this.vertices, vc) - pr) > slack
+								|| Math.abs(distance(this.vertices, vb, this.vertices, vc) - qr) > slack) {
+							continue;
+						}
+						if (!triad(source, p, q, r, this.vertices, va, vb, vc, rotation, translation)) {
+							continue;
+						}
+						double cost = this.score(source, order, n, rotation, translation, bestCost, closest);
+						if (cost < bestCost) {
+							bestCost = cost;
+							System.arraycopy(rotation, 0, best, 0, DIM*DIM);
+							System.arraycopy(translation, 0, best, DIM*DIM, DIM);
+						}
+					}
+				}
+			}
+		}
+		// the refit is scored in full like any hypothesis and kept only if it fits better
+		System.arraycopy(best, 0, rotation, 0, DIM*DIM);
+		System.arraycopy(best, DIM*DIM, translation, 0, DIM);
+		if (!stopped && this.refit(source, n, closest, rotation, translation)
+				&& this.score(source, order, n, rotation, translation, Double.POSITIVE_INFINITY, closest) < bestCost) {
+			return toFrame(rotation, translation);
+		}
+		return toFrame(Arrays.copyOfRange(best, 0, DIM*DIM), Arrays.copyOfRange(best, DIM*DIM, DIM*DIM + DIM));
+	}
+
+	/**
+	 * Sums the squared distances of the registered points to the mesh, each
+	 * capped at the squared tolerance; gives up early, returning infinity,
+	 * once the sum reaches a bound or a sample of the points shows that it
+	 * will far exceed it
+	 */
+	private double score(double[] source, int[] order, int n, double[] rotation, double[] translation,
+			double bound, double[] closest) {
+		double cap = this.tolerance*this.tolerance;
+		double cost = 0;
+		for (int s = 0; s < n; s++) {
+			int i = order[s];
+			double x = transform(rotation, translation, source, i, 0);
+			double y = transform(rotation, translation, source, i, 1);
+			double z = transform(rotation, translation, source, i, 2);
+			if (this.index.findClosestPoint(x, y, z, cap, -1, closest, 0) >= 0) {
+				double dx = closest[0] - x, dy = closest[1] - y, dz = closest[2] - z;
+				cost += dx*dx + dy*dy + dz*dz;
+			} else {
+				cost += cap;
+			}
+			if (cost >= bound || s + 1 == PREEMPT_SAMPLE && cost*n > PREEMPT_FACTOR*bound*PREEMPT_SAMPLE) {
+				return Double.POSITIVE_INFINITY;
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Refits a registration in place to the points it brings within the
+	 * tolerance of the mesh, matched to their closest points
+	 * @return false, leaving the registration as it was, if fewer than four
+	 *         points are within the tolerance
+	 */
+	private boolean refit(double[] source, int n, double[] closest, double[] rotation, double[] translation) {
+		double bound2 = this.tolerance*this.tolerance;
+		double[] a = new double[DIM*n], b = new double[DIM*n];
+		int inliers = 0;
+		for (int i = 0; i < n; i++) {
+			double x = transform(rotation, translation, source, i, 0);
+			double y = transform(rotation, translation, source, i, 1);
+			double z = transform(rotation, translation, source, i, 2);
+			if (this.index.findClosestPoint(x, y, z, bound2, -1, closest, 0) >= 0) {
+				System.arraycopy(source, DIM*i, a, DIM*inliers, DIM);
+				System.arraycopy(closest, 0, b, DIM*inliers, DIM);
+				inliers++;
+			}
+		}
+		// Horn's method needs at least four pairs
+		if (inliers < 4) {
+			return false;
+		}
+		HornSolver solver = new HornSolver();
+		solver.solve(a, b, inliers, true);
+		System.arraycopy(solver.getRotation(), 0, rotation, 0, DIM*DIM);
+		System.arraycopy(solver.getTranslation(), 0, translation, 0, DIM);
+		return true;
+	}
+
+	/**
+	 * Computes the descriptor of point i of a weighted point set into out
+	 * @return false if the point has too few neighbors for a descriptor
+	 */
+	private boolean describe(double[] points, double[] weights, int count, int i, double[] out, int offset) {
+		double[] sums = new double[DIM];
+		double[][] moments = new double[DIM][DIM];
+		for (int s = 0; s < this.radii.length; s++) {
+			double radius2 = this.radii[s]*this.radii[s];
+			Arrays.fill(sums, 0);
+			for (double[] row : moments) {
+				Arrays.fill(row, 0);
+			}
+			double total = 0;
+			int neighbors = 0;
+			for (int j = 0; j < count; j++) {
+				double dx = points[DIM*j] - points[DIM*i], dy = points[DIM*j + 1] - points[DIM*i + 1];
+				double dz = points[DIM*j + 2] - points[DIM*i + 2];
+				if (dx*dx + dy*dy + dz*dz > radius2) {
+					continue;
+				}
+				double[] d = {dx, dy, dz};
+				double w = weights[j];
+				for (int k = 0; k < DIM; k++) {
+					sums[k] += w*d[k];
+					for (int l = 0; l < DIM; l++) {
+						moments[k][l] += w*d[k]*d[l];
+					}
+				}
+				total += w;
+				neighbors++;
+			}
+			if (neighbors < MIN_NEIGHBORS || !(total > 0)) {
+				return false;
+			}
+			Matrix covariance = new Matrix(DIM, DIM);
+			double offset2 = 0;
+			for (int k = 0; k < DIM; k++) {
+				for (int l = 0; l < DIM; l++) {
+					covariance.set(k, l, moments[k][l]/total - sums[k]*sums[l]/(total*total));
+				}
+				offset2 += sums[k]*sums[k]/(total*total);
+			}
+			// ascending eigenvalues
+			double[] lambda = covariance.eig().getRealEigenvalues();
+			Arrays.sort(lambda);
+			double trace = Math.max(lambda[0] + lambda[1] + lambda[2], Double.MIN_NORMAL);
+			int at = offset + FEATURES*s;
+			out[at] = Math.max(lambda[0], 0)/trace;
+			out[at + 1] = lambda[1]/trace;
+			out[at + 2] = Math.sqrt(offset2)/this.radii[s];
+			out[at + 3] = Math.sqrt(trace)/this.radii[s];
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the mesh vertices with the nearest descriptors, nearest first
+	 */
+	private void nearestDescriptors(double[] descriptor, int[] out, int offset, double[] distances) {
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
+		int numVertices = this.descriptors.length/DESCRIPTOR_SIZE;
+		for (int v = 0; v < numVertices; v++) {
+			double d2 = 0;
+			for (int f = 0; f < DESCRIPTOR_SIZE; f++) {
+				double d = this.descriptors[DESCRIPTOR_SIZE*v + f] - descriptor[f];
+				d2 += d*d;
+			}
+			// insertion into the short sorted list
+			int at = distances.length;
+			while (at > 0 && d2 < distances[at - 1]) {
+				at--;
+			}
+			if (at == distances.length) {
+				continue;
+			}
+			for (int m = distances.length - 1; m > at; m--) {
+				distances[m] = distances[m - 1];
+				out[offset + m] = out[offset + m - 1];
+			}
+			distances[at] = d2;
+			out[offset + at] = v;
+		}
+	}
+
+	/**
+	 * Draws three distinct matched points whose distances all reach a minimum
+	 */
+	private static boolean drawTriple(double[] source, boolean[] matched, int n, double minSide, Random random,
+			int[] triple) {
+		for (int draw = 0; draw < MAX_DRAWS; draw++) {
+			int p = random.nextInt(n), q = random.nextInt(n), r = random.nextInt(n);
+			if (!matched[p] || !matched[q] || !matched[r]) {
+				continue;
+			}
+			if (distance(source, p, source, q) >= minSide && distance(source, p, source, r) >= minSide
+					&& distance(source, q, source, r) >= minSide) {
+				triple[0] = p;
+				triple[1] = q;
+				triple[2] = r;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the rigid registration that takes the orthonormal frame of the
+	 * triangle p, q, r onto that of the triangle a, b, c, with the centroids matched
+	 * @return false if either triangle is too thin for a frame
+	 */
+	private static boolean triad(double[] source, int p, int q, int r, double[] target, int a, int b, int c,
+			double[] rotation, double[] translation) {
+		double[] e = new double[DIM*DIM], f = new double[DIM*DIM];
+		if (!orthonormalFrame(source, p, q, r, e) || !orthonormalFrame(target, a, b, c, f)) {
+			return false;
+		}
+		// R = F E^T with the frame axes as columns
+		for (int row = 0; row < DIM; row++) {
+			for (int col = 0; col < DIM; col++) {
+				double sum = 0;
+				for (int k = 0; k < DIM; k++) {
+					sum += f[DIM*k + row]*e[DIM*k + col];
+				}
+				rotation[DIM*row + col] = sum;
+			}
+		}
+		double[] centroid = new double[DIM];
+		for (int k = 0; k < DIM; k++) {
+			centroid[k] = (source[DIM*p + k] + source[DIM*q + k] + source[DIM*r + k])/DIM;
+		}
+		for (int k = 0; k < DIM; k++) {
+			double rotated = rotation[DIM*k]*centroid[0] + rotation[DIM*k + 1]*centroid[1]
+					+ rotation[DIM*k + 2]*centroid[2];
+			translation[k] = (target[DIM*a + k] + target[DIM*b + k] + target[DIM*c + k])/DIM - rotated;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the axes of a triangle's frame, one after another: along the first
+	 * edge, in the plane, and along the normal
+	 */
+	private static boolean orthonormalFrame(double[] points, int p, int q, int r, double[] axes) {
+		double[] u = new double[DIM], w = new double[DIM];
+		for (int k = 0; k < DIM; k++) {
+			u[k] = points[DIM*q + k] - points[DIM*p + k];
+			w[k] = points[DIM*r + k] - points[DIM*p + k];
+		}
+		double[] normal = {u[1]*w[2] - u[2]*w[1], u[2]*w[0] - u[0]*w[2], u[0]*w[1] - u[1]*w[0]};
+		double ul = Math.sqrt(u[0]*u[0] + u[1]*u[1] + u[2]*u[2]);
+		double nl = Math.sqrt(normal[0]*normal[0] + normal[1]*normal[1] + normal[2]*normal[2]);
+		if (!(nl > 1e-6*ul*ul)) {
+			return false;
+		}
+		for (int k = 0; k < DIM; k++) {
+			axes[k] = u[k]/ul;
+			axes[2*DIM + k] = normal[k]/nl;
+		}
+		axes[DIM] = axes[2*DIM + 1]*axes[2] - axes[2*DIM + 2]*axes[1];
+		axes[DIM + 1] = axes[2*DIM + 2]*axes[0] - axes[2*DIM]*axes[2];
+		axes[DIM + 2] = axes[2*DIM]*axes[1] - axes[2*DIM + 1]*axes[0];
+		return true;
+	}
+
+	private static Frame toFrame(double[] rotation, double[] translation) {
+		Matrix R = new Matrix(DIM, DIM);
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				R.set(r, c, rotation[DIM*r + c]);
+			}
+		}
+		return new Frame(R, new ColumnVector(translation.clone()));
+	}
+
+	private static void fromFrame(Frame frame, double[] rotation, double[] translation) {
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				rotation[DIM*r + c] = frame.getRotationMatrix().get(r, c);
+			}
+			translation[r] = frame.getTranslationVector().get(r);
+		}
+	}
+
+	private static double transform(double[] rotation, double[] translation, double[] points, int i, int k) {
+		return rotation[DIM*k]*points[DIM*i] + rotation[DIM*k + 1]*points[DIM*i + 1]
+				+ rotation[DIM*k + 2]*points[DIM*i + 2] + translation[k];
+	}
+
+	private static double distance(double[] a, int i, double[] b, int j) {
+		double dx = a[DIM*i] - b[DIM*j], dy = a[DIM*i + 1] - b[DIM*j + 1], dz = a[DIM*i + 2] - b[DIM*j + 2];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+}
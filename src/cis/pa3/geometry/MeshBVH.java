@@ -0,0 +1,561 @@
+package cis.pa3.geometry;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * An axis-aligned bounding box hierarchy over the triangles of a mesh.
+ * Nodes are stored in flat arrays; a closest point query walks the tree
+ * front-to-back and prunes every box that is farther away than the best
+ * point found so far.
+ *
+ * A hierarchy can be saved to a binary file and memory mapped again by later
+ * runs on the same mesh, which skips the build.
+ */
+public class MeshBVH implements MeshIndex {
+	private static final int DIM = 3;
+	public static final int DEFAULT_LEAF_SIZE = 4;
+	private static final int SAH_BINS = 16;
+	private static final int FILE_MAGIC = 0x50413342;
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+
+	/**
+	 * The strategy used to split a node into two children
+	 */
+	public enum SplitMethod {
+		MEDIAN, SAH
+	}
+
+	private final Mesh mesh;
+	private final PackedMesh packed;
+	private final TriangleTable table;
+	private TriangleLanes lanes;
+	private final int leafSize;
+	private final SplitMethod splitMethod;
+	private double[] triBounds, centroids;
+	private int[] triIndices;
+	/** the position of each triangle in the leaf order, the inverse of triIndices */
+	private int[] positions;
+	private double[] nodeBounds;
+	private int[] nodeLeft, nodeRight, nodeStart, nodeCount;
+	private int numNodes, maxDepth;
+	private final ThreadLocal<QueryScratch> scratch = QueryScratch.perThread();
+
+	/**
+	 * Builds a hierarchy with the default leaf size and surface area heuristic splits
+	 * @param mesh the mesh to index
+	 */
+	public MeshBVH(Mesh mesh) {
+		this(mesh, DEFAULT_LEAF_SIZE, SplitMethod.SAH);
+	}
+	/**
+	 * Builds a hierarchy over the triangles of the mesh
+	 * @param mesh the mesh to index
+	 * @param leafSize the maximum number of triangles in a leaf
+	 * @param splitMethod how interior nodes are split
+	 */
+	public MeshBVH(Mesh mesh, int leafSize, SplitMethod splitMethod) {
+		if (leafSize < 1) {
+			throw new IllegalArgumentException("Leaf size must be at least one");
+		}
+		this.mesh = mesh;
+		this.packed = mesh.getPacked();
+		this.table = mesh.getTriangleTable();
+		this.leafSize = leafSize;
+		this.splitMethod = splitMethod;
+		this.build();
+	}
+	/**
+	 * Creates a hierarchy from the nodes and triangle order read by load
+	 */
+	private MeshBVH(Mesh mesh, int leafSize, SplitMethod splitMethod, int depth, double[] nodeBounds,
+			int[] nodeLeft, int[] nodeRight, int[] nodeStart, int[] nodeCount, int[] triIndices) {
+		this.mesh = mesh;
+		this.packed = mesh.getPacked();
+		this.table = mesh.getTriangleTable();
+		this.leafSize = leafSize;
+		this.splitMethod = splitMethod;
+		this.numNodes = nodeCount.length;
+		this.maxDepth = depth;
+		this.nodeBounds = nodeBounds;
+		this.nodeLeft = nodeLeft;
+		this.nodeRight = nodeRight;
+		this.nodeStart = nodeStart;
+		this.nodeCount = nodeCount;
+		this.triIndices = triIndices;
+	}
+	public Mesh getMesh() {
+		return this.mesh;
+	}
+	public int getLeafSize() {
+		return this.leafSize;
+	}
+	public int getNodeCount() {
+		return this.numNodes;
+	}
+	public int getDepth() {
+		return this.maxDepth;
+	}
+
+	/**
+	 * Finds the closest point on the mesh to a source point
+	 * @param source the source point
+	 * @return the closest point on the mesh
+	 */
+	public ColumnVector findClosestPoint(ColumnVector source) {
+		double[] closest = new double[DIM];
+		this.findClosestPoint(source.get(0), source.get(1), source.get(2), closest, 0);
+		return new ColumnVector(closest);
+	}
+	public int findClosestPoint(double px, double py, double pz, double[] out, int offset) {
+		return this.findClosestPoint(px, py, pz, Double.POSITIVE_INFINITY, -1, out, offset);
+	}
+	public int findClosestPoint(double px, double py, double pz, double boundSquared, int excluded,
+			double[] out, int offset) {
+		double best = boundSquared;
+		int bestTriangle = -1;
+		int skip = excluded >= 0 ? this.positions[excluded] : -1;
+		QueryScratch scratch = this.scratch.get();
+		double[] closest = scratch.point;
+		int[] stack = scratch.stack(this.maxDepth + 2);
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (this.boxDistanceSquared(node, px, py, pz) >= best) {
+				continue;
+			}
+			if (this.nodeCount[node] > 0) {
+				int start = this.nodeStart[node];
+				int end = start + this.nodeCount[node];
+				if (skip >= start && skip < end) {
+					// search the runs on either side of the excluded triangle
+					int position = this.lanes.findClosestPoint(start, skip, px, py, pz, best, closest, 0);
+					if (position >= 0) {
+						best = closest[DIM];
+						bestTriangle = this.lanes.getTriangle(position);
+					}
+					start = skip + 1;
+				}
+				int position = this.lanes.findClosestPoint(start, end, px, py, pz, best, closest, 0);
+				if (position >= 0) {
+					best = closest[DIM];
+					bestTriangle = this.lanes.getTriangle(position);
+				}
+			} else {
+				int left = this.nodeLeft[node];
+				int right = this.nodeRight[node];
+				double dl = this.boxDistanceSquared(left, px, py, pz);
+				double dr = this.boxDistanceSquared(right, px, py, pz);
+				// push the farther child first so the nearer one is visited first
+				if (dl <= dr) {
+					if (dr < best) stack[top++] = right;
+					if (dl < best) stack[top++] = left;
+				} else {
+					if (dl < best) stack[top++] = left;
+					if (dr < best) stack[top++] = right;
+				}
+			}
+		}
+		if (bestTriangle >= 0) {
+			System.arraycopy(closest, 0, out, offset, DIM);
+		}
+		return bestTriangle;
+	}
+
+	/**
+	 * Finds every triangle whose closest point lies within a radius of a source point
+	 * @param source the source point
+	 * @param radius the search radius
+	 * @return the indices of the triangles in the mesh's triangle list
+	 */
+	public List<Integer> findTrianglesWithin(ColumnVector source, double radius) {
+		double px = source.get(0), py = source.get(1), pz = source.get(2);
+		double radius2 = radius*radius;
+		List<Integer> found = new ArrayList<>();
+		double[] point = new double[DIM];
+		int[] stack = new int[this.maxDepth + 2];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (this.boxDistanceSquared(node, px, py, pz) > radius2) {
+				continue;
+			}
+			if (this.nodeCount[node] > 0) {
+				int end = this.nodeStart[node] + this.nodeCount[node];
+				for (int i = this.nodeStart[node]; i < end; i++) {
+					if (Utilities.findClosestPointOnTriangle(this.table, this.triIndices[i],
+							px, py, pz, point, 0) <= radius2) {
+						found.add(this.triIndices[i]);
+					}
+				}
+			} else {
+				stack[top++] = this.nodeLeft[node];
+				stack[top++] = this.nodeRight[node];
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Writes the hierarchy to a binary file
+	 * @param path the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String path) throws IOException {
+		int n = this.triIndices.length;
+		long size = HEADER_SIZE + 8L*2*DIM*this.numNodes + 4L*(4L*this.numNodes + n);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The hierarchy is too large for a hierarchy file: " + size + " bytes");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(n).putInt(0);
+		buffer.putLong(this.packed.getChecksum());
+		buffer.putInt(this.leafSize).putInt(this.splitMethod.ordinal()).putInt(this.numNodes).putInt(this.maxDepth);
+		buffer.asDoubleBuffer().put(this.nodeBounds, 0, 2*DIM*this.numNodes);
+		buffer.position(HEADER_SIZE + 8*2*DIM*this.numNodes);
+		buffer.asIntBuffer().put(this.nodeLeft, 0, this.numNodes).put(this.nodeRight, 0, this.numNodes)
+				.put(this.nodeStart, 0, this.numNodes).put(this.nodeCount, 0, this.numNodes).put(this.triIndices);
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(buffer.array());
+		} finally {
+			out.close();
+		}
+	}
+	/**
+	 * Reads a hierarchy written by save through a memory mapping
+	 * @param path the file to read
+	 * @param mesh the mesh the hierarchy was built for
+	 * @return the loaded hierarchy
+	 * @throws IOException if the file cannot be read or was built for another mesh
+	 */
+	public static MeshBVH load(String path, Mesh mesh) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.size() < HEADER_SIZE || buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+				throw new IOException(path + " is not a hierarchy file");
+			}
+			int n = buffer.getInt();
+			buffer.getInt();
+			if (n != mesh.getPacked().getTriangleCount() || buffer.getLong() != mesh.getPacked().getChecksum()) {
+				throw new IOException(path + " was built for a different mesh");
+			}
+			int leafSize = buffer.getInt();
+			int split = buffer.getInt();
+			int nodes = buffer.getInt();
+			if (split < 0 || split >= SplitMethod.values().length || nodes < 1
+					|| channel.size() != HEADER_SIZE + 8L*2*DIM*nodes + 4L*(4L*nodes + n)) {
+				throw new IOException(path + " is truncated");
+			}
+			if (leafSize < 1 || nodes > Math.max(1, 2L*n - 1)) {
+				throw new IOException(path + " has an invalid leaf size or node count");
+			}
+			int depth = buffer.getInt();
+			double[] nodeBounds = new double[2*DIM*nodes];
+			int[] nodeLeft = new int[nodes], nodeRight = new int[nodes], nodeStart = new int[nodes],
+					nodeCount = new int[nodes], triIndices = new int[n];
+			buffer.asDoubleBuffer().get(nodeBounds);
+			buffer.position(HEADER_SIZE + 8*nodeBounds.length);
+			buffer.asIntBuffer().get(nodeLeft).get(nodeRight).get(nodeStart).get(nodeCount).get(triIndices);
+			MeshBVH bvh = new MeshBVH(mesh, leafSize, SplitMethod.values()[split], depth, nodeBounds,
+					nodeLeft, nodeRight, nodeStart, nodeCount, triIndices);
+			bvh.validate(path);
+			bvh.layOutLeaves();
+			return bvh;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Checks a loaded hierarchy so that a corrupt file fails here rather than
+	 * in a query: every node but the root is the child of exactly one node
+	 * before it, every leaf holds a run of the triangle order, that order is a
+	 * permutation of the triangles, and the stored depth is the real one
+	 * @param path the file the hierarchy was read from
+	 * @throws IOException if any of these does not hold
+	 */
+	private void validate(String path) throws IOException {
+		int n = this.triIndices.length;
+		boolean[] seen = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			int tri = this.triIndices[i];
+			if (tri < 0 || tri >= n || seen[tri]) {
+				throw new IOException(path + " has an invalid triangle order");
+			}
+			seen[tri] = true;
+		}
+		int[] depths = new int[this.numNodes];
+		boolean[] reached = new boolean[this.numNodes];
+		reached[0] = true;
+		int deepest = 0;
+		for (int node = 0; node < this.numNodes; node++) {
+			if (!reached[node]) {
+				throw new IOException(path + " has an unreachable node " + node);
+			}
+			deepest = Math.max(deepest, depths[node]);
+			if (this.nodeCount[node] > 0) {
+				if (this.nodeStart[node] < 0 || (long) this.nodeStart[node] + this.nodeCount[node] > n) {
+					throw new IOException(path + " has an invalid leaf " + node);
+				}
+				continue;
+			}
+			if (this.nodeCount[node] < 0) {
+				throw new IOException(path + " has an invalid leaf " + node);
+			}
+			int[] children = {this.nodeLeft[node], this.nodeRight[node]};
+			for (int child : children) {
+				// children come after their parent, so a walk can never loop
+				if (child <= node || child >= this.numNodes || reached[child]) {
+					throw new IOException(path + " has an invalid child of node " + node);
+				}
+				reached[child] = true;
+				depths[child] = depths[node] + 1;
+			}
+		}
+		if (this.maxDepth != deepest) {
+			throw new IOException(path + " has an invalid depth");
+		}
+	}
+
+	/**
+	 * Squared distance from a point to the bounding box of a node;
+	 * zero if the point lies inside the box
+	 */
+	private double boxDistanceSquared(int node, double px, double py, double pz) {
+		int b = 2*DIM*node;
+		double dx = Math.max(0, Math.max(this.nodeBounds[b] - px, px - this.nodeBounds[b + 3]));
+		double dy = Math.max(0, Math.max(this.nodeBounds[b + 1] - py, py - this.nodeBounds[b + 4]));
+		double dz = Math.max(0, Math.max(this.nodeBounds[b + 2] - pz, pz - this.nodeBounds[b + 5]));
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	private void build() {
+		int n = this.packed.getTriangleCount();
+		if (n == 0) {
+			throw new IllegalArgumentException("Cannot index an empty mesh");
+		}
+		this.triBounds = new double[2*DIM*n];
+		this.centroids = new double[DIM*n];
+		this.triIndices = new int[n];
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < DIM; k++) {
+				double v0 = this.packed.getCoordinate(i, 0, k);
+				double v1 = this.packed.getCoordinate(i, 1, k);
+				double v2 = this.packed.getCoordinate(i, 2, k);
+				double min = Math.min(v0, Math.min(v1, v2));
+				double max = Math.max(v0, Math.max(v1, v2));
+				this.triBounds[2*DIM*i + k] = min;
+				this.triBounds[2*DIM*i + DIM + k] = max;
+				this.centroids[DIM*i + k] = 0.5*(min + max);
+			}
+			this.triIndices[i] = i;
+		}
+		int capacity = 2*n - 1;
+		this.nodeBounds = new double[2*DIM*capacity];
+		this.nodeLeft = new int[capacity];
+		this.nodeRight = new int[capacity];
+		this.nodeStart = new int[capacity];
+		this.nodeCount = new int[capacity];
+		this.numNodes = 0;
+		this.maxDepth = 0;
+		this.buildNode(0, n, 0);
+		// the centroids are only needed while splitting
+		this.centroids = null;
+		this.layOutLeaves();
+	}
+	private void layOutLeaves() {
+		int n = this.triIndices.length;
+		// store the triangles in leaf order so every leaf is one run of lanes
+		this.lanes = new TriangleLanes(this.table, this.triIndices);
+		this.positions = new int[n];
+		for (int i = 0; i < n; i++) {
+			this.positions[this.triIndices[i]] = i;
+		}
+	}
+
+	/**
+	 * Recursively builds the node covering triIndices[start, end)
+	 * @return the index of the new node
+	 */
+	private int buildNode(int start, int end, int depth) {
+		int node = this.numNodes++;
+		this.maxDepth = Math.max(this.maxDepth, depth);
+		int b = 2*DIM*node;
+		for (int k = 0; k < DIM; k++) {
+			this.nodeBounds[b + k] = Double.POSITIVE_INFINITY;
+			this.nodeBounds[b + DIM + k] = Double.NEGATIVE_INFINITY;
+		}
+		double[] centroidMin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		double[] centroidMax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for (int i = start; i < end; i++) {
+			int tri = this.triIndices[i];
+			for (int k = 0; k < DIM; k++) {
+				this.nodeBounds[b + k] = Math.min(this.nodeBounds[b + k], this.triBounds[2*DIM*tri + k]);
+				this.nodeBounds[b + DIM + k] = Math.max(this.nodeBounds[b + DIM + k], this.triBounds[2*DIM*tri + DIM + k]);
+				centroidMin[k] = Math.min(centroidMin[k], this.centroids[DIM*tri + k]);
+				centroidMax[k] = Math.max(centroidMax[k], this.centroids[DIM*tri + k]);
+			}
+		}
+		int count = end - start;
+		int axis = 0;
+		for (int k = 1; k < DIM; k++) {
+			if (centroidMax[k] - centroidMin[k] > centroidMax[axis] - centroidMin[axis]) {
+				axis = k;
+			}
+		}
+		if (count <= this.leafSize || centroidMax[axis] <= centroidMin[axis]) {
+			this.makeLeaf(node, start, count);
+			return node;
+		}
+		int mid = -1;
+		if (this.splitMethod == SplitMethod.SAH) {
+			mid = this.splitSAH(start, end, axis, centroidMin[axis], centroidMax[axis]);
+		}
+		if (mid < 0) {
+			mid = (start + end)/2;
+			this.select(start, end - 1, mid, axis);
+		}
+		this.nodeCount[node] = 0;
+		this.nodeLeft[node] = this.buildNode(start, mid, depth + 1);
+		this.nodeRight[node] = this.buildNode(mid, end, depth + 1);
+		return node;
+	}
+
+	private void makeLeaf(int node, int start, int count) {
+		this.nodeStart[node] = start;
+		this.nodeCount[node] = count;
+		this.nodeLeft[node] = -1;
+		this.nodeRight[node] = -1;
+	}
+
+	/**
+	 * Partitions triIndices[start, end) with a binned surface area heuristic
+	 * @return the first index of the right partition, or -1 if no useful split was found
+	 */
+	private int splitSAH(int start, int end, int axis, double cmin, double cmax) {
+		int[] binCount = new int[SAH_BINS];
+		double[] binBounds = new double[2*DIM*SAH_BINS];
+		for (int i = 0; i < SAH_BINS; i++) {
+			for (int k = 0; k < DIM; k++) {
+				binBounds[2*DIM*i + k] = Double.POSITIVE_INFINITY;
+				binBounds[2*DIM*i + DIM + k] = Double.NEGATIVE_INFINITY;
+			}
+		}
+		double scale = SAH_BINS/(cmax - cmin);
+		for (int i = start; i < end; i++) {
+			int tri = this.triIndices[i];
+			int bin = this.binOf(tri, axis, cmin, scale);
+			binCount[bin]++;
+			for (int k = 0; k < DIM; k++) {
+				binBounds[2*DIM*bin + k] = Math.min(binBounds[2*DIM*bin + k], this.triBounds[2*DIM*tri + k]);
+				binBounds[2*DIM*bin + DIM + k] = Math.max(binBounds[2*DIM*bin + DIM + k], this.triBounds[2*DIM*tri + DIM + k]);
+			}
+		}
+		// sweep from the right to accumulate the cost of every right partition
+		double[] rightArea = new double[SAH_BINS];
+		int[] rightCount = new int[SAH_BINS];
+		double[] box = emptyBox();
+		int sum = 0;
+		for (int i = SAH_BINS - 1; i > 0; i--) {
+			growBox(box, binBounds, i);
+			sum += binCount[i];
+			rightArea[i] = surfaceArea(box);
+			rightCount[i] = sum;
+		}
+		box = emptyBox();
+		sum = 0;
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestBin = -1;
+		for (int i = 0; i < SAH_BINS - 1; i++) {
+			growBox(box, binBounds, i);
+			sum += binCount[i];
+			if (sum == 0 || rightCount[i + 1] == 0) {
+				continue;
+			}
+			double cost = sum*surfaceArea(box) + rightCount[i + 1]*rightArea[i + 1];
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestBin = i;
+			}
+		}
+		if (bestBin < 0) {
+			return -1;
+		}
+		// partition in place around the chosen bin boundary
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (this.binOf(this.triIndices[i], axis, cmin, scale) <= bestBin) {
+				i++;
+			} else {
+				int tmp = this.triIndices[i];
+				this.triIndices[i] = this.triIndices[j];
+				this.triIndices[j--] = tmp;
+			}
+		}
+		return (i == start || i == end) ? -1 : i;
+	}
+
+	private int binOf(int tri, int axis, double cmin, double scale) {
+		int bin = (int) ((this.centroids[DIM*tri + axis] - cmin)*scale);
+		return Math.min(SAH_BINS - 1, Math.max(0, bin));
+	}
+
+	/**
+	 * Quickselect on triIndices[lo, hi] so that the k-th element is in its
+	 * sorted position along the axis
+	 */
+	private void select(int lo, int hi, int k, int axis) {
+		while (lo < hi) {
+			double pivot = this.centroids[DIM*this.triIndices[(lo + hi) >>> 1] + axis];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (this.centroids[DIM*this.triIndices[i] + axis] < pivot) i++;
+				while (this.centroids[DIM*this.triIndices[j] + axis] > pivot) j--;
+				if (i <= j) {
+					int tmp = this.triIndices[i];
+					this.triIndices[i++] = this.triIndices[j];
+					this.triIndices[j--] = tmp;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static double[] emptyBox() {
+		return new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+	}
+	private static void growBox(double[] box, double[] bounds, int index) {
+		for (int k = 0; k < DIM; k++) {
+			box[k] = Math.min(box[k], bounds[2*DIM*index + k]);
+			box[DIM + k] = Math.max(box[DIM + k], bounds[2*DIM*index + DIM + k]);
+		}
+	}
+	private static double surfaceArea(double[] box) {
+		double dx = box[3] - box[0], dy = box[4] - box[1], dz = box[5] - box[2];
+		return 2*(dx*dy + dy*dz + dz*dx);
+	}
+}
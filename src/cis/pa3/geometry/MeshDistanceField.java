@@ -0,0 +1,497 @@
+package cis.pa3.geometry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * A sparse distance field around a mesh. Space is split into bricks of
+ * BRICK^3 cells and only the bricks near the surface are stored. Every cell
+ * within the band keeps its distance to the mesh and the short list of
+ * triangles that can contain the closest point of any point in the cell, so
+ * a query only runs the point-triangle test on those few candidates. Queries
+ * outside the band fall back to the bounding volume hierarchy.
+ *
+ * The field can be saved to disk and loaded again by later runs on the same mesh.
+ */
+public class MeshDistanceField implements MeshIndex {
+	private static final int DIM = 3;
+	private static final int BRICK = 8;
+	private static final int BRICK_CELLS = BRICK*BRICK*BRICK;
+	// cells with more candidates than this fall back to the hierarchy
+	public static final int MAX_CANDIDATES = 32;
+	// default cell size and band width relative to the average triangle extent
+	private static final double DEFAULT_CELL_SCALE = 1.0, DEFAULT_BAND_SCALE = 2.0;
+	private static final int FILE_MAGIC = 0x50413346;
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * The cells of one stored brick
+	 */
+	private static class Brick {
+		private final float[] distances = new float[BRICK_CELLS];
+		// the candidates of cell c are candidates[start[c], start[c + 1]);
+		// an empty list means the cell is outside the band or has too many candidates
+		private final int[] start = new int[BRICK_CELLS + 1];
+		private int[] candidates;
+	}
+
+	private final MeshBVH bvh;
+	private final Mesh mesh;
+	private final PackedMesh packed;
+	private final TriangleTable table;
+	private final double cellSize, bandWidth;
+	private final double[] origin = new double[DIM];
+	private final int[] brickDims = new int[DIM];
+	private final ThreadLocal<QueryScratch> scratch = QueryScratch.perThread();
+	private Brick[] bricks;
+
+	/**
+	 * Builds a field with cell size and band width picked from the triangle sizes
+	 * @param bvh the hierarchy of the mesh, used while building and as the fallback
+	 */
+	public MeshDistanceField(MeshBVH bvh) {
+		this(bvh, DEFAULT_CELL_SCALE*averageExtent(bvh.getMesh()),
+				DEFAULT_BAND_SCALE*averageExtent(bvh.getMesh()));
+	}
+	/**
+	 * Builds a field using all available processors
+	 * @param bvh the hierarchy of the mesh, used while building and as the fallback
+	 * @param cellSize the edge length of a cell
+	 * @param bandWidth the distance from the surface up to which cells are stored
+	 */
+	public MeshDistanceField(MeshBVH bvh, double cellSize, double bandWidth) {
+		this(bvh, cellSize, bandWidth, Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * Builds a field on the given number of threads
+	 * @param bvh the hierarchy of the mesh, used while building and as the fallback
+	 * @param cellSize the edge length of a cell
+	 * @param bandWidth the distance from the surface up to which cells are stored
+	 * @param threads the number of threads used to build the bricks
+	 */
+	public MeshDistanceField(MeshBVH bvh, double cellSize, double bandWidth, int threads) {
+		if (cellSize <= 0 || bandWidth < 0 || threads < 1) {
+			throw new IllegalArgumentException("Invalid distance field parameters");
+		}
+		this.bvh = bvh;
+		this.mesh = bvh.getMesh();
+		this.packed = this.mesh.getPacked();
+		this.table = this.mesh.getTriangleTable();
+		this.cellSize = cellSize;
+		this.bandWidth = bandWidth;
+		this.build(threads);
+	}
+	/**
+	 * Creates a field from the layout and bricks read by load
+	 */
+	private MeshDistanceField(MeshBVH bvh, double cellSize, double bandWidth, double[] origin, int[] brickDims,
+			Brick[] bricks) {
+		this.bvh = bvh;
+		this.mesh = bvh.getMesh();
+		this.packed = this.mesh.getPacked();
+		this.table = this.mesh.getTriangleTable();
+		this.cellSize = cellSize;
+		this.bandWidth = bandWidth;
+		System.arraycopy(origin, 0, this.origin, 0, DIM);
+		System.arraycopy(brickDims, 0, this.brickDims, 0, DIM);
+		this.bricks = bricks;
+	}
+
+	public Mesh getMesh() {
+		return this.mesh;
+	}
+	public double getCellSize() {
+		return this.cellSize;
+	}
+	public double getBandWidth() {
+		return this.bandWidth;
+	}
+	public int getBrickCount() {
+		int count = 0;
+		for (Brick brick : this.bricks) {
+			if (brick != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the closest point on the mesh to a source point
+	 * @param source the source point
+	 * @return the closest point on the mesh
+	 */
+	public ColumnVector findClosestPoint(ColumnVector source) {
+		double[] closest = new double[DIM];
+		this.findClosestPoint(source.get(0), source.get(1), source.get(2), closest, 0);
+		return new ColumnVector(closest);
+	}
+	public int findClosestPoint(double px, double py, double pz, double[] out, int offset) {
+		return this.findClosestPoint(px, py, pz, Double.POSITIVE_INFINITY, -1, out, offset);
+	}
+	public int findClosestPoint(double px, double py, double pz, double boundSquared, int excluded,
+			double[] out, int offset) {
+		int[] coords = this.scratch.get().cell;
+		Brick brick = this.locate(px, py, pz, coords) ? this.bricks[this.brickIndex(coords)] : null;
+		int cell = brick == null ? 0 : localCell(coords);
+		// the candidates of a cell always hold its closest triangle but not
+		// necessarily the runner-up, so exclusions go to the hierarchy
+		if (brick == null || brick.start[cell] == brick.start[cell + 1] || excluded >= 0) {
+			return this.bvh.findClosestPoint(px, py, pz, boundSquared, excluded, out, offset);
+		}
+		double best = boundSquared;
+		int bestTriangle = -1;
+		double[] point = this.scratch.get().point;
+		for (int i = brick.start[cell]; i < brick.start[cell + 1]; i++) {
+			double dist = Utilities.findClosestPointOnTriangle(this.table, brick.candidates[i],
+					px, py, pz, point, 0);
+			if (dist < best) {
+				best = dist;
+				bestTriangle = brick.candidates[i];
+				System.arraycopy(point, 0, out, offset, DIM);
+			}
+		}
+		return bestTriangle;
+	}
+
+	/**
+	 * Returns the stored distance of the cell containing the source point,
+	 * or the exact distance to the mesh if the point is outside the band
+	 * @param source the source point
+	 * @return the approximate distance to the mesh
+	 */
+	public double getDistance(ColumnVector source) {
+		int[] coords = this.scratch.get().cell;
+		Brick brick = this.locate(source.get(0), source.get(1), source.get(2), coords)
+				? this.bricks[this.brickIndex(coords)] : null;
+		int cell = brick == null ? 0 : localCell(coords);
+		if (brick == null || brick.start[cell] == brick.start[cell + 1]) {
+			return source.minus(this.bvh.findClosestPoint(source)).magnitude();
+		}
+		return brick.distances[cell];
+	}
+
+	/**
+	 * Finds the cell containing the point over the whole field, so that its
+	 * brick and its place within the brick both follow from the same numbers
+	 * @param cell receives the cell coordinates
+	 * @return false if the point lies outside the bricks
+	 */
+	private boolean locate(double px, double py, double pz, int[] cell) {
+		for (int k = 0; k < DIM; k++) {
+			double offset = Math.floor((coordinate(px, py, pz, k) - this.origin[k])/this.cellSize);
+			if (!(offset >= 0 && offset < (double) this.brickDims[k]*BRICK)) {
+				return false;
+			}
+			cell[k] = (int) offset;
+		}
+		return true;
+	}
+	/**
+	 * Returns the index of the brick holding a cell
+	 */
+	private int brickIndex(int[] cell) {
+		return ((cell[0]/BRICK)*this.brickDims[1] + cell[1]/BRICK)*this.brickDims[2] + cell[2]/BRICK;
+	}
+	/**
+	 * Returns the index of a cell within its brick
+	 */
+	private static int localCell(int[] cell) {
+		return ((cell[0] % BRICK)*BRICK + cell[1] % BRICK)*BRICK + cell[2] % BRICK;
+	}
+
+	/**
+	 * Returns coordinate k of a point
+	 */
+	private static double coordinate(double px, double py, double pz, int k) {
+		return k == 0 ? px : k == 1 ? py : pz;
+	}
+
+	private void build(int threads) {
+		double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		double[] vertices = this.packed.getVertices();
+		for (int i = 0; i < vertices.length; i++) {
+			min[i % DIM] = Math.min(min[i % DIM], vertices[i]);
+			max[i % DIM] = Math.max(max[i % DIM], vertices[i]);
+		}
+		double brickSize = this.cellSize*BRICK;
+		for (int k = 0; k < DIM; k++) {
+			this.origin[k] = min[k] - this.bandWidth;
+			this.brickDims[k] = Math.max(1, (int) Math.ceil((max[k] - min[k] + 2*this.bandWidth)/brickSize));
+		}
+		int numBricks = this.brickDims[0]*this.brickDims[1]*this.brickDims[2];
+		this.bricks = new Brick[numBricks];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Brick>> futures = new ArrayList<>();
+			for (int b = 0; b < numBricks; b++) {
+				final int index = b;
+				futures.add(pool.submit(new Callable<Brick>() {
+					public Brick call() {
+						return buildBrick(index);
+					}
+				}));
+			}
+			for (int b = 0; b < numBricks; b++) {
+				this.bricks[b] = futures.get(b).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while building the distance field", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to build the distance field", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Computes the cells of one brick
+	 * @return the brick, or null if none of its cells lies within the band
+	 */
+	private Brick buildBrick(int index) {
+		int[] brickCoords = {index/(this.brickDims[1]*this.brickDims[2]),
+				(index/this.brickDims[2]) % this.brickDims[1], index % this.brickDims[2]};
+		double brickSize = this.cellSize*BRICK;
+		double[] corner = new double[DIM];
+		double[] center = new double[DIM];
+		for (int k = 0; k < DIM; k++) {
+			corner[k] = this.origin[k] + brickCoords[k]*brickSize;
+			center[k] = corner[k] + 0.5*brickSize;
+		}
+		double brickRadius = 0.5*Math.sqrt(DIM)*brickSize;
+		ColumnVector brickCenter = new ColumnVector(center);
+		if (brickCenter.minus(this.bvh.findClosestPoint(brickCenter)).magnitude() > this.bandWidth + brickRadius) {
+			return null;
+		}
+		// any point in a cell is within cellRadius of its center, so the closest
+		// triangle of the point is within 2*cellRadius of the center's distance
+		double cellRadius = 0.5*Math.sqrt(DIM)*this.cellSize;
+		Brick brick = new Brick();
+		List<Integer> candidates = new ArrayList<>();
+		boolean active = false;
+		for (int c = 0; c < BRICK_CELLS; c++) {
+			int[] cellCoords = {c/(BRICK*BRICK), (c/BRICK) % BRICK, c % BRICK};
+			double[] cellCenter = new double[DIM];
+			for (int k = 0; k < DIM; k++) {
+				cellCenter[k] = corner[k] + (cellCoords[k] + 0.5)*this.cellSize;
+			}
+			ColumnVector point = new ColumnVector(cellCenter);
+			double distance = point.minus(this.bvh.findClosestPoint(point)).magnitude();
+			brick.distances[c] = (float) distance;
+			brick.start[c] = candidates.size();
+			if (distance <= this.bandWidth) {
+				List<Integer> near = this.bvh.findTrianglesWithin(point, distance + 2*cellRadius);
+				if (near.size() <= MAX_CANDIDATES) {
+					candidates.addAll(near);
+					active = true;
+				}
+			}
+		}
+		if (!active) {
+			return null;
+		}
+		brick.start[BRICK_CELLS] = candidates.size();
+		brick.candidates = new int[candidates.size()];
+		for (int i = 0; i < brick.candidates.length; i++) {
+			brick.candidates[i] = candidates.get(i);
+		}
+		return brick;
+	}
+
+	/**
+	 * Writes the field to a binary file, through a temporary file next to it
+	 * that replaces it once complete
+	 * @param path the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String path) throws IOException {
+		// write to a temporary file first so that a reader never sees half a field
+		File file = new File(path);
+		File temporary = new File(path + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(this.packed.getTriangleCount());
+			out.writeLong(this.packed.getChecksum());
+			out.writeDouble(this.cellSize);
+			out.writeDouble(this.bandWidth);
+			for (int k = 0; k < DIM; k++) {
+				out.writeDouble(this.origin[k]);
+				out.writeInt(this.brickDims[k]);
+			}
+			out.writeInt(this.getBrickCount());
+			for (int b = 0; b < this.bricks.length; b++) {
+				Brick brick = this.bricks[b];
+				if (brick == null) {
+					continue;
+				}
+				out.writeInt(b);
+				for (int c = 0; c < BRICK_CELLS; c++) {
+					out.writeFloat(brick.distances[c]);
+				}
+				for (int c = 0; c <= BRICK_CELLS; c++) {
+					out.writeInt(brick.start[c]);
+				}
+				for (int i = 0; i < brick.candidates.length; i++) {
+					out.writeInt(brick.candidates[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Cannot move " + temporary + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads a field written by save
+	 * @param path the file to read
+	 * @param bvh the hierarchy of the mesh the field was built for
+	 * @return the loaded field
+	 * @throws IOException if the file cannot be read or was built for another mesh
+	 */
+	public static MeshDistanceField load(String path, MeshBVH bvh) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				throw new IOException(path + " is not a distance field file");
+			}
+			PackedMesh packed = bvh.getMesh().getPacked();
+			if (in.readInt() != packed.getTriangleCount() || in.readLong() != packed.getChecksum()) {
+				throw new IOException(path + " was built for a different mesh");
+			}
+			double cellSize = in.readDouble();
+			double bandWidth = in.readDouble();
+			if (!(cellSize > 0) || !(bandWidth >= 0) || Double.isInfinite(cellSize)) {
+				throw new IOException(path + " has an invalid cell size or band width");
+			}
+			double[] origin = new double[DIM];
+			int[] brickDims = new int[DIM];
+			long numBricks = 1;
+			for (int k = 0; k < DIM; k++) {
+				origin[k] = in.readDouble();
+				brickDims[k] = in.readInt();
+				if (brickDims[k] < 1 || Double.isNaN(origin[k]) || Double.isInfinite(origin[k])) {
+					throw new IOException(path + " has invalid brick dimensions");
+				}
+				numBricks *= brickDims[k];
+				if (numBricks > Integer.MAX_VALUE
+						|| (long) brickDims[k]*BRICK > Integer.MAX_VALUE) {
+					throw new IOException(path + " has invalid brick dimensions");
+				}
+			}
+			Brick[] bricks = new Brick[(int) numBricks];
+			int count = in.readInt();
+			if (count < 0 || count > numBricks) {
+				throw new IOException(path + " has an invalid brick count");
+			}
+			int triangles = packed.getTriangleCount();
+			for (int i = 0; i < count; i++) {
+				Brick brick = new Brick();
+				int b = in.readInt();
+				if (b < 0 || b >= numBricks || bricks[b] != null) {
+					throw new IOException(path + " has an invalid brick index " + b);
+				}
+				for (int c = 0; c < BRICK_CELLS; c++) {
+					brick.distances[c] = in.readFloat();
+				}
+				for (int c = 0; c <= BRICK_CELLS; c++) {
+					brick.start[c] = in.readInt();
+					// the lists follow each other, none longer than a cell may hold
+					if (c == 0 ? brick.start[c] != 0 : brick.start[c] < brick.start[c - 1]
+							|| brick.start[c] - brick.start[c - 1] > MAX_CANDIDATES) {
+						throw new IOException(path + " has invalid candidate offsets in brick " + b);
+					}
+				}
+				brick.candidates = new int[brick.start[BRICK_CELLS]];
+				for (int j = 0; j < brick.candidates.length; j++) {
+					brick.candidates[j] = in.readInt();
+					if (brick.candidates[j] < 0 || brick.candidates[j] >= triangles) {
+						throw new IOException(path + " has an invalid candidate triangle in brick " + b);
+					}
+				}
+				bricks[b] = brick;
+			}
+			return new MeshDistanceField(bvh, cellSize, bandWidth, origin, brickDims, bricks);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the field with the default cell size and band width from a file,
+	 * or builds it and saves it there
+	 * @param path the file to read or write
+	 * @param bvh the hierarchy of the mesh
+	 * @return the field
+	 * @throws IOException if a new field cannot be saved
+	 */
+	public static MeshDistanceField loadOrBuild(String path, MeshBVH bvh) throws IOException {
+		double extent = averageExtent(bvh.getMesh());
+		return loadOrBuild(path, bvh, DEFAULT_CELL_SCALE*extent, DEFAULT_BAND_SCALE*extent);
+	}
+	/**
+	 * Loads the field from a file if it was built for this mesh with the same
+	 * parameters; otherwise builds it and saves it to the file for later runs
+	 * @param path the file to read or write
+	 * @param bvh the hierarchy of the mesh
+	 * @param cellSize the edge length of a cell
+	 * @param bandWidth the distance from the surface up to which cells are stored
+	 * @return the field
+	 * @throws IOException if a new field cannot be saved
+	 */
+	public static MeshDistanceField loadOrBuild(String path, MeshBVH bvh, double cellSize, double bandWidth)
+			throws IOException {
+		if (new File(path).isFile()) {
+			try {
+				MeshDistanceField field = load(path, bvh);
+				if (field.cellSize == cellSize && field.bandWidth == bandWidth) {
+					return field;
+				}
+			} catch (IOException e) {
+				System.err.println("Rebuilding distance field: " + e.getMessage());
+			}
+		}
+		MeshDistanceField field = new MeshDistanceField(bvh, cellSize, bandWidth);
+		field.save(path);
+		return field;
+	}
+
+	/**
+	 * Average extent of the triangle bounding boxes of a mesh
+	 */
+	private static double averageExtent(Mesh mesh) {
+		PackedMesh packed = mesh.getPacked();
+		double extent = 0;
+		for (int i = 0; i < packed.getTriangleCount(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				double v0 = packed.getCoordinate(i, 0, k), v1 = packed.getCoordinate(i, 1, k), v2 = packed.getCoordinate(i, 2, k);
+				extent += Math.max(v0, Math.max(v1, v2)) - Math.min(v0, Math.min(v1, v2));
+			}
+		}
+		return extent/(DIM*packed.getTriangleCount());
+	}
+}
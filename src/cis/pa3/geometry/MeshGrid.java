@@ -0,0 +1,250 @@
+package cis.pa3.geometry;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * A uniform voxel grid over the triangles of a mesh. Every triangle is binned
+ * into each cell its bounding box overlaps. A closest point query searches
+ * outward from the cell of the source point in growing shells of cells until
+ * no remaining cell can be closer than the best point found so far.
+ */
+public class MeshGrid implements MeshIndex {
+	private static final int DIM = 3;
+	// cell size relative to the average triangle extent when no cell size is given
+	public static final double DEFAULT_CELL_SCALE = 2.0;
+	private static final int MAX_CELLS_PER_AXIS = 256;
+
+	private final Mesh mesh;
+	private final PackedMesh packed;
+	private final TriangleTable table;
+	private final double[] origin = new double[DIM];
+	private final int[] dims = new int[DIM];
+	private final ThreadLocal<QueryScratch> scratch = QueryScratch.perThread();
+	private double cellSize;
+	// cell c holds cellTriangles[cellStart[c], cellStart[c + 1])
+	private int[] cellStart, cellTriangles;
+
+	/**
+	 * Builds a grid with cells about twice the average triangle extent
+	 * @param mesh the mesh to index
+	 */
+	public MeshGrid(Mesh mesh) {
+		this(mesh, 0);
+	}
+	/**
+	 * Builds a grid of cubic cells over the mesh
+	 * @param mesh the mesh to index
+	 * @param cellSize the edge length of a cell, or zero to pick one from the mesh size
+	 */
+	public MeshGrid(Mesh mesh, double cellSize) {
+		if (cellSize < 0) {
+			throw new IllegalArgumentException("Cell size must not be negative");
+		}
+		this.mesh = mesh;
+		this.packed = mesh.getPacked();
+		this.table = mesh.getTriangleTable();
+		if (this.packed.getTriangleCount() == 0) {
+			throw new IllegalArgumentException("Cannot index an empty mesh");
+		}
+		this.build(cellSize);
+	}
+	public Mesh getMesh() {
+		return this.mesh;
+	}
+	public double getCellSize() {
+		return this.cellSize;
+	}
+	public int getCellCount() {
+		return this.dims[0]*this.dims[1]*this.dims[2];
+	}
+
+	/**
+	 * Finds the closest point on the mesh to a source point
+	 * @param source the source point
+	 * @return the closest point on the mesh
+	 */
+	public ColumnVector findClosestPoint(ColumnVector source) {
+		double[] closest = new double[DIM];
+		this.findClosestPoint(source.get(0), source.get(1), source.get(2), closest, 0);
+		return new ColumnVector(closest);
+	}
+	public int findClosestPoint(double px, double py, double pz, double[] out, int offset) {
+		return this.findClosestPoint(px, py, pz, Double.POSITIVE_INFINITY, -1, out, offset);
+	}
+	public int findClosestPoint(double px, double py, double pz, double boundSquared, int excluded,
+			double[] out, int offset) {
+		QueryScratch scratch = this.scratch.get();
+		double[] p = scratch.query;
+		p[0] = px;
+		p[1] = py;
+		p[2] = pz;
+		int[] center = scratch.cell;
+		for (int k = 0; k < DIM; k++) {
+			center[k] = this.clampCell(k, (int) Math.floor((p[k] - this.origin[k])/this.cellSize));
+		}
+		double best = boundSquared;
+		int bestTriangle = -1;
+		double[] point = scratch.point;
+		for (int r = 0; ; r++) {
+			int i0 = Math.max(0, center[0] - r), i1 = Math.min(this.dims[0] - 1, center[0] + r);
+			int j0 = Math.max(0, center[1] - r), j1 = Math.min(this.dims[1] - 1, center[1] + r);
+			int k0 = Math.max(0, center[2] - r), k1 = Math.min(this.dims[2] - 1, center[2] + r);
+			for (int i = i0; i <= i1; i++) {
+				boolean iFace = Math.abs(i - center[0]) == r;
+				for (int j = j0; j <= j1; j++) {
+					boolean jFace = iFace || Math.abs(j - center[1]) == r;
+					for (int k = k0; k <= k1; k++) {
+						// only visit the cells on the surface of this shell
+						if (!jFace && Math.abs(k - center[2]) != r) {
+							k = (k < center[2] + r) ? center[2] + r - 1 : k;
+							continue;
+						}
+						int cell = (i*this.dims[1] + j)*this.dims[2] + k;
+						if (this.cellStart[cell] == this.cellStart[cell + 1]
+								|| this.cellDistanceSquared(i, j, k, p) >= best) {
+							continue;
+						}
+						for (int t = this.cellStart[cell]; t < this.cellStart[cell + 1]; t++) {
+							if (this.cellTriangles[t] == excluded) {
+								continue;
+							}
+							double dist = Utilities.findClosestPointOnTriangle(this.table, this.cellTriangles[t],
+									p[0], p[1], p[2], point, 0);
+							if (dist < best) {
+								best = dist;
+								bestTriangle = this.cellTriangles[t];
+								System.arraycopy(point, 0, out, offset, DIM);
+							}
+						}
+					}
+				}
+			}
+			if (this.nextShellDistanceSquared(center, r, p) >= best) {
+				break;
+			}
+		}
+		return bestTriangle;
+	}
+
+	/**
+	 * Lower bound on the squared distance from p to any cell of shell r + 1,
+	 * or infinity if the grid has no cells left
+	 */
+	private double nextShellDistanceSquared(int[] center, int r, double[] p) {
+		// a cell of the next shell is beyond the current shell along some axis
+		// and can be no closer than the grid itself along the other two
+		double gridDist = 0;
+		for (int k = 0; k < DIM; k++) {
+			double gridGap = this.gridGap(k, p);
+			gridDist += gridGap*gridGap;
+		}
+		double bound = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < DIM; k++) {
+			double gridGap = this.gridGap(k, p);
+			double others = gridDist - gridGap*gridGap;
+			if (center[k] - r - 1 >= 0) {
+				double gap = Math.max(0, p[k] - (this.origin[k] + (center[k] - r)*this.cellSize));
+				bound = Math.min(bound, gap*gap + others);
+			}
+			if (center[k] + r + 1 < this.dims[k]) {
+				double gap = Math.max(0, this.origin[k] + (center[k] + r + 1)*this.cellSize - p[k]);
+				bound = Math.min(bound, gap*gap + others);
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * Distance from p to the grid along one axis, 0 if p is within its extent
+	 */
+	private double gridGap(int axis, double[] p) {
+		double hi = this.origin[axis] + this.dims[axis]*this.cellSize;
+		return Math.max(0, Math.max(this.origin[axis] - p[axis], p[axis] - hi));
+	}
+
+	private double cellDistanceSquared(int i, int j, int k, double[] p) {
+		double di = this.cellGap(0, i, p), dj = this.cellGap(1, j, p), dk = this.cellGap(2, k, p);
+		return di*di + dj*dj + dk*dk;
+	}
+
+	/**
+	 * Distance from p to a slab of cells along one axis, 0 if p is within it
+	 */
+	private double cellGap(int axis, int index, double[] p) {
+		double lo = this.origin[axis] + index*this.cellSize;
+		return Math.max(0, Math.max(lo - p[axis], p[axis] - lo - this.cellSize));
+	}
+
+	private int clampCell(int axis, int index) {
+		return Math.min(this.dims[axis] - 1, Math.max(0, index));
+	}
+
+	private void build(double size) {
+		int n = this.packed.getTriangleCount();
+		double[] triBounds = new double[2*DIM*n];
+		double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		double extent = 0;
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < DIM; k++) {
+				double v0 = this.packed.getCoordinate(i, 0, k);
+				double v1 = this.packed.getCoordinate(i, 1, k);
+				double v2 = this.packed.getCoordinate(i, 2, k);
+				triBounds[2*DIM*i + k] = Math.min(v0, Math.min(v1, v2));
+				triBounds[2*DIM*i + DIM + k] = Math.max(v0, Math.max(v1, v2));
+				min[k] = Math.min(min[k], triBounds[2*DIM*i + k]);
+				max[k] = Math.max(max[k], triBounds[2*DIM*i + DIM + k]);
+				extent += triBounds[2*DIM*i + DIM + k] - triBounds[2*DIM*i + k];
+			}
+		}
+		if (size == 0) {
+			size = Math.max(DEFAULT_CELL_SCALE*extent/(DIM*n), 1e-9);
+		}
+		// grow the cells if the grid would otherwise be too large
+		for (int k = 0; k < DIM; k++) {
+			size = Math.max(size, (max[k] - min[k])/MAX_CELLS_PER_AXIS);
+		}
+		this.cellSize = size;
+		for (int k = 0; k < DIM; k++) {
+			this.origin[k] = min[k];
+			this.dims[k] = Math.max(1, (int) Math.ceil((max[k] - min[k])/size));
+		}
+		// two passes: count the triangles in each cell, then fill them in
+		int numCells = this.getCellCount();
+		this.cellStart = new int[numCells + 1];
+		int[][] ranges = new int[n][];
+		for (int t = 0; t < n; t++) {
+			int[] range = new int[2*DIM];
+			for (int k = 0; k < DIM; k++) {
+				range[k] = this.clampCell(k, (int) Math.floor((triBounds[2*DIM*t + k] - this.origin[k])/size));
+				range[DIM + k] = this.clampCell(k, (int) Math.floor((triBounds[2*DIM*t + DIM + k] - this.origin[k])/size));
+			}
+			ranges[t] = range;
+			for (int i = range[0]; i <= range[3]; i++) {
+				for (int j = range[1]; j <= range[4]; j++) {
+					for (int k = range[2]; k <= range[5]; k++) {
+						this.cellStart[(i*this.dims[1] + j)*this.dims[2] + k + 1]++;
+					}
+				}
+			}
+		}
+		for (int c = 0; c < numCells; c++) {
+			this.cellStart[c + 1] += this.cellStart[c];
+		}
+		this.cellTriangles = new int[this.cellStart[numCells]];
+		int[] fill = new int[numCells];
+		for (int t = 0; t < n; t++) {
+			int[] range = ranges[t];
+			for (int i = range[0]; i <= range[3]; i++) {
+				for (int j = range[1]; j <= range[4]; j++) {
+					for (int k = range[2]; k <= range[5]; k++) {
+						int cell = (i*this.dims[1] + j)*this.dims[2] + k;
+						this.cellTriangles[this.cellStart[cell] + fill[cell]++] = t;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package cis.pa3.geometry;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Mesh;
+
+/**
+ * A spatial index over the triangles of a mesh that answers closest point queries.
+ * Implementations are built once per mesh and may be queried any number of times.
+ */
+public interface MeshIndex {
+	/**
+	 * Returns the mesh this index was built from
+	 * @return the indexed mesh
+	 */
+	public Mesh getMesh();
+	/**
+	 * Finds the closest point on the indexed mesh to a source point
+	 * @param source the source point
+	 * @return the closest point on the mesh
+	 */
+	public ColumnVector findClosestPoint(ColumnVector source);
+	/**
+	 * Finds the closest point on the indexed mesh to the point p without
+	 * creating any result objects; safe to call from several threads at once
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param out receives the closest point
+	 * @param offset the index in out of the x coordinate
+	 * @return the index of the triangle that holds the closest point
+	 */
+	public int findClosestPoint(double px, double py, double pz, double[] out, int offset);
+	/**
+	 * Finds the closest point to p among the triangles other than one that
+	 * is strictly closer than a bound. Out is only written when such a point exists.
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param boundSquared only points with a squared distance below this are reported
+	 * @param excluded the index of a triangle to skip, or -1 to search them all
+	 * @param out receives the closest point
+	 * @param offset the index in out of the x coordinate
+	 * @return the index of the triangle that holds the closest point, or -1 if none is within the bound
+	 */
+	public int findClosestPoint(double px, double py, double pz, double boundSquared, int excluded,
+			double[] out, int offset);
+}
@@ -0,0 +1,42 @@
+package cis.pa3.geometry;
+
+import java.io.File;
+import java.io.IOException;
+
+import cis.pa3.tools.Mesh;
+
+/**
+ * The kinds of spatial index that can answer closest point queries on a mesh
+ */
+public enum MeshIndexType {
+	BVH, GRID, DISTANCE_FIELD;
+
+	/** where distance fields are saved for later runs on the same mesh */
+	public static final String FIELD_DIRECTORY = "cache";
+
+	/**
+	 * Builds an index of this type over the given mesh
+	 * @param mesh the mesh to index
+	 * @return the new index
+	 */
+	public MeshIndex build(Mesh mesh) {
+		switch (this) {
+		case GRID:
+			return new MeshGrid(mesh);
+		case DISTANCE_FIELD:
+			MeshBVH bvh = new MeshBVH(mesh);
+			// the file is named after the mesh, and load checks it against the mesh too
+			File file = new File(FIELD_DIRECTORY, "field-" + Long.toHexString(mesh.getPacked().getChecksum()) + ".bin");
+			try {
+				file.getParentFile().mkdirs();
+				return MeshDistanceField.loadOrBuild(file.getPath(), bvh);
+			} catch (IOException e) {
+				System.err.println("Could not save the distance field: " + e.getMessage());
+				return new MeshDistanceField(bvh);
+			}
+		case BVH:
+		default:
+			return new MeshBVH(mesh);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package cis.pa3.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import Jama.Matrix;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * Several meshes placed in one scene, each instance by its own rigid frame,
+ * that answers closest point queries over all of them. Each instance keeps the
+ * closest point index of its mesh in the mesh's own coordinates, and a bounding
+ * box hierarchy over the instances' boxes in scene coordinates sits on top. A
+ * query walks the top hierarchy front-to-back, moves the point into the frame
+ * of each instance it cannot prune and asks that instance's index, bounded by
+ * the best distance so far; rigid frames keep distances, so the bound carries
+ * over unchanged.
+ *
+ * Moving an instance only replaces its frame and refits the boxes of the top
+ * hierarchy; no index is rebuilt. Instances may share an index to place one
+ * mesh several times. Queries are safe from several threads at once, but not
+ * while an instance is added or moved.
+ */
+public class MeshScene {
+	private static final int DIM = 3;
+
+	/**
+	 * The closest point in a scene to a query point
+	 */
+	public static class Hit {
+		private final int instance, triangle;
+		private final ColumnVector point;
+		private final double distance;
+
+		private Hit(int instance, int triangle, ColumnVector point, double distance) {
+			this.instance = instance;
+			this.triangle = triangle;
+			this.point = point;
+			this.distance = distance;
+		}
+		/**
+		 * Returns the instance the point lies on
+		 * @return the id addInstance returned for it
+		 */
+		public int getInstance() {
+			return this.instance;
+		}
+		/**
+		 * Returns the triangle the point lies on
+		 * @return the index of the triangle in the instance's mesh
+		 */
+		public int getTriangle() {
+			return this.triangle;
+		}
+		/**
+		 * Returns the closest point
+		 * @return the point in scene coordinates
+		 */
+		public ColumnVector getPoint() {
+			return this.point;
+		}
+		/**
+		 * Returns the distance from the query point to the closest point
+		 * @return the distance
+		 */
+		public double getDistance() {
+			return this.distance;
+		}
+	}
+
+	private final List<MeshIndex> indices = new ArrayList<>();
+	private final List<Frame> poses = new ArrayList<>();
+	/** the bounds of each instance's mesh in its own coordinates, min then max */
+	private double[] localBounds = new double[0];
+	/** each instance's rotation, row major, and translation */
+	private double[] rotations = new double[0], translations = new double[0];
+	private double[] instanceBounds = new double[0];
+	private double[] nodeBounds = new double[0];
+	private int[] nodeLeft = new int[0], nodeRight = new int[0], nodeInstance = new int[0];
+	private int[] order = new int[0];
+	private int numNodes, maxDepth;
+	private final ThreadLocal<QueryScratch> scratch = QueryScratch.perThread();
+
+	/**
+	 * Places a mesh in the scene and rebuilds the top hierarchy
+	 * @param index the closest point index of the mesh, in the mesh's coordinates
+	 * @param pose the frame that moves the mesh into the scene
+	 * @return the id of the new instance
+	 */
+	public int addInstance(MeshIndex index, Frame pose) {
+		int instance = this.indices.size();
+		int n = instance + 1;
+		this.indices.add(index);
+		this.poses.add(pose);
+		this.localBounds = grow(this.localBounds, 2*DIM*n);
+		this.rotations = grow(this.rotations, DIM*DIM*n);
+		this.translations = grow(this.translations, DIM*n);
+		this.instanceBounds = grow(this.instanceBounds, 2*DIM*n);
+		boundMesh(index.getMesh().getPacked(), this.localBounds, 2*DIM*instance);
+		this.place(instance, pose);
+		this.build();
+		return instance;
+	}
+	/**
+	 * Moves an instance to a new frame. Only the boxes of the top hierarchy are
+	 * refit; its shape and the instance's index stay as they are.
+	 * @param instance the id of the instance
+	 * @param pose the frame that moves the instance's mesh into the scene
+	 */
+	public void setPose(int instance, Frame pose) {
+		this.poses.set(instance, pose);
+		this.place(instance, pose);
+		this.refit();
+	}
+	/**
+	 * Returns the frame of an instance
+	 * @param instance the id of the instance
+	 * @return the frame that moves the instance's mesh into the scene
+	 */
+	public Frame getPose(int instance) {
+		return this.poses.get(instance);
+	}
+	/**
+	 * Returns the closest point index of an instance
+	 * @param instance the id of the instance
+	 * @return the index, in the coordinates of the instance's mesh
+	 */
+	public MeshIndex getIndex(int instance) {
+		return this.indices.get(instance);
+	}
+	public int getInstanceCount() {
+		return this.indices.size();
+	}
+	public int getNodeCount() {
+		return this.numNodes;
+	}
+
+	/**
+	 * Finds the closest point in the scene to a source point
+	 * @param source the source point
+	 * @return the instance, triangle and point, or null for an empty scene
+	 */
+	public Hit findClosestPoint(ColumnVector source) {
+		double[] point = new double[DIM];
+		int[] triangle = new int[1];
+		int instance = this.findClosestPoint(source.get(0), source.get(1), source.get(2), point, 0, triangle, 0);
+		if (instance < 0) {
+			return null;
+		}
+		double dx = point[0] - source.get(0), dy = point[1] - source.get(1), dz = point[2] - source.get(2);
+		return new Hit(instance, triangle[0], new ColumnVector(point), Math.sqrt(dx*dx + dy*dy + dz*dz));
+	}
+	/**
+	 * Finds the closest point in the scene to the point p without creating
+	 * any result objects
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param out receives the closest point in scene coordinates
+	 * @param offset the index in out of the x coordinate
+	 * @param triangles receives the index of the triangle in its instance's mesh
+	 * @param triangleOffset the index in triangles to write it at
+	 * @return the id of the instance that holds the closest point, or -1 for an empty scene
+	 */
+	public int findClosestPoint(double px, double py, double pz, double[] out, int offset,
+			int[] triangles, int triangleOffset) {
+		if (this.numNodes == 0) {
+			return -1;
+		}
+		QueryScratch scratch = this.scratch.get();
+		double[] local = scratch.point, closest = scratch.query;
+		int[] stack = scratch.stack(this.maxDepth + 2);
+		double best = Double.POSITIVE_INFINITY;
+		int bestInstance = -1, bestTriangle = -1;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (boxDistanceSquared(this.nodeBounds, node, px, py, pz) >= best) {
+				continue;
+			}
+			int instance = this.nodeInstance[node];
+			if (instance >= 0) {
+				// the point in the instance's frame is R^T (p - t)
+				int r = DIM*DIM*instance, t = DIM*instance;
+				double qx = px - this.translations[t], qy = py - this.translations[t + 1], qz = pz - this.translations[t + 2];
+				double lx = this.rotations[r]*qx + this.rotations[r + 3]*qy + this.rotations[r + 6]*qz;
+				double ly = this.rotations[r + 1]*qx + this.rotations[r + 4]*qy + this.rotations[r + 7]*qz;
+				double lz = this.rotations[r + 2]*qx + this.rotations[r + 5]*qy + this.rotations[r + 8]*qz;
+				int triangle = this.indices.get(instance).findClosestPoint(lx, ly, lz, best, -1, local, 0);
+				if (triangle >= 0) {
+					double dx = local[0] - lx, dy = local[1] - ly, dz = local[2] - lz;
+					best = dx*dx + dy*dy + dz*dz;
+					bestInstance = instance;
+					bestTriangle = triangle;
+					System.arraycopy(local, 0, closest, 0, DIM);
+				}
+			} else {
+				int left = this.nodeLeft[node];
+				int right = this.nodeRight[node];
+				double dl = boxDistanceSquared(this.nodeBounds, left, px, py, pz);
+				double dr = boxDistanceSquared(this.nodeBounds, right, px, py, pz);
+				// push the farther child first so the nearer one is visited first
+				if (dl <= dr) {
+					if (dr < best) stack[top++] = right;
+					if (dl < best) stack[top++] = left;
+				} else {
+					if (dl < best) stack[top++] = left;
+					if (dr < best) stack[top++] = right;
+				}
+			}
+		}
+		if (bestInstance >= 0) {
+			// back into the scene by R c + t
+			int r = DIM*DIM*bestInstance, t = DIM*bestInstance;
+			for (int k = 0; k < DIM; k++) {
+				out[offset + k] = this.rotations[r + DIM*k]*closest[0] + this.rotations[r + DIM*k + 1]*closest[1]
+						+ this.rotations[r + DIM*k + 2]*closest[2] + this.translations[t + k];
+			}
+			triangles[triangleOffset] = bestTriangle;
+		}
+		return bestInstance;
+	}
+
+	/**
+	 * Stores an instance's frame and the scene box of its mesh, the box around
+	 * the eight moved corners of the mesh's own box
+	 */
+	private void place(int instance, Frame pose) {
+		Matrix R = pose.getRotationMatrix();
+		ColumnVector p = pose.getTranslationVector();
+		int r = DIM*DIM*instance, t = DIM*instance, b = 2*DIM*instance;
+		for (int i = 0; i < DIM; i++) {
+			for (int j = 0; j < DIM; j++) {
+				this.rotations[r + DIM*i + j] = R.get(i, j);
+			}
+			this.translations[t + i] = p.get(i);
+		}
+		for (int k = 0; k < DIM; k++) {
+			// the extent of a rotated box along an axis is reached at the corner
+			// that takes the smaller or larger bound wherever that row is negative or positive
+			double min = this.translations[t + k], max = this.translations[t + k];
+			for (int j = 0; j < DIM; j++) {
+				double a = this.rotations[r + DIM*k + j]*this.localBounds[b + j];
+				double c = this.rotations[r + DIM*k + j]*this.localBounds[b + DIM + j];
+				min += Math.min(a, c);
+				max += Math.max(a, c);
+			}
+			this.instanceBounds[b + k] = min;
+			this.instanceBounds[b + DIM + k] = max;
+		}
+	}
+
+	private void build() {
+		int n = this.indices.size();
+		this.order = new int[n];
+		for (int i = 0; i < n; i++) {
+			this.order[i] = i;
+		}
+		int capacity = 2*n - 1;
+		this.nodeBounds = new double[2*DIM*capacity];
+		this.nodeLeft = new int[capacity];
+		this.nodeRight = new int[capacity];
+		this.nodeInstance = new int[capacity];
+		this.numNodes = 0;
+		this.maxDepth = 0;
+		this.buildNode(0, n, 0);
+		this.refit();
+	}
+	/**
+	 * Recursively builds the node over order[start, end), splitting at the
+	 * median box center along the axis the centers spread most
+	 * @return the index of the new node
+	 */
+	private int buildNode(int start, int end, int depth) {
+		int node = this.numNodes++;
+		this.maxDepth = Math.max(this.maxDepth, depth);
+		if (end - start == 1) {
+			this.nodeInstance[node] = this.order[start];
+			this.nodeLeft[node] = -1;
+			this.nodeRight[node] = -1;
+			return node;
+		}
+		int axis = 0;
+		double spread = -1;
+		for (int k = 0; k < DIM; k++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				double center = this.center(this.order[i], k);
+				min = Math.min(min, center);
+				max = Math.max(max, center);
+			}
+			if (max - min > spread) {
+				spread = max - min;
+				axis = k;
+			}
+		}
+		// few instances, so a sort of the run is cheap enough
+		for (int i = start + 1; i < end; i++) {
+			int instance = this.order[i];
+			double center = this.center(instance, axis);
+			int j = i - 1;
+			while (j >= start && this.center(this.order[j], axis) > center) {
+				this.order[j + 1] = this.order[j];
+				j--;
+			}
+			this.order[j + 1] = instance;
+		}
+		int mid = (start + end)/2;
+		this.nodeInstance[node] = -1;
+		this.nodeLeft[node] = this.buildNode(start, mid, depth + 1);
+		this.nodeRight[node] = this.buildNode(mid, end, depth + 1);
+		return node;
+	}
+	private double center(int instance, int axis) {
+		return 0.5*(this.instanceBounds[2*DIM*instance + axis] + this.instanceBounds[2*DIM*instance + DIM + axis]);
+	}
+	/**
+	 * Recomputes the node boxes from the instance boxes; children always come
+	 * after their parent, so one backward pass suffices
+	 */
+	private void refit() {
+		for (int node = this.numNodes - 1; node >= 0; node--) {
+			int b = 2*DIM*node;
+			int instance = this.nodeInstance[node];
+			if (instance >= 0) {
+				System.arraycopy(this.instanceBounds, 2*DIM*instance, this.nodeBounds, b, 2*DIM);
+				continue;
+			}
+			int l = 2*DIM*this.nodeLeft[node], r = 2*DIM*this.nodeRight[node];
+			for (int k = 0; k < DIM; k++) {
+				this.nodeBounds[b + k] = Math.min(this.nodeBounds[l + k], this.nodeBounds[r + k]);
+				this.nodeBounds[b + DIM + k] = Math.max(this.nodeBounds[l + DIM + k], this.nodeBounds[r + DIM + k]);
+			}
+		}
+	}
+
+	/**
+	 * Squared distance from a point to the box of a node; zero if the point
+	 * lies inside the box
+	 */
+	private static double boxDistanceSquared(double[] bounds, int node, double px, double py, double pz) {
+		int b = 2*DIM*node;
+		double dx = Math.max(0, Math.max(bounds[b] - px, px - bounds[b + 3]));
+		double dy = Math.max(0, Math.max(bounds[b + 1] - py, py - bounds[b + 4]));
+		double dz = Math.max(0, Math.max(bounds[b + 2] - pz, pz - bounds[b + 5]));
+		return dx*dx + dy*dy + dz*dz;
+	}
+	private static void boundMesh(PackedMesh packed, double[] bounds, int b) {
+		double[] vertices = packed.getVertices();
+		for (int k = 0; k < DIM; k++) {
+			bounds[b + k] = Double.POSITIVE_INFINITY;
+			bounds[b + DIM + k] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < packed.getVertexCount(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				bounds[b + k] = Math.min(bounds[b + k], vertices[DIM*i + k]);
+				bounds[b + DIM + k] = Math.max(bounds[b + DIM + k], vertices[DIM*i + k]);
+			}
+		}
+	}
+	private static double[] grow(double[] values, int size) {
+		double[] grown = new double[size];
+		System.arraycopy(values, 0, grown, 0, values.length);
+		return grown;
+	}
+}
@@ -0,0 +1,207 @@
+package cis.pa3.geometry;
+
+import java.util.Arrays;
+
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.MeshAdjacency;
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * Closest point queries that start from a seed triangle, such as the answer
+ * for the previous position of a probe tip moving over the surface. The walk
+ * moves to whichever triangle sharing a vertex with the current one is
+ * closest, for as long as the distance drops, so it stops on a triangle T
+ * that is closest among its ring of neighbors.
+ *
+ * Every triangle also stores a clearance: a lower bound on the distance from
+ * T to any triangle outside its ring. Those triangles are at least the
+ * clearance minus d from the query point, so when twice the distance d to T
+ * is below the clearance the walk's answer is the global one. Otherwise the
+ * global index is asked for anything strictly closer than d, and if it finds
+ * a closer triangle that one is returned instead.
+ *
+ * A walker keeps counts of its work and is not meant to be shared between threads.
+ */
+public class MeshWalker {
+	private static final int DIM = 3;
+	/** how far around a part of a triangle, in units of its radius, the clearance is measured */
+	private static final double CLEARANCE_REACH = 4;
+	/** slack in the clearance test for rounding in the distances, in mm */
+	private static final double CLEARANCE_TOLERANCE = 1e-9;
+	private final MeshIndex index;
+	private final PackedMesh packed;
+	private final TriangleTable table;
+	private final MeshAdjacency adjacency;
+	private final MeshBVH bvh;
+	private final double[] clearances;
+	private final double[] point = new double[DIM];
+	private int queries, steps, fallbacks;
+
+	/**
+	 * Creates a walker over the mesh of an index
+	 * @param index the index used to check the end of every walk
+	 */
+	public MeshWalker(MeshIndex index) {
+		this.index = index;
+		this.packed = index.getMesh().getPacked();
+		this.table = index.getMesh().getTriangleTable();
+		this.adjacency = index.getMesh().getAdjacency();
+		this.bvh = index instanceof MeshBVH ? (MeshBVH) index : new MeshBVH(index.getMesh());
+		// clearances are computed the first time a walk ends on a triangle
+		this.clearances = new double[this.packed.getTriangleCount()];
+		Arrays.fill(this.clearances, Double.NaN);
+	}
+
+	/**
+	 * Finds the closest point on the mesh to p, walking from a seed triangle
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param seed the triangle to start from, or -1 to search the index directly
+	 * @param out receives the closest point
+	 * @param offset the index in out of the x coordinate
+	 * @return the index of the triangle that holds the closest point
+	 */
+	public int findClosestPoint(double px, double py, double pz, int seed, double[] out, int offset) {
+		this.queries++;
+		if (seed < 0) {
+			this.fallbacks++;
+			return this.index.findClosestPoint(px, py, pz, out, offset);
+		}
+		int current = seed;
+		double best = Utilities.findClosestPointOnTriangle(this.table, seed, px, py, pz, out, offset);
+		while (true) {
+			int next = current;
+			for (int i = 0; i < this.adjacency.getRingSize(current); i++) {
+				int tri = this.adjacency.getRingTriangle(current, i);
+				double dist = Utilities.findClosestPointOnTriangle(this.table, tri, px, py, pz, this.point, 0);
+				if (dist < best) {
+					best = dist;
+					next = tri;
+					System.arraycopy(this.point, 0, out, offset, DIM);
+				}
+			}
+			if (next == current) {
+				break;
+			}
+			current = next;
+			this.steps++;
+		}
+		if (2*Math.sqrt(best) + CLEARANCE_TOLERANCE < this.getClearance(current)) {
+			return current;
+		}
+		int closer = this.index.findClosestPoint(px, py, pz, best, -1, out, offset);
+		if (closer >= 0) {
+			this.fallbacks++;
+			return closer;
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the clearance of a triangle
+	 * @param triangle the triangle index
+	 * @return a lower bound on the distance to any triangle that shares no vertex with it
+	 */
+	public double getClearance(int triangle) {
+		if (Double.isNaN(this.clearances[triangle])) {
+			this.clearances[triangle] = this.computeClearance(triangle);
+		}
+		return this.clearances[triangle];
+	}
+	/**
+	 * Returns the number of queries answered so far
+	 * @return the number of queries
+	 */
+	public int getQueryCount() {
+		return this.queries;
+	}
+	/**
+	 * Returns the number of moves to a neighboring triangle so far
+	 * @return the number of steps
+	 */
+	public int getStepCount() {
+		return this.steps;
+	}
+	/**
+	 * Returns the number of queries whose answer came from the global index
+	 * rather than the walk
+	 * @return the number of fallbacks
+	 */
+	public int getFallbackCount() {
+		return this.fallbacks;
+	}
+
+	/**
+	 * Bounds the distance from a triangle to the triangles outside its ring.
+	 * The triangle is split at its edge midpoints into four parts, and the
+	 * distance from each part is at least the distance from its centroid less
+	 * its radius, looking no farther than CLEARANCE_REACH radii from the centroid.
+	 */
+	private double computeClearance(int triangle) {
+		double[] corners = new double[DIM*DIM], mids = new double[DIM*DIM];
+		for (int j = 0; j < DIM; j++) {
+			for (int k = 0; k < DIM; k++) {
+				corners[DIM*j + k] = this.packed.getCoordinate(triangle, j, k);
+			}
+		}
+		for (int j = 0; j < DIM; j++) {
+			for (int k = 0; k < DIM; k++) {
+				mids[DIM*j + k] = 0.5*(corners[DIM*j + k] + corners[DIM*((j + 1) % DIM) + k]);
+			}
+		}
+		// the three corner parts and then the middle part
+		double clearance = Double.POSITIVE_INFINITY;
+		double[] part = new double[DIM*DIM];
+		for (int j = 0; j <= DIM; j++) {
+			for (int k = 0; k < DIM; k++) {
+				if (j < DIM) {
+					part[k] = corners[DIM*j + k];
+					part[DIM + k] = mids[DIM*j + k];
+					part[2*DIM + k] = mids[DIM*((j + DIM - 1) % DIM) + k];
+				} else {
+					part[k] = mids[k];
+					part[DIM + k] = mids[DIM + k];
+					part[2*DIM + k] = mids[2*DIM + k];
+				}
+			}
+			clearance = Math.min(clearance, this.computeClearance(triangle, part));
+		}
+		return Math.max(0, clearance);
+	}
+	private double computeClearance(int triangle, double[] part) {
+		double[] centroid = new double[DIM];
+		for (int k = 0; k < DIM; k++) {
+			centroid[k] = (part[k] + part[DIM + k] + part[2*DIM + k])/DIM;
+		}
+		double radius = 0;
+		for (int j = 0; j < DIM; j++) {
+			double r2 = 0;
+			for (int k = 0; k < DIM; k++) {
+				double d = part[DIM*j + k] - centroid[k];
+				r2 += d*d;
+			}
+			radius = Math.max(radius, Math.sqrt(r2));
+		}
+		double clearance = (CLEARANCE_REACH - 1)*radius;
+		for (int other : this.bvh.findTrianglesWithin(new ColumnVector(centroid), CLEARANCE_REACH*radius)) {
+			if (other == triangle || this.sharesVertex(triangle, other)) {
+				continue;
+			}
+			double dist = Utilities.findClosestPointOnTriangle(this.table, other,
+					centroid[0], centroid[1], centroid[2], this.point, 0);
+			clearance = Math.min(clearance, Math.sqrt(dist) - radius);
+		}
+		return clearance;
+	}
+	private boolean sharesVertex(int a, int b) {
+		for (int j = 0; j < DIM; j++) {
+			for (int k = 0; k < DIM; k++) {
+				if (this.packed.getVertexIndex(a, j) == this.packed.getVertexIndex(b, k)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,43 @@
+package cis.pa3.geometry;
+
+/**
+ * The working arrays of one thread's closest point queries, so that a query
+ * allocates nothing. Each index keeps one per thread, created on the thread's
+ * first query; a query must not be made while another one on the same index
+ * and thread is still running.
+ */
+class QueryScratch {
+	private static final int DIM = 3;
+	/** a point followed by its squared distance */
+	final double[] point = new double[DIM + 1];
+	/** the query point */
+	final double[] query = new double[DIM];
+	/** the cell of the query point */
+	final int[] cell = new int[DIM];
+	private int[] stack = new int[0];
+
+	/**
+	 * Returns a stack of node indices of at least the given size
+	 * @param size the deepest the stack gets
+	 * @return the stack, not cleared
+	 */
+	int[] stack(int size) {
+		if (this.stack.length < size) {
+			this.stack = new int[size];
+		}
+		return this.stack;
+	}
+
+	/**
+	 * Creates the per-thread holder an index keeps its scratch in
+	 * @return a thread local that creates the scratch on first use
+	 */
+	static ThreadLocal<QueryScratch> perThread() {
+		return new ThreadLocal<QueryScratch>() {
+			@Override
+			protected QueryScratch initialValue() {
+				return new QueryScratch();
+			}
+		};
+	}
+}
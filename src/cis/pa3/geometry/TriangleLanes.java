@@ -0,0 +1,160 @@
+package cis.pa3.geometry;
+
+/**
+ * The triangle records of a TriangleTable rearranged as a structure of arrays,
+ * one array per field, padded to a multiple of LANES triangles. The kernel
+ * tests one query point against a run of consecutive triangles, choosing the
+ * region of each triangle with selects instead of nested branches, so runs of
+ * triangles stream through the arrays with few branch mispredictions.
+ *
+ * Triangles may be stored in any order, e.g. the leaf order of a hierarchy,
+ * so that every leaf is one contiguous run.
+ */
+public class TriangleLanes {
+	public static final int LANES = 4;
+	private final int size;
+	private final int[] ids;
+	private final double[] vx, vy, vz, e1x, e1y, e1z, e2x, e2y, e2z, a, b, c, det, invdet;
+
+	/**
+	 * Lays out every triangle of the table in index order
+	 * @param table the triangle records
+	 */
+	public TriangleLanes(TriangleTable table) {
+		this(table, identity(table.getTriangleCount()));
+	}
+	/**
+	 * Lays out the triangles of the table in the given order
+	 * @param table the triangle records
+	 * @param order the triangle index stored at each position
+	 */
+	public TriangleLanes(TriangleTable table, int[] order) {
+		this.size = order.length;
+		int padded = ((this.size + LANES - 1)/LANES)*LANES;
+		this.ids = new int[padded];
+		this.vx = new double[padded];
+		this.vy = new double[padded];
+		this.vz = new double[padded];
+		this.e1x = new double[padded];
+		this.e1y = new double[padded];
+		this.e1z = new double[padded];
+		this.e2x = new double[padded];
+		this.e2y = new double[padded];
+		this.e2z = new double[padded];
+		this.a = new double[padded];
+		this.b = new double[padded];
+		this.c = new double[padded];
+		this.det = new double[padded];
+		this.invdet = new double[padded];
+		double[] rec = table.getRecords();
+		for (int i = 0; i < padded; i++) {
+			// the padding repeats the last triangle, which can never win a tie
+			int id = order[Math.min(i, this.size - 1)];
+			int r = TriangleTable.STRIDE*id;
+			this.ids[i] = id;
+			this.vx[i] = rec[r + TriangleTable.BASE];
+			this.vy[i] = rec[r + TriangleTable.BASE + 1];
+			this.vz[i] = rec[r + TriangleTable.BASE + 2];
+			this.e1x[i] = rec[r + TriangleTable.EDGE1];
+			this.e1y[i] = rec[r + TriangleTable.EDGE1 + 1];
+			this.e1z[i] = rec[r + TriangleTable.EDGE1 + 2];
+			this.e2x[i] = rec[r + TriangleTable.EDGE2];
+			this.e2y[i] = rec[r + TriangleTable.EDGE2 + 1];
+			this.e2z[i] = rec[r + TriangleTable.EDGE2 + 2];
+			this.a[i] = rec[r + TriangleTable.A];
+			this.b[i] = rec[r + TriangleTable.B];
+			this.c[i] = rec[r + TriangleTable.C];
+			this.det[i] = rec[r + TriangleTable.DET];
+			this.invdet[i] = rec[r + TriangleTable.INVDET];
+		}
+	}
+
+	/**
+	 * Returns the number of stored triangles, not counting the padding
+	 * @return the number of triangles
+	 */
+	public int size() {
+		return this.size;
+	}
+	/**
+	 * Returns the triangle index stored at a position
+	 * @param position the position in the lanes
+	 * @return the index of the triangle in its mesh
+	 */
+	public int getTriangle(int position) {
+		return this.ids[position];
+	}
+
+	/**
+	 * Finds the closest point to p on the triangles at positions [start, end)
+	 * that is closer than a bound. Gives the same points and distances as
+	 * Utilities.findClosestPointOnTriangle.
+	 * @param start the first position
+	 * @param end one past the last position
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param bound only points with a squared distance below this are reported
+	 * @param out receives the closest point and then its squared distance
+	 * @param offset the index in out of the x coordinate
+	 * @return the position of the closest triangle, or -1 if none is within the bound
+	 */
+	public int findClosestPoint(int start, int end, double px, double py, double pz,
+			double bound, double[] out, int offset) {
+		double best = bound;
+		int bestPosition = -1;
+		double bestX = 0, bestY = 0, bestZ = 0;
+		for (int i = start; i < end; i++) {
+			double ai = this.a[i], bi = this.b[i], ci = this.c[i], deti = this.det[i];
+			double dx = this.vx[i] - px, dy = this.vy[i] - py, dz = this.vz[i] - pz;
+			double d = this.e1x[i]*dx + this.e1y[i]*dy + this.e1z[i]*dz;
+			double e = this.e2x[i]*dx + this.e2y[i]*dy + this.e2z[i]*dz;
+			double s0 = bi*e - ci*d;
+			double t0 = bi*d - ai*e;
+			boolean inside = s0 + t0 <= deti;
+			boolean sNeg = s0 < 0, tNeg = t0 < 0;
+			// pick the one clamped parameter of the region so that each
+			// triangle needs a single division
+			boolean useD = inside && (sNeg ? (tNeg && d < 0) : tNeg);
+			boolean edge = !inside && (sNeg ? (ci + e > bi + d) : (!tNeg || ai + d < bi + e));
+			boolean useE = !useD && !edge && (sNeg || !inside);
+			double num = useD ? -d : (useE ? -e : (edge ? ci + e - (bi + d) : 0));
+			double den = useD ? ai : (useE ? ci : (edge ? ai - 2*bi + ci : 1));
+			double q = Math.max(0, Math.min(num/den, 1));
+			double s, t;
+			if (inside) {
+				s = useD ? q : (useE ? 0 : s0*this.invdet[i]);
+				t = useD ? 0 : (useE ? q : t0*this.invdet[i]);
+			} else {
+				s = edge ? q : (sNeg ? 0 : q);
+				t = edge ? 1 - q : (sNeg ? q : 0);
+			}
+			double x = this.vx[i] + this.e1x[i]*s + this.e2x[i]*t;
+			double y = this.vy[i] + this.e1y[i]*s + this.e2y[i]*t;
+			double z = this.vz[i] + this.e1z[i]*s + this.e2z[i]*t;
+			double qx = x - px, qy = y - py, qz = z - pz;
+			double dist = qx*qx + qy*qy + qz*qz;
+			boolean better = dist < best;
+			best = better ? dist : best;
+			bestPosition = better ? i : bestPosition;
+			bestX = better ? x : bestX;
+			bestY = better ? y : bestY;
+			bestZ = better ? z : bestZ;
+		}
+		if (bestPosition >= 0) {
+			out[offset] = bestX;
+			out[offset + 1] = bestY;
+			out[offset + 2] = bestZ;
+			out[offset + 3] = best;
+		}
+		return bestPosition;
+	}
+
+	private static int[] identity(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		return order;
+	}
+}
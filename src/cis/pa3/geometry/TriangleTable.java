@@ -0,0 +1,56 @@
+package cis.pa3.geometry;
+
+import cis.pa3.tools.PackedMesh;
+
+/**
+ * The parts of the closest point computation that do not depend on the query
+ * point, computed once per triangle and stored in one flat array: the base
+ * vertex, both edges, their dot products a, b and c, the determinant and its
+ * inverse.
+ */
+public class TriangleTable {
+	static final int STRIDE = 14;
+	static final int BASE = 0, EDGE1 = 3, EDGE2 = 6, A = 9, B = 10, C = 11, DET = 12, INVDET = 13;
+	private static final int DIM = 3;
+	private final double[] records;
+
+	/**
+	 * Computes the records of every triangle in a packed mesh
+	 * @param mesh the packed mesh
+	 */
+	public TriangleTable(PackedMesh mesh) {
+		int n = mesh.getTriangleCount();
+		this.records = new double[STRIDE*n];
+		for (int i = 0; i < n; i++) {
+			int r = STRIDE*i;
+			for (int k = 0; k < DIM; k++) {
+				double v0 = mesh.getCoordinate(i, 0, k);
+				this.records[r + BASE + k] = v0;
+				this.records[r + EDGE1 + k] = mesh.getCoordinate(i, 1, k) - v0;
+				this.records[r + EDGE2 + k] = mesh.getCoordinate(i, 2, k) - v0;
+			}
+			double e1x = this.records[r + EDGE1], e1y = this.records[r + EDGE1 + 1], e1z = this.records[r + EDGE1 + 2];
+			double e2x = this.records[r + EDGE2], e2y = this.records[r + EDGE2 + 1], e2z = this.records[r + EDGE2 + 2];
+			double a = e1x*e1x + e1y*e1y + e1z*e1z;
+			double b = e2x*e1x + e2y*e1y + e2z*e1z;
+			double c = e2x*e2x + e2y*e2y + e2z*e2z;
+			double det = a*c - b*b;
+			this.records[r + A] = a;
+			this.records[r + B] = b;
+			this.records[r + C] = c;
+			this.records[r + DET] = det;
+			this.records[r + INVDET] = 1.0/det;
+		}
+	}
+
+	public int getTriangleCount() {
+		return this.records.length/STRIDE;
+	}
+	/**
+	 * Returns the flat record array; not a copy
+	 * @return the records, STRIDE values per triangle
+	 */
+	double[] getRecords() {
+		return this.records;
+	}
+}
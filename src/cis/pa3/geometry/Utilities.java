@@ -1,11 +1,8 @@
 package cis.pa3.geometry;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import cis.pa3.tools.ColumnVector;
-import cis.pa3.tools.Math3D;
 import cis.pa3.tools.Mesh;
+import cis.pa3.tools.PackedMesh;
 
 public class Utilities {
 	private static final int DIM = 3;
@@ -16,19 +13,88 @@ public class Utilities {
 	 * @return the closest point
 	 */
 	public static ColumnVector findClosestPointOnTriangle(Triangle tri, ColumnVector source) {
-		ColumnVector closestPoint = new ColumnVector(DIM);
-		ColumnVector edge1 = tri.getVertex(1).minus(tri.getVertex(0));
-		ColumnVector edge2 = tri.getVertex(2).minus(tri.getVertex(0));
-		ColumnVector baseToSource = tri.getVertex(0).minus(source);
-		
-		double a = Math3D.dotProduct(edge1, edge1);
-		double b = Math3D.dotProduct(edge2, edge1);
-		double c = Math3D.dotProduct(edge2, edge2);
-		double d = Math3D.dotProduct(edge1, baseToSource);
-		double e = Math3D.dotProduct(edge2, baseToSource);
+		ColumnVector v0 = tri.getVertex(0), v1 = tri.getVertex(1), v2 = tri.getVertex(2);
+		double[] closestPoint = new double[DIM];
+		closestPointOnTriangle(v0.get(0), v0.get(1), v0.get(2),
+				v1.get(0) - v0.get(0), v1.get(1) - v0.get(1), v1.get(2) - v0.get(2),
+				v2.get(0) - v0.get(0), v2.get(1) - v0.get(1), v2.get(2) - v0.get(2),
+				source.get(0), source.get(1), source.get(2), closestPoint, 0);
+		return new ColumnVector(closestPoint);
+	}
+	/**
+	 * Finds the closest point to a source point on a triangle of a packed mesh
+	 * without allocating any objects
+	 * @param mesh the packed mesh
+	 * @param tri the index of the triangle to search in
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param out receives the closest point
+	 * @param offset the index in out of the x coordinate
+	 * @return the squared distance from the source point to the closest point
+	 */
+	public static double findClosestPointOnTriangle(PackedMesh mesh, int tri, double px, double py, double pz,
+			double[] out, int offset) {
+		double[] v = mesh.getVertices();
+		int[] indices = mesh.getIndices();
+		int i0 = DIM*indices[DIM*tri], i1 = DIM*indices[DIM*tri + 1], i2 = DIM*indices[DIM*tri + 2];
+		return closestPointOnTriangle(v[i0], v[i0 + 1], v[i0 + 2],
+				v[i1] - v[i0], v[i1 + 1] - v[i0 + 1], v[i1 + 2] - v[i0 + 2],
+				v[i2] - v[i0], v[i2 + 1] - v[i0 + 1], v[i2 + 2] - v[i0 + 2],
+				px, py, pz, out, offset);
+	}
+	/**
+	 * Finds the closest point to a source point on a triangle using its
+	 * precomputed record, without allocating any objects
+	 * @param table the triangle records of the mesh
+	 * @param tri the index of the triangle to search in
+	 * @param px the x coordinate of the source point
+	 * @param py the y coordinate of the source point
+	 * @param pz the z coordinate of the source point
+	 * @param out receives the closest point
+	 * @param offset the index in out of the x coordinate
+	 * @return the squared distance from the source point to the closest point
+	 */
+	public static double findClosestPointOnTriangle(TriangleTable table, int tri, double px, double py, double pz,
+			double[] out, int offset) {
+		double[] rec = table.getRecords();
+		int r = TriangleTable.STRIDE*tri;
+		return closestPointOnTriangle(rec[r], rec[r + 1], rec[r + 2],
+				rec[r + TriangleTable.EDGE1], rec[r + TriangleTable.EDGE1 + 1], rec[r + TriangleTable.EDGE1 + 2],
+				rec[r + TriangleTable.EDGE2], rec[r + TriangleTable.EDGE2 + 1], rec[r + TriangleTable.EDGE2 + 2],
+				rec[r + TriangleTable.A], rec[r + TriangleTable.B], rec[r + TriangleTable.C],
+				rec[r + TriangleTable.DET], rec[r + TriangleTable.INVDET], px, py, pz, out, offset);
+	}
+	/**
+	 * Closest point on the triangle with base vertex v and edges e1 and e2
+	 * to the point p; computes the dot products of the edges
+	 * @return the squared distance from p to the closest point
+	 */
+	private static double closestPointOnTriangle(double vx, double vy, double vz,
+			double e1x, double e1y, double e1z, double e2x, double e2y, double e2z,
+			double px, double py, double pz, double[] out, int offset) {
+		double a = e1x*e1x + e1y*e1y + e1z*e1z;
+		double b = e2x*e1x + e2y*e1y + e2z*e1z;
+		double c = e2x*e2x + e2y*e2y + e2z*e2z;
+		double det = a*c - b*b;
+		return closestPointOnTriangle(vx, vy, vz, e1x, e1y, e1z, e2x, e2y, e2z,
+				a, b, c, det, 1.0/det, px, py, pz, out, offset);
+	}
+	/**
+	 * Closest point on the triangle with base vertex v, edges e1 and e2, edge
+	 * dot products a, b, c and determinant det to the point p, written to
+	 * out[offset, offset + 3)
+	 * @return the squared distance from p to the closest point
+	 */
+	private static double closestPointOnTriangle(double vx, double vy, double vz,
+			double e1x, double e1y, double e1z, double e2x, double e2y, double e2z,
+			double a, double b, double c, double det, double invdet,
+			double px, double py, double pz, double[] out, int offset) {
+		double dx = vx - px, dy = vy - py, dz = vz - pz;
+		double d = e1x*dx + e1y*dy + e1z*dz;
+		double e = e2x*dx + e2y*dy + e2z*dz;
 		// gradient of Q = as^2 + 2bst + ct^2 + 2ds + 2et + f
 		// is zero when s and t are zero:
-		double det = a*c - b*b;
 		double s = b*e - c*d;
 		double t = b*d - a*e;
 		
@@ -50,7 +116,6 @@ public class Utilities {
 				s = Math.max(0, Math.min(-d/a, 1));
 				t = 0;
 			} else {
-				double invdet = 1.0/det;
 				s = s*invdet;
 				t = t*invdet;
 			}
@@ -82,9 +147,17 @@ public class Utilities {
 				t = 1 - s;
 			}
 		}
-		closestPoint = tri.getVertex(0).plus(edge1.times(s)).plus(edge2.times(t));
-		return closestPoint;
-		}
+		double x = vx + e1x*s + e2x*t;
+		double y = vy + e1y*s + e2y*t;
+		double z = vz + e1z*s + e2z*t;
+		out[offset] = x;
+		out[offset + 1] = y;
+		out[offset + 2] = z;
+		x -= px;
+		y -= py;
+		z -= pz;
+		return x*x + y*y + z*z;
+	}
 	/**
 	 * Finds the closest point to a source point on the mesh.
 	 * @param mesh the mesh to search in
@@ -92,17 +165,27 @@ public class Utilities {
 	 * @return the closest point on the mesh
 	 */
 	public static ColumnVector findClosestPointOnMesh(Mesh mesh, ColumnVector source) {
-		List<ColumnVector> closestPoints = new ArrayList<>();
-		for (int i = 0; i < mesh.getTriangles().size(); i++){
-			closestPoints.add(findClosestPointOnTriangle(mesh.getTriangles().get(i), source));
-		}
-		ColumnVector min = source.minus(closestPoints.get(0));
-		for (int i = 0; i < closestPoints.size(); i++) {
-			ColumnVector temp = source.minus(closestPoints.get(i));
-			if (temp.magnitude() < min.magnitude()) {
-				min = temp;
+		TriangleTable table = mesh.getTriangleTable();
+		double px = source.get(0), py = source.get(1), pz = source.get(2);
+		double best = Double.POSITIVE_INFINITY;
+		double[] point = new double[DIM], closest = new double[DIM];
+		for (int i = 0; i < table.getTriangleCount(); i++) {
+			double dist = findClosestPointOnTriangle(table, i, px, py, pz, point, 0);
+			if (dist < best) {
+				best = dist;
+				System.arraycopy(point, 0, closest, 0, DIM);
 			}
 		}
-		return min;
+		return source.minus(new ColumnVector(closest));
+	}
+	/**
+	 * Finds the closest point to a source point on an indexed mesh.
+	 * Returns the same difference vector as the brute force search.
+	 * @param index the spatial index of the mesh to search in
+	 * @param source the source point
+	 * @return the closest point on the mesh
+	 */
+	public static ColumnVector findClosestPointOnMesh(MeshIndex index, ColumnVector source) {
+		return source.minus(index.findClosestPoint(source));
 	}
 }
@@ -0,0 +1,136 @@
+package cis.pa3.tests;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import Jama.Matrix;
+import cis.pa3.data.DataFileParser;
+import cis.pa3.data.SampleReadingsData;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.ICPEngine;
+import cis.pa3.drivers.IterationListener;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.drivers.RegistrationResult;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.CancellationToken;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.InitialPose;
+import cis.pa3.tools.Math3D;
+
+/**
+ * Runs ICP on every PA4 dataset with a range of time budgets, with a token
+ * cancelled by a timer on another thread, and with a listener that cancels
+ * once the error is within a factor of the converged one. Prints why each run
+ * stopped, its iterations, time and error, and how far its s_k points are from
+ * those of the converged run. The budgets cover the iterations only, not the
+ * first closest points found when the engine starts. Then registers every
+ * dataset from a global alignment and a multi-hypothesis search, with a
+ * budget shorter than the search and with a token cancelled beforehand,
+ * and prints why each call stopped and how long it took in all.
+ */
+public class BenchAnytimeRegistration {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final int DIM = 3;
+	private static final double[] BUDGETS = {0.5, 1, 2, 5, 10};
+	// the timer cancels this long after the run starts, in ms
+	private static final long CANCEL_AFTER = 2;
+	// the listener cancels once the error is below this multiple of the converged one
+	private static final double GOOD_ENOUGH = 1.5;
+	private static final int WARMUP = 3;
+	// the budget of a whole call that searches for the starting pose, in ms
+	private static final long SEARCH_BUDGET = 20;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		ICPEngine engine = new ICPEngine(inputs);
+		Frame identity = new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM));
+		Timer timer = new Timer(true);
+		for (char letter : LETTERS) {
+			System.setOut(quiet);
+			ICPDriver converged = new ICPDriver(letter, letter <= 'F');
+			System.setOut(console);
+			List<ColumnVector> points = converged.getDkVectors();
+			double[] dk = new double[DIM*points.size()];
+			for (int i = 0; i < points.size(); i++) {
+				for (int k = 0; k < DIM; k++) {
+					dk[DIM*i + k] = points.get(i).get(k);
+				}
+			}
+			for (int i = 0; i < WARMUP; i++) {
+				engine.start(dk, points.size(), identity, 0);
+				engine.run(null);
+			}
+			double target = Math3D.average(converged.getErrors());
+			System.out.printf("%c: converged in %d iterations, error %.4f\n", letter, converged.getIterationCount(), target);
+			for (double budget : BUDGETS) {
+				engine.start(dk, points.size(), identity, 0);
+				RegistrationResult result = engine.run((long) (budget*1e6), TimeUnit.NANOSECONDS, null, null);
+				print(String.format("budget %4.1f ms", budget), result, engine, converged);
+			}
+			final CancellationToken token = new CancellationToken();
+			engine.start(dk, points.size(), identity, 0);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					token.cancel();
+				}
+			}, CANCEL_AFTER);
+			print("timer cancel", engine.run(1, TimeUnit.SECONDS, token, null), engine, converged);
+			final CancellationToken enough = new CancellationToken();
+			final double cutoff = GOOD_ENOUGH*target;
+			engine.start(dk, points.size(), identity, 0);
+			RegistrationResult result = engine.run(1, TimeUnit.SECONDS, enough, new IterationListener() {
+				@Override
+				public void iterationDone(ICPEngine engine) {
+					if (engine.getMeanError() < cutoff) {
+						enough.cancel();
+					}
+				}
+			});
+			print("good enough", result, engine, converged);
+		}
+		RegistrationEngine registrations = new RegistrationEngine(inputs);
+		DataFileParser parser = new DataFileParser();
+		CancellationToken cancelled = new CancellationToken();
+		cancelled.cancel();
+		for (char letter : LETTERS) {
+			String type = letter <= 'F' ? "Debug" : "Unknown";
+			SampleReadingsData readings = parser.parseSampleReadingsData("data" + File.separator + "PA4-" + letter
+					+ "-" + type + "-SampleReadingsTest.txt", inputs.getBodyA(), inputs.getBodyB());
+			System.out.printf("%c:", letter);
+			for (InitialPose start : new InitialPose[] {InitialPose.GLOBAL_ALIGNMENT, InitialPose.MULTI_HYPOTHESIS}) {
+				for (CancellationToken token : new CancellationToken[] {null, cancelled}) {
+					long begin = System.nanoTime();
+					RegistrationResult searched = registrations.register(readings, start, SEARCH_BUDGET,
+							TimeUnit.MILLISECONDS, token, null);
+					System.out.printf(" %s %s in %.1f ms |", start, searched.getStatus(), (System.nanoTime() - begin)/1e6);
+				}
+			}
+			System.out.println();
+		}
+	}
+
+	private static void print(String run, RegistrationResult result, ICPEngine engine, ICPDriver converged) {
+		double maxDistance = 0;
+		double[] sk = engine.getSk();
+		for (int i = 0; i < engine.getCount(); i++) {
+			ColumnVector reference = converged.getSkVectors().get(i);
+			double dx = sk[DIM*i] - reference.get(0), dy = sk[DIM*i + 1] - reference.get(1), dz = sk[DIM*i + 2] - reference.get(2);
+			maxDistance = Math.max(maxDistance, Math.sqrt(dx*dx + dy*dy + dz*dz));
+		}
+		System.out.printf("   %-15s %-15s %4d iterations %6.2f ms error %.4f, s_k within %.4f of converged\n",
+				run, result.getStatus(), result.getIterationCount(), result.getTime(), result.getMeanError(), maxDistance);
+	}
+}
@@ -0,0 +1,47 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.Math3D;
+
+/**
+ * Runs ICP on the debug datasets on the full mesh only and coarse to fine
+ * through a mesh pyramid, and compares time, iterations and final errors
+ */
+public class BenchCoarseToFine {
+	private static final int LEVELS = 3;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		for (char letter = 'A'; letter <= 'F'; letter++) {
+			System.setOut(quiet);
+			long start = System.nanoTime();
+			ICPDriver full = new ICPDriver(letter, true);
+			long fullTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			ICPDriver pyramid = new ICPDriver(letter, true,
+					new RegistrationEngine(new RegistrationInputs("Problem4", MeshIndexType.BVH, LEVELS)),
+					new ICPDriver.Options());
+			long pyramidTime = System.nanoTime() - start;
+			System.setOut(console);
+			double maxDifference = 0;
+			for (int i = 0; i < full.getCkVectors().size(); i++) {
+				maxDifference = Math.max(maxDifference,
+						full.getCkVectors().get(i).minus(pyramid.getCkVectors().get(i)).magnitude());
+			}
+			System.out.printf("%c: full mesh %4d iterations %6.1f ms error %.4f | %d levels %4d iterations %6.1f ms error %.4f | max ck difference %.4f\n",
+					letter, full.getIterationCount(), fullTime/1e6, Math3D.average(full.getErrors()),
+					LEVELS, pyramid.getIterationCount(), pyramidTime/1e6, Math3D.average(pyramid.getErrors()),
+					maxDifference);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Jama.Matrix;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.GlobalAlignment;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.InitialPose;
+import cis.pa3.tools.Math3D;
+
+/**
+ * Runs ICP on every PA4 dataset from the identity and from a global
+ * alignment, comparing time, iterations and final errors. Then moves the d_k
+ * points of each dataset by a random large rotation and shift and checks
+ * how close the global alignment of the moved points comes to the ICP result.
+ */
+public class BenchGlobalAlignment {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final int DIM = 3;
+	// shift of the random poses, in mm
+	private static final double SHIFT = 30;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		RegistrationEngine registrations = new RegistrationEngine(inputs);
+		long start = System.nanoTime();
+		GlobalAlignment alignment = inputs.getGlobalAlignment();
+		System.out.printf("descriptor index built in %.1f ms\n", (System.nanoTime() - start)/1e6);
+		Random random = new Random(1);
+		for (char letter : LETTERS) {
+			boolean isDebug = letter <= 'F';
+			System.setOut(quiet);
+			ICPDriver identity = new ICPDriver(letter, isDebug, registrations, new ICPDriver.Options().start(InitialPose.IDENTITY));
+			ICPDriver global = new ICPDriver(letter, isDebug, registrations, new ICPDriver.Options().start(InitialPose.GLOBAL_ALIGNMENT));
+			System.setOut(console);
+			double maxDifference = 0;
+			for (int i = 0; i < identity.getCkVectors().size(); i++) {
+				maxDifference = Math.max(maxDifference,
+						identity.getCkVectors().get(i).minus(global.getCkVectors().get(i)).magnitude());
+			}
+			System.out.printf("%c: identity %4d iterations %7.1f ms error %.4f | global %6.1f ms + %4d iterations %7.1f ms error %.4f | max ck difference %.4f\n",
+					letter, identity.getIterationCount(), identity.getIterationTime(), Math3D.average(identity.getErrors()),
+					global.getAlignmentTime(), global.getIterationCount(), global.getIterationTime(),
+					Math3D.average(global.getErrors()), maxDifference);
+			// a random pose: the d_k points rotated by up to half a turn and shifted
+			double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+			double scale = Math.PI*random.nextDouble()/Math.sqrt(axis[0]*axis[0] + axis[1]*axis[1] + axis[2]*axis[2]);
+			Matrix R = Frame.rotationFromVector(new ColumnVector(new double[] {scale*axis[0], scale*axis[1], scale*axis[2]}));
+			ColumnVector shift = new ColumnVector(new double[] {SHIFT*random.nextGaussian(), SHIFT*random.nextGaussian(),
+					SHIFT*random.nextGaussian()});
+			Frame pose = new Frame(R, shift);
+			List<ColumnVector> moved = new ArrayList<>();
+			for (ColumnVector d : identity.getDkVectors()) {
+				moved.add(pose.timesVector(d));
+			}
+			start = System.nanoTime();
+			Frame recovered = alignment.align(moved, new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM)), letter);
+			double time = (System.nanoTime() - start)/1e6;
+			double maxDistance = 0;
+			for (int i = 0; i < moved.size(); i++) {
+				maxDistance = Math.max(maxDistance,
+						recovered.timesVector(moved.get(i)).minus(identity.getSkVectors().get(i)).magnitude());
+			}
+			System.out.printf("   moved by %5.1f deg and %5.1f mm: aligned in %6.1f ms, max distance from the ICP result %.3f\n",
+					Math.toDegrees(scale*Math.sqrt(axis[0]*axis[0] + axis[1]*axis[1] + axis[2]*axis[2])),
+					shift.magnitude(), time, maxDistance);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package cis.pa3.tests;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Jama.Matrix;
+import cis.pa3.data.DataFileParser;
+import cis.pa3.data.SampleReadingsData;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornRegistration;
+import cis.pa3.tools.HornSolver;
+import cis.pa3.tools.PointCloud;
+
+/**
+ * Compares HornSolver with HornRegistration: on the marker fits of every PA4
+ * sample, on the d_k and c_k pairs of every converged ICP run, and on random
+ * point sets moved by random rotations, some of them half turns and some of
+ * the sets flat, with and without noise. Prints the time per solve of each and
+ * the largest differences of their rotations and translations.
+ */
+public class BenchHornSolver {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final int DIM = 3;
+	// how often each set of pairs is solved when timing
+	private static final int REPEATS = 20;
+	private static final int RANDOM_SETS = 2000;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		DataFileParser parser = new DataFileParser();
+		List<double[]> sources = new ArrayList<>(), targets = new ArrayList<>();
+		List<double[]> icpSources = new ArrayList<>(), icpTargets = new ArrayList<>();
+		double[] bodyA = flatten(inputs.getBodyA().getMarkers()), bodyB = flatten(inputs.getBodyB().getMarkers());
+		for (char letter : LETTERS) {
+			String type = letter <= 'F' ? "Debug" : "Unknown";
+			SampleReadingsData readings = parser.parseSampleReadingsData("data" + File.separator + "PA4-" + letter
+					+ "-" + type + "-SampleReadingsTest.txt", inputs.getBodyA(), inputs.getBodyB());
+			for (int i = 0; i < readings.getNsamps(); i++) {
+				sources.add(bodyA);
+				targets.add(flatten(readings.getAMarkerCloud().get(i)));
+				sources.add(bodyB);
+				targets.add(flatten(readings.getBMarkerCloud().get(i)));
+			}
+			System.setOut(quiet);
+			ICPDriver driver = new ICPDriver(letter, letter <= 'F');
+			System.setOut(console);
+			icpSources.add(flatten(new PointCloud(driver.getDkVectors())));
+			icpTargets.add(flatten(new PointCloud(driver.getCkVectors())));
+		}
+		compare("marker fits", sources, targets);
+		compare("ICP pairs", icpSources, icpTargets);
+		Random random = new Random(11);
+		for (int points : new int[] {4, 200}) {
+			for (double noise : new double[] {0, 0.5}) {
+				List<double[]> a = new ArrayList<>(), b = new ArrayList<>();
+				for (int s = 0; s < RANDOM_SETS; s++) {
+					double[] source = new double[DIM*points];
+					// every fourth set lies in a plane
+					boolean flat = s % 4 == 0;
+					for (int i = 0; i < DIM*points; i++) {
+						source[i] = flat && i % DIM == 2 ? 5 : 100*random.nextDouble() - 50;
+					}
+					double[] w = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+					double length = Math.sqrt(w[0]*w[0] + w[1]*w[1] + w[2]*w[2]);
+					// every third rotation is a half turn, the rest of any angle
+					double angle = s % 3 == 0 ? Math.PI : Math.PI*random.nextDouble();
+					Frame frame = new Frame(Frame.rotationFromVector(new ColumnVector(new double[] {
+							angle*w[0]/length, angle*w[1]/length, angle*w[2]/length})),
+							new ColumnVector(new double[] {200*random.nextDouble(), -50, 30}));
+					double[] target = new double[DIM*points];
+					for (int i = 0; i < points; i++) {
+						ColumnVector moved = frame.timesVector(new ColumnVector(new double[] {
+								source[DIM*i], source[DIM*i + 1], source[DIM*i + 2]}));
+						for (int k = 0; k < DIM; k++) {
+							target[DIM*i + k] = moved.get(k) + noise*random.nextGaussian();
+						}
+					}
+					a.add(source);
+					b.add(target);
+				}
+				compare(String.format("random %d points, noise %.1f", points, noise), a, b);
+			}
+		}
+	}
+
+	private static void compare(String name, List<double[]> sources, List<double[]> targets) {
+		HornSolver solver = new HornSolver();
+		double maxRotation = 0, maxTranslation = 0;
+		for (int s = 0; s < sources.size(); s++) {
+			int count = sources.get(s).length/DIM;
+			HornRegistration hr = new HornRegistration(toMatrix(sources.get(s)), toMatrix(targets.get(s)), true);
+			solver.solve(sources.get(s), targets.get(s), count, true);
+			for (int r = 0; r < DIM; r++) {
+				for (int c = 0; c < DIM; c++) {
+					maxRotation = Math.max(maxRotation,
+							Math.abs(hr.rotationMatrix().get(r, c) - solver.getRotation()[DIM*r + c]));
+				}
+				maxTranslation = Math.max(maxTranslation, Math.abs(hr.transMatrix().get(r, 0) - solver.getTranslation()[r]));
+			}
+		}
+		// time each a few rounds, the last one counts
+		double hornTime = 0, solverTime = 0;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int repeat = 0; repeat < REPEATS; repeat++) {
+				for (int s = 0; s < sources.size(); s++) {
+					new HornRegistration(toMatrix(sources.get(s)), toMatrix(targets.get(s)), true);
+				}
+			}
+			hornTime = (System.nanoTime() - start)/1e3/(REPEATS*sources.size());
+			start = System.nanoTime();
+			for (int repeat = 0; repeat < REPEATS; repeat++) {
+				for (int s = 0; s < sources.size(); s++) {
+					solver.solve(sources.get(s), targets.get(s), sources.get(s).length/DIM, true);
+				}
+			}
+			solverTime = (System.nanoTime() - start)/1e3/(REPEATS*sources.size());
+		}
+		System.out.printf("%-28s %5d solves: HornRegistration %7.2f us, HornSolver %5.2f us (%4.1fx),"
+				+ " max difference rotation %.1e translation %.1e, %d Jacobi fallbacks\n", name, sources.size(),
+				hornTime, solverTime, hornTime/solverTime, maxRotation, maxTranslation,
+				solver.getJacobiCount()/(3*REPEATS + 1));
+	}
+
+	private static double[] flatten(PointCloud cloud) {
+		double[] values = new double[DIM*cloud.getSize()];
+		for (int i = 0; i < cloud.getSize(); i++) {
+			for (int k = 0; k < DIM; k++) {
+				values[DIM*i + k] = cloud.get(i).get(k);
+			}
+		}
+		return values;
+	}
+	private static Matrix toMatrix(double[] points) {
+		Matrix M = new Matrix(DIM, points.length/DIM);
+		for (int i = 0; i < points.length/DIM; i++) {
+			for (int k = 0; k < DIM; k++) {
+				M.set(k, i, points[DIM*i + k]);
+			}
+		}
+		return M;
+	}
+}
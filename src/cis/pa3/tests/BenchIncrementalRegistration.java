@@ -0,0 +1,70 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.IncrementalRegistration;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Math3D;
+
+/**
+ * Feeds the samples of every PA4 dataset one at a time to an
+ * IncrementalRegistration and compares the time of an update with that of a
+ * closest point query on the index and with a full ICPDriver run, and its
+ * errors with those of ICPDriver
+ */
+public class BenchIncrementalRegistration {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final int REPEATS = 20, REFINE_ITERATIONS = 10;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		RegistrationEngine registrations = new RegistrationEngine(inputs);
+		MeshIndex index = inputs.getIndex(0);
+		for (char letter : LETTERS) {
+			System.setOut(quiet);
+			ICPDriver batch = new ICPDriver(letter, letter <= 'F', registrations, new ICPDriver.Options());
+			System.setOut(console);
+			List<ColumnVector> samples = batch.getDkVectors();
+			List<ColumnVector> registered = batch.getSkVectors();
+			// warm up, then time the updates and the plain queries over several runs
+			IncrementalRegistration online = null;
+			long updateTime = 0, queryTime = 0;
+			double[] out = new double[3];
+			for (int run = 0; run < REPEATS; run++) {
+				online = new IncrementalRegistration(index);
+				long start = System.nanoTime();
+				for (ColumnVector sample : samples) {
+					online.addSample(sample);
+				}
+				long updated = System.nanoTime();
+				for (ColumnVector point : registered) {
+					index.findClosestPoint(point.get(0), point.get(1), point.get(2), out, 0);
+				}
+				if (run >= REPEATS/2) {
+					updateTime += updated - start;
+					queryTime += System.nanoTime() - updated;
+				}
+			}
+			int updates = (REPEATS - REPEATS/2)*samples.size();
+			double onlineError = online.getMeanError();
+			long start = System.nanoTime();
+			online.refine(REFINE_ITERATIONS);
+			long refineTime = System.nanoTime() - start;
+			System.out.printf("%c: %d samples, update %.1f us, query %.1f us, ICPDriver %.1f ms | online error %.4f, after %d full iterations (%.1f ms) %.4f | ICPDriver error %.4f\n",
+					letter, samples.size(), updateTime/1e3/updates, queryTime/1e3/updates, batch.getIterationTime(),
+					onlineError, REFINE_ITERATIONS, refineTime/1e6, online.getMeanError(), Math3D.average(batch.getErrors()));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import Jama.Matrix;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.ICPEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.ClosestPointBatch;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.HornRegistration;
+import cis.pa3.tools.HornSolver;
+
+/**
+ * Measures the bytes the ICP iteration allocates, summed over all threads, on
+ * every debug dataset: per iteration of the engine as a whole, per run of its
+ * closest point stage alone, which should allocate nothing, and per
+ * registration solve of all pairs, with the HornSolver the engine uses and
+ * with HornRegistration, the matrices it takes included. The engine
+ * and the stages are warmed up first, so that the JIT and the first-use
+ * buffers are not counted.
+ */
+public class BenchIterationAllocation {
+	private static final int DIM = 3;
+	private static final int WARMUP = 3;
+	// closest point runs and registration solves measured per dataset
+	private static final int RUNS = 200;
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		ICPEngine engine = new ICPEngine(inputs);
+		Frame identity = new Frame(Matrix.identity(DIM, DIM), new ColumnVector(DIM));
+		for (char letter = 'A'; letter <= 'F'; letter++) {
+			System.setOut(quiet);
+			List<ColumnVector> points = new ICPDriver(letter, true).getDkVectors();
+			System.setOut(console);
+			double[] dk = new double[DIM*points.size()];
+			for (int i = 0; i < points.size(); i++) {
+				for (int k = 0; k < DIM; k++) {
+					dk[DIM*i + k] = points.get(i).get(k);
+				}
+			}
+			for (int i = 0; i < WARMUP; i++) {
+				engine.start(dk, points.size(), identity, 0);
+				while (engine.step()) {
+				}
+			}
+			engine.start(dk, points.size(), identity, 0);
+			long before = allocatedBytes();
+			while (engine.step()) {
+			}
+			double perIteration = (double) (allocatedBytes() - before - overhead())/engine.getIterationCount();
+			// the closest point stage alone, on the converged s_k points
+			ClosestPointBatch batch = new ClosestPointBatch(true);
+			double[] sk = engine.getSk();
+			ClosestPointBatch.getSharedPool();
+			for (int i = 0; i < WARMUP; i++) {
+				batch.run(inputs.getIndex(0), sk, points.size(), ClosestPointBatch.getSharedPool());
+			}
+			before = allocatedBytes();
+			for (int i = 0; i < RUNS; i++) {
+				batch.run(inputs.getIndex(0), sk, points.size(), ClosestPointBatch.getSharedPool());
+			}
+			double perRun = (double) (allocatedBytes() - before - overhead())/RUNS;
+			double[] ck = engine.getCk();
+			HornSolver solver = new HornSolver();
+			for (int i = 0; i < WARMUP; i++) {
+				solver.solve(dk, ck, points.size(), true);
+			}
+			before = allocatedBytes();
+			for (int i = 0; i < RUNS; i++) {
+				solver.solve(dk, ck, points.size(), true);
+			}
+			double perSolve = (double) (allocatedBytes() - before - overhead())/RUNS;
+			before = allocatedBytes();
+			for (int i = 0; i < RUNS; i++) {
+				new HornRegistration(toMatrix(dk, points.size()), toMatrix(ck, points.size()), true);
+			}
+			double perHornSolve = (double) (allocatedBytes() - before - overhead())/RUNS;
+			System.out.printf("%c: %4d iterations, %8.1f bytes per iteration | closest points %6.1f bytes per run of %d queries"
+					+ " | registration %4.1f bytes per solve (HornRegistration %8.1f)\n",
+					letter, engine.getIterationCount(), perIteration, perRun, points.size(), perSolve, perHornSolve);
+		}
+	}
+
+	private static Matrix toMatrix(double[] points, int count) {
+		Matrix M = new Matrix(DIM, count);
+		for (int i = 0; i < count; i++) {
+			for (int k = 0; k < DIM; k++) {
+				M.set(k, i, points[DIM*i + k]);
+			}
+		}
+		return M;
+	}
+	/**
+	 * The bytes allocated so far by all live threads
+	 */
+	private static long allocatedBytes() {
+		long total = 0;
+		for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+	/**
+	 * The bytes two calls of allocatedBytes allocate themselves
+	 */
+	private static long overhead() {
+		long first = allocatedBytes();
+		return allocatedBytes() - first;
+	}
+}
@@ -0,0 +1,85 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Jama.Matrix;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.MultiHypothesisICP;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.InitialPose;
+import cis.pa3.tools.Math3D;
+
+/**
+ * Runs ICP on every PA4 dataset from the identity and after a
+ * multi-hypothesis search, comparing time, iterations and final errors. Then
+ * moves the d_k points of each dataset by a random large rotation and shift,
+ * where ICP from the identity cannot succeed, and checks how close the
+ * search comes to the ICP result.
+ */
+public class BenchMultiHypothesis {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	// shift of the random poses, in mm
+	private static final double SHIFT = 30;
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		RegistrationEngine registrations = new RegistrationEngine(inputs);
+		Random random = new Random(1);
+		for (char letter : LETTERS) {
+			boolean isDebug = letter <= 'F';
+			System.setOut(quiet);
+			ICPDriver identity = new ICPDriver(letter, isDebug, registrations,
+					new ICPDriver.Options().start(InitialPose.IDENTITY));
+			ICPDriver multi = new ICPDriver(letter, isDebug, registrations,
+					new ICPDriver.Options().start(InitialPose.MULTI_HYPOTHESIS));
+			System.setOut(console);
+			double maxDifference = 0;
+			for (int i = 0; i < identity.getCkVectors().size(); i++) {
+				maxDifference = Math.max(maxDifference,
+						identity.getCkVectors().get(i).minus(multi.getCkVectors().get(i)).magnitude());
+			}
+			System.out.printf("%c: identity %4d iterations %7.1f ms error %.4f | search %6.1f ms + %4d iterations %7.1f ms error %.4f | max ck difference %.4f\n",
+					letter, identity.getIterationCount(), identity.getIterationTime(), Math3D.average(identity.getErrors()),
+					multi.getAlignmentTime(), multi.getIterationCount(), multi.getIterationTime(),
+					Math3D.average(multi.getErrors()), maxDifference);
+			// a random pose: the d_k points rotated by up to half a turn and shifted
+			double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+			double length = Math.sqrt(axis[0]*axis[0] + axis[1]*axis[1] + axis[2]*axis[2]);
+			double angle = Math.PI*random.nextDouble();
+			Matrix R = Frame.rotationFromVector(new ColumnVector(new double[] {angle*axis[0]/length,
+					angle*axis[1]/length, angle*axis[2]/length}));
+			ColumnVector shift = new ColumnVector(new double[] {SHIFT*random.nextGaussian(), SHIFT*random.nextGaussian(),
+					SHIFT*random.nextGaussian()});
+			Frame pose = new Frame(R, shift);
+			List<ColumnVector> moved = new ArrayList<>();
+			for (ColumnVector d : identity.getDkVectors()) {
+				moved.add(pose.timesVector(d));
+			}
+			long start = System.nanoTime();
+			MultiHypothesisICP search = new MultiHypothesisICP(inputs.getIndex(0), moved,
+					MultiHypothesisICP.startingPoses(moved, inputs.getMesh()));
+			double time = (System.nanoTime() - start)/1e6;
+			double maxDistance = 0;
+			for (int i = 0; i < moved.size(); i++) {
+				maxDistance = Math.max(maxDistance, search.getRegistration().timesVector(moved.get(i))
+						.minus(identity.getSkVectors().get(i)).magnitude());
+			}
+			System.out.printf("   moved by %5.1f deg and %5.1f mm: %d hypotheses, %d rounds, %4d iterations in %6.1f ms, mean error %.3f, max distance from the ICP result %.3f\n",
+					Math.toDegrees(angle), shift.magnitude(), search.getHypothesisCount(), search.getRoundCount(),
+					search.getIterationCount(), time, search.getMeanError(), maxDistance);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package cis.pa3.tests;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cis.pa3.data.DataFileParser;
+import cis.pa3.data.SampleReadingsData;
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.drivers.RegistrationResult;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.ColumnVector;
+
+/**
+ * Registers every PA4 dataset with one RegistrationEngine and compares the
+ * results and the time per call with ICPDriver, once with the driver loading
+ * its own inputs and once sharing them. Then registers all datasets again from
+ * several threads at once on the same engine and checks that every result
+ * equals the one registered alone.
+ */
+public class BenchRegistrationEngine {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final int THREADS = 4;
+	// how often each thread registers all datasets
+	private static final int ROUNDS = 3;
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		long start = System.nanoTime();
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		final RegistrationEngine engine = new RegistrationEngine(inputs);
+		System.out.printf("engine prepared in %.1f ms\n", (System.nanoTime() - start)/1e6);
+		DataFileParser parser = new DataFileParser();
+		final List<SampleReadingsData> readings = new ArrayList<>();
+		for (char letter : LETTERS) {
+			String type = letter <= 'F' ? "Debug" : "Unknown";
+			readings.add(parser.parseSampleReadingsData("data" + File.separator + "PA4-" + letter + "-" + type
+					+ "-SampleReadingsTest.txt", inputs.getBodyA(), inputs.getBodyB()));
+		}
+		final List<RegistrationResult> alone = new ArrayList<>();
+		for (int i = 0; i < LETTERS.length; i++) {
+			char letter = LETTERS[i];
+			System.setOut(quiet);
+			start = System.nanoTime();
+			new ICPDriver(letter, letter <= 'F');
+			double ownTime = (System.nanoTime() - start)/1e6;
+			start = System.nanoTime();
+			ICPDriver shared = new ICPDriver(letter, letter <= 'F', engine, new ICPDriver.Options());
+			double sharedTime = (System.nanoTime() - start)/1e6;
+			System.setOut(console);
+			start = System.nanoTime();
+			RegistrationResult result = engine.register(readings.get(i));
+			double engineTime = (System.nanoTime() - start)/1e6;
+			alone.add(result);
+			System.out.printf("%c: driver with own inputs %7.1f ms, with shared inputs %6.1f ms | engine %6.1f ms,"
+					+ " %3d iterations, max ck difference from the driver %.4f\n", letter, ownTime, sharedTime,
+					engineTime, result.getIterationCount(), maxDistance(result.getCkVectors(), shared.getCkVectors()));
+		}
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		List<Callable<Double>> tasks = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					double maxDifference = 0;
+					for (int round = 0; round < ROUNDS; round++) {
+						for (int j = 0; j < LETTERS.length; j++) {
+							// each thread goes through the datasets in another order
+							int i = (j + offset) % LETTERS.length;
+							RegistrationResult result = engine.register(readings.get(i));
+							maxDifference = Math.max(maxDifference,
+									maxDistance(result.getCkVectors(), alone.get(i).getCkVectors()));
+						}
+					}
+					return maxDifference;
+				}
+			});
+		}
+		start = System.nanoTime();
+		double maxDifference = 0;
+		for (Future<Double> future : threads.invokeAll(tasks)) {
+			maxDifference = Math.max(maxDifference, future.get());
+		}
+		threads.shutdown();
+		System.out.printf("%d threads registered all datasets %d times each in %.1f ms, max ck difference from"
+				+ " the results registered alone %.4f\n", THREADS, ROUNDS, (System.nanoTime() - start)/1e6, maxDifference);
+	}
+
+	private static double maxDistance(List<ColumnVector> a, List<ColumnVector> b) {
+		double max = 0;
+		for (int i = 0; i < a.size(); i++) {
+			max = Math.max(max, a.get(i).minus(b.get(i)).magnitude());
+		}
+		return max;
+	}
+}
@@ -0,0 +1,68 @@
+package cis.pa3.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import cis.pa3.drivers.ICPDriver;
+import cis.pa3.drivers.RegistrationEngine;
+import cis.pa3.drivers.RegistrationInputs;
+import cis.pa3.geometry.MeshIndexType;
+import cis.pa3.tools.Math3D;
+import cis.pa3.tools.RegistrationMethod;
+
+/**
+ * Runs ICP on every PA4 dataset with point-to-point and point-to-plane
+ * updates, each plain, trimmed and Anderson accelerated, and compares
+ * iterations, iteration time and final errors; the ck difference is
+ * measured against the first configuration
+ */
+public class BenchRegistrationMethod {
+	private static final char[] LETTERS = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K'};
+	private static final RegistrationMethod[] METHODS = {RegistrationMethod.POINT_TO_POINT,
+			RegistrationMethod.POINT_TO_PLANE};
+	// the kept fraction and Anderson window of each configuration
+	private static final double[] KEEP_FRACTIONS = {0, 0.9, 0.7, 0};
+	private static final int[] ANDERSON_WINDOWS = {0, 0, 0, 3};
+	public static void main(String[] args) {
+		PrintStream console = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		RegistrationInputs inputs = new RegistrationInputs("Problem4", MeshIndexType.BVH, 1);
+		RegistrationEngine[][] engines = new RegistrationEngine[METHODS.length][KEEP_FRACTIONS.length];
+		for (int m = 0; m < METHODS.length; m++) {
+			for (int c = 0; c < KEEP_FRACTIONS.length; c++) {
+				engines[m][c] = new RegistrationEngine(inputs, METHODS[m], KEEP_FRACTIONS[c], ANDERSON_WINDOWS[c]);
+			}
+		}
+		for (char letter : LETTERS) {
+			boolean isDebug = letter <= 'F';
+			ICPDriver reference = null;
+			for (int m = 0; m < METHODS.length; m++) {
+				RegistrationMethod method = METHODS[m];
+				for (int c = 0; c < KEEP_FRACTIONS.length; c++) {
+					double keep = KEEP_FRACTIONS[c];
+					int window = ANDERSON_WINDOWS[c];
+					System.setOut(quiet);
+					ICPDriver driver = new ICPDriver(letter, isDebug, engines[m][c], new ICPDriver.Options());
+					System.setOut(console);
+					if (reference == null) {
+						reference = driver;
+					}
+					double maxDifference = 0;
+					for (int i = 0; i < driver.getCkVectors().size(); i++) {
+						maxDifference = Math.max(maxDifference,
+								reference.getCkVectors().get(i).minus(driver.getCkVectors().get(i)).magnitude());
+					}
+					String variant = window > 0 ? String.format("anderson %d", window)
+							: keep > 0 ? String.format("keep %.0f%%", 100*keep) : "plain";
+					System.out.printf("%c: %-14s %-10s %4d iterations %7.1f ms error %.4f max ck difference %.4f\n",
+							letter, method, variant, driver.getIterationCount(), driver.getIterationTime(),
+							Math3D.average(driver.getErrors()), maxDifference);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package cis.pa3.tests;
+
+import java.io.File;
+import java.util.Random;
+
+import cis.pa3.data.DataFileParser;
+import cis.pa3.geometry.TriangleLanes;
+import cis.pa3.geometry.TriangleTable;
+import cis.pa3.geometry.Utilities;
+import cis.pa3.tools.Mesh;
+
+/**
+ * Compares the scalar point-triangle kernel with the structure-of-arrays
+ * kernel by scanning every triangle of a mesh for each query point
+ */
+public class BenchTriangleKernel {
+	private static final int NUM_QUERIES = 2000;
+	private static final int ROUNDS = 5;
+	public static void main(String[] args) {
+		String[] meshes = {"Problem3Mesh.sur", "Problem5MeshFile.sur"};
+		for (String name : meshes) {
+			DataFileParser parser = new DataFileParser();
+			Mesh mesh = new Mesh(parser.parseMeshData("data" + File.separator + name));
+			bench(name, mesh);
+		}
+	}
+	private static void bench(String name, Mesh mesh) {
+		TriangleTable table = mesh.getTriangleTable();
+		TriangleLanes lanes = new TriangleLanes(table);
+		int n = table.getTriangleCount();
+		Random random = new Random(7);
+		double[] queries = new double[3*NUM_QUERIES];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = 140*random.nextDouble() - 70;
+		}
+		double[] out = new double[4];
+		long scalarTime = 0, laneTime = 0;
+		int mismatches = 0;
+		double checksum = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			int[] scalarIds = new int[NUM_QUERIES];
+			double[] scalarDists = new double[NUM_QUERIES];
+			long start = System.nanoTime();
+			for (int q = 0; q < NUM_QUERIES; q++) {
+				double best = Double.POSITIVE_INFINITY;
+				for (int i = 0; i < n; i++) {
+					double dist = Utilities.findClosestPointOnTriangle(table, i,
+							queries[3*q], queries[3*q + 1], queries[3*q + 2], out, 0);
+					if (dist < best) {
+						best = dist;
+						scalarIds[q] = i;
+					}
+				}
+				scalarDists[q] = best;
+			}
+			scalarTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int q = 0; q < NUM_QUERIES; q++) {
+				int position = lanes.findClosestPoint(0, n, queries[3*q], queries[3*q + 1], queries[3*q + 2],
+						Double.POSITIVE_INFINITY, out, 0);
+				checksum += out[3];
+				if (lanes.getTriangle(position) != scalarIds[q] || out[3] != scalarDists[q]) {
+					mismatches++;
+				}
+			}
+			laneTime = System.nanoTime() - start;
+		}
+		double tests = (double) NUM_QUERIES*n;
+		System.out.printf("%s (%d triangles, checksum %.3f):\n", name, n, checksum);
+		System.out.printf("  scalar kernel: %.2f ns per triangle\n", scalarTime/tests);
+		System.out.printf("  lane kernel:   %.2f ns per triangle, speedup %.2fx, %d mismatches\n",
+				laneTime/tests, (double) scalarTime/laneTime, mismatches);
+	}
+}
@@ -0,0 +1,344 @@
+package cis.pa3.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import cis.pa3.data.BinaryMeshFile;
+import cis.pa3.data.DataFileParser;
+import cis.pa3.geometry.ClosestPointBatch;
+import cis.pa3.geometry.MeshBVH;
+import cis.pa3.geometry.MeshDistanceField;
+import cis.pa3.geometry.MeshGrid;
+import cis.pa3.geometry.MeshIndex;
+import cis.pa3.geometry.MeshScene;
+import cis.pa3.geometry.MeshWalker;
+import cis.pa3.geometry.Utilities;
+import cis.pa3.tools.ColumnVector;
+import cis.pa3.tools.Frame;
+import cis.pa3.tools.Mesh;
+import cis.pa3.tools.MeshAdjacency;
+import cis.pa3.tools.PackedMesh;
+
+public class TestMeshIndex {
+	private static final int NUM_QUERIES = 500;
+	private static final double TOLERANCE = 1e-9;
+	public static void main(String[] args) throws IOException {
+		DataFileParser parser = new DataFileParser();
+		Mesh mesh = new Mesh(parser.parseMeshData("data" + File.separator + "Problem3Mesh.sur"));
+		// random query points in a box slightly larger than the mesh,
+		// and points just off the surface like the sample points in ICP
+		Random random = new Random(42);
+		ColumnVector[] farQueries = new ColumnVector[NUM_QUERIES];
+		ColumnVector[] nearQueries = new ColumnVector[NUM_QUERIES];
+		for (int i = 0; i < NUM_QUERIES; i++) {
+			double[] far = new double[3];
+			double[] near = new double[3];
+			ColumnVector vertex = mesh.getVertices().get(random.nextInt(mesh.getVertices().getSize()));
+			for (int k = 0; k < 3; k++) {
+				far[k] = 140*random.nextDouble() - 70;
+				near[k] = vertex.get(k) + 4*random.nextDouble() - 2;
+			}
+			farQueries[i] = new ColumnVector(far);
+			nearQueries[i] = new ColumnVector(near);
+		}
+		long build = System.nanoTime();
+		MeshDistanceField field = new MeshDistanceField(new MeshBVH(mesh));
+		System.out.printf("Distance field built in %.1f ms with %d bricks\n", (System.nanoTime() - build)/1e6, field.getBrickCount());
+		File file = File.createTempFile("field", ".bin");
+		field.save(file.getPath());
+		MeshDistanceField loaded = MeshDistanceField.load(file.getPath(), new MeshBVH(mesh));
+		checkCorruptField(file, mesh);
+		file.delete();
+		run(mesh, field, loaded, "far", farQueries);
+		run(mesh, field, loaded, "near", nearQueries);
+		checkWarmStart("BVH", new MeshBVH(mesh), nearQueries);
+		checkWarmStart("Grid", new MeshGrid(mesh), nearQueries);
+		checkWarmStart("Distance field", field, nearQueries);
+		checkAdjacency(mesh);
+		checkWalk(mesh, new MeshBVH(mesh));
+		checkBinaryFiles(mesh, nearQueries);
+		checkScene(mesh, farQueries);
+	}
+	/**
+	 * Places the mesh three times in a scene, sharing one hierarchy, and
+	 * compares the scene's answers with brute force over every instance, before
+	 * and after moving one instance into the middle of the others
+	 */
+	private static void checkScene(Mesh mesh, ColumnVector[] queries) {
+		MeshScene scene = new MeshScene();
+		MeshBVH bvh = new MeshBVH(mesh);
+		scene.addInstance(bvh, new Frame(Frame.rotationFromVector(new ColumnVector(new double[] {0, 0, 0})),
+				new ColumnVector(3)));
+		scene.addInstance(bvh, new Frame(Frame.rotationFromVector(new ColumnVector(new double[] {0.3, -0.2, 1.1})),
+				new ColumnVector(new double[] {90, 10, -20})));
+		scene.addInstance(bvh, new Frame(Frame.rotationFromVector(new ColumnVector(new double[] {-1.5, 0.4, 0.2})),
+				new ColumnVector(new double[] {-40, 80, 30})));
+		checkScene("Scene", mesh, scene, queries);
+		long start = System.nanoTime();
+		scene.setPose(1, new Frame(Frame.rotationFromVector(new ColumnVector(new double[] {0, 2.0, 0})),
+				new ColumnVector(new double[] {-10, 20, 5})));
+		System.out.printf("Scene: instance moved in %.3f ms\n", (System.nanoTime() - start)/1e6);
+		checkScene("Scene (moved)", mesh, scene, queries);
+	}
+	private static void checkScene(String name, Mesh mesh, MeshScene scene, ColumnVector[] queries) {
+		double[] point = new double[3];
+		int failures = 0;
+		long sceneTime = 0;
+		for (int i = 0; i < queries.length; i++) {
+			double expected = Double.POSITIVE_INFINITY;
+			for (int instance = 0; instance < scene.getInstanceCount(); instance++) {
+				ColumnVector local = scene.getPose(instance).inverse().timesVector(queries[i]);
+				expected = Math.min(expected, Utilities.findClosestPointOnMesh(mesh, local).magnitude());
+			}
+			long start = System.nanoTime();
+			MeshScene.Hit hit = scene.findClosestPoint(queries[i]);
+			sceneTime += System.nanoTime() - start;
+			// the reported triangle of the reported instance must hold a point that close
+			ColumnVector local = scene.getPose(hit.getInstance()).inverse().timesVector(queries[i]);
+			double onTriangle = Math.sqrt(Utilities.findClosestPointOnTriangle(mesh.getTriangleTable(),
+					hit.getTriangle(), local.get(0), local.get(1), local.get(2), point, 0));
+			if (Math.abs(hit.getDistance() - expected) > TOLERANCE || Math.abs(onTriangle - expected) > TOLERANCE
+					|| Math.abs(hit.getPoint().minus(queries[i]).magnitude() - expected) > TOLERANCE) {
+				failures++;
+			}
+		}
+		System.out.printf("%s: %.1f ms for %d instances, %d of %d queries differ from brute force\n",
+				name, sceneTime/1e6, scene.getInstanceCount(), failures, queries.length);
+	}
+	/**
+	 * Overwrites the index of the first stored brick with one past the end of
+	 * the field, which load must reject rather than fail on later
+	 */
+	private static void checkCorruptField(File file, Mesh mesh) throws IOException {
+		File corrupt = File.createTempFile("field", ".bin");
+		byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+		// magic, version, triangle count, checksum, cell size, band width,
+		// origin and dimensions per axis and the brick count come first
+		java.nio.ByteBuffer.wrap(bytes).putInt(4 + 4 + 4 + 8 + 8 + 8 + 3*(8 + 4) + 4, Integer.MAX_VALUE);
+		java.nio.file.Files.write(corrupt.toPath(), bytes);
+		String outcome = "accepted";
+		try {
+			MeshDistanceField.load(corrupt.getPath(), new MeshBVH(mesh));
+		} catch (IOException e) {
+			outcome = "rejected";
+		}
+		corrupt.delete();
+		System.out.printf("Distance field with a corrupt brick index: %s\n", outcome);
+	}
+	/**
+	 * Writes the mesh and its hierarchy to binary files, maps them back in and
+	 * compares the startup time with parsing the .sur file
+	 */
+	private static void checkBinaryFiles(Mesh mesh, ColumnVector[] queries) throws IOException {
+		File meshFile = File.createTempFile("mesh", BinaryMeshFile.EXTENSION);
+		File bvhFile = File.createTempFile("bvh", ".bin");
+		BinaryMeshFile.write(mesh.getPacked(), meshFile.getPath());
+		new MeshBVH(mesh).save(bvhFile.getPath());
+		DataFileParser parser = new DataFileParser();
+		long start = System.nanoTime();
+		Mesh parsed = new Mesh(parser.parseMeshData("data" + File.separator + "Problem3Mesh.sur"));
+		MeshBVH built = new MeshBVH(parsed);
+		long textTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		Mesh mapped = new Mesh(parser.parseBinaryMesh(meshFile.getPath()));
+		MeshBVH loaded = MeshBVH.load(bvhFile.getPath(), mapped);
+		long binaryTime = System.nanoTime() - start;
+		checkCorruptHierarchy(bvhFile, mapped);
+		meshFile.delete();
+		bvhFile.delete();
+		PackedMesh a = parsed.getPacked(), b = mapped.getPacked();
+		boolean same = Arrays.equals(a.getVertices(), b.getVertices()) && Arrays.equals(a.getIndices(), b.getIndices());
+		int failures = 0;
+		for (int i = 0; i < queries.length; i++) {
+			if (built.findClosestPoint(queries[i]).minus(loaded.findClosestPoint(queries[i])).magnitude() != 0) {
+				failures++;
+			}
+		}
+		System.out.printf("Binary files: parse and build %.1f ms, map and load %.1f ms, mesh %s, %d queries differ\n",
+				textTime/1e6, binaryTime/1e6, same ? "identical" : "differs", failures);
+	}
+	private static void checkCorruptHierarchy(File file, Mesh mesh) throws IOException {
+		File corrupt = File.createTempFile("bvh", ".bin");
+		byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+		// the node count sits in the header before the node bounds, and the
+		// left child of the root comes right after the bounds
+		java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		int nodes = buffer.getInt(32);
+		buffer.putInt(40 + 8*2*3*nodes, -5);
+		java.nio.file.Files.write(corrupt.toPath(), bytes);
+		String outcome = "accepted";
+		try {
+			MeshBVH.load(corrupt.getPath(), mesh);
+		} catch (IOException e) {
+			outcome = "rejected";
+		}
+		corrupt.delete();
+		System.out.printf("Hierarchy with a corrupt child index: %s\n", outcome);
+	}
+	/**
+	 * Moves the query points a little at a time, like the samples between ICP
+	 * iterations, and compares a warm started batch with a cold one
+	 */
+	private static void checkWarmStart(String name, MeshIndex index, ColumnVector[] queries) {
+		Random random = new Random(3);
+		double[] flat = new double[3*queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			for (int k = 0; k < 3; k++) {
+				flat[3*i + k] = queries[i].get(k);
+			}
+		}
+		ClosestPointBatch warm = new ClosestPointBatch(true);
+		int failures = 0, skipped = 0;
+		for (int round = 0; round < 10; round++) {
+			double step = 0.5/(round + 1);
+			for (int i = 0; i < flat.length; i++) {
+				flat[i] += step*(2*random.nextDouble() - 1);
+			}
+			warm.run(index, flat, queries.length, ClosestPointBatch.getSharedPool());
+			ClosestPointBatch cold = ClosestPointBatch.query(index, flat);
+			for (int i = 0; i < queries.length; i++) {
+				if (Math.abs(warm.getDistances()[i] - cold.getDistances()[i]) > TOLERANCE) {
+					failures++;
+				}
+			}
+			skipped += warm.getSkippedCount();
+		}
+		System.out.printf("%s (warm start): %d of %d searches skipped, %d queries differ from a cold start\n",
+				name, skipped, 10*queries.length, failures);
+	}
+	/**
+	 * Every edge neighbor must point back across the shared edge
+	 */
+	private static void checkAdjacency(Mesh mesh) {
+		MeshAdjacency adjacency = mesh.getAdjacency();
+		int n = mesh.getPacked().getTriangleCount();
+		int boundary = 0, failures = 0;
+		for (int t = 0; t < n; t++) {
+			for (int k = 0; k < 3; k++) {
+				int other = adjacency.getEdgeNeighbor(t, k);
+				if (other < 0) {
+					boundary++;
+					continue;
+				}
+				boolean back = false;
+				for (int j = 0; j < 3; j++) {
+					back |= adjacency.getEdgeNeighbor(other, j) == t;
+				}
+				if (!back) {
+					failures++;
+				}
+			}
+		}
+		System.out.printf("Adjacency: %d boundary edges, %d one-sided neighbors\n", boundary, failures);
+	}
+	/**
+	 * Moves a point smoothly from vertex to neighboring vertex just off the
+	 * surface, like a tracked probe tip, and compares walks seeded with the
+	 * previous answer to the index. The second pass over the track is timed,
+	 * once the walker has computed the clearances it needs.
+	 */
+	private static void checkWalk(Mesh mesh, MeshBVH bvh) {
+		int legs = 1000, stepsPerLeg = 10;
+		Random random = new Random(5);
+		MeshAdjacency adjacency = mesh.getAdjacency();
+		double[] vertices = mesh.getPacked().getVertices();
+		double[] track = new double[3*legs*stepsPerLeg];
+		double[] from = new double[3], to = new double[3];
+		int vertex = random.nextInt(mesh.getPacked().getVertexCount());
+		for (int k = 0; k < 3; k++) {
+			to[k] = vertices[3*vertex + k];
+		}
+		for (int leg = 0; leg < legs; leg++) {
+			int tri = adjacency.getVertexTriangle(vertex, random.nextInt(adjacency.getVertexDegree(vertex)));
+			vertex = mesh.getPacked().getVertexIndex(tri, random.nextInt(3));
+			for (int k = 0; k < 3; k++) {
+				from[k] = to[k];
+				to[k] = vertices[3*vertex + k] + random.nextDouble() - 0.5;
+			}
+			for (int s = 0; s < stepsPerLeg; s++) {
+				double f = (double) s/stepsPerLeg;
+				for (int k = 0; k < 3; k++) {
+					track[3*(leg*stepsPerLeg + s) + k] = (1 - f)*from[k] + f*to[k];
+				}
+			}
+		}
+		MeshWalker walker = new MeshWalker(bvh);
+		double[] out = new double[3], expected = new double[3];
+		int failures = 0;
+		long walkTime = 0, indexTime = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			int seed = -1;
+			walkTime = 0;
+			indexTime = 0;
+			for (int i = 0; i < track.length/3; i++) {
+				double px = track[3*i], py = track[3*i + 1], pz = track[3*i + 2];
+				long start = System.nanoTime();
+				seed = walker.findClosestPoint(px, py, pz, seed, out, 0);
+				walkTime += System.nanoTime() - start;
+				start = System.nanoTime();
+				bvh.findClosestPoint(px, py, pz, expected, 0);
+				indexTime += System.nanoTime() - start;
+				double walked = (out[0] - px)*(out[0] - px) + (out[1] - py)*(out[1] - py) + (out[2] - pz)*(out[2] - pz);
+				double direct = (expected[0] - px)*(expected[0] - px) + (expected[1] - py)*(expected[1] - py)
+						+ (expected[2] - pz)*(expected[2] - pz);
+				if (Math.abs(Math.sqrt(walked) - Math.sqrt(direct)) > TOLERANCE) {
+					failures++;
+				}
+			}
+		}
+		System.out.printf("Walk: %.1f ms (index alone %.1f ms), %d steps, %d of %d answers from the index, %d differ\n",
+				walkTime/1e6, indexTime/1e6, walker.getStepCount(), walker.getFallbackCount(),
+				walker.getQueryCount(), failures);
+	}
+	private static void run(Mesh mesh, MeshDistanceField field, MeshDistanceField loaded, String name, ColumnVector[] queries) {
+		long start = System.nanoTime();
+		ColumnVector[] expected = new ColumnVector[queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			expected[i] = Utilities.findClosestPointOnMesh(mesh, queries[i]);
+		}
+		System.out.printf("Brute force (%s): %.1f ms\n", name, (System.nanoTime() - start)/1e6);
+		check("BVH (median)", new MeshBVH(mesh, MeshBVH.DEFAULT_LEAF_SIZE, MeshBVH.SplitMethod.MEDIAN), queries, expected);
+		check("BVH (SAH)", new MeshBVH(mesh), queries, expected);
+		check("BVH (SAH, leaf size 1)", new MeshBVH(mesh, 1, MeshBVH.SplitMethod.SAH), queries, expected);
+		check("Grid", new MeshGrid(mesh), queries, expected);
+		check("Grid (5mm cells)", new MeshGrid(mesh, 5.0), queries, expected);
+		check("Distance field", field, queries, expected);
+		check("Distance field (loaded)", loaded, queries, expected);
+	}
+	private static void check(String name, MeshIndex index, ColumnVector[] queries, ColumnVector[] expected) {
+		long start = System.nanoTime();
+		int failures = 0;
+		for (int i = 0; i < queries.length; i++) {
+			ColumnVector actual = Utilities.findClosestPointOnMesh(index, queries[i]);
+			if (Math.abs(actual.magnitude() - expected[i].magnitude()) > TOLERANCE) {
+				failures++;
+			}
+		}
+		System.out.printf("%s: %.1f ms, %d of %d queries differ from brute force\n",
+				name, (System.nanoTime() - start)/1e6, failures, queries.length);
+		// the same queries as one batch, checking the reported triangles too
+		double[] flat = new double[3*queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			for (int k = 0; k < 3; k++) {
+				flat[3*i + k] = queries[i].get(k);
+			}
+		}
+		start = System.nanoTime();
+		ClosestPointBatch batch = ClosestPointBatch.query(index, flat);
+		long elapsed = System.nanoTime() - start;
+		double[] point = new double[3];
+		failures = 0;
+		for (int i = 0; i < queries.length; i++) {
+			double onTriangle = Math.sqrt(Utilities.findClosestPointOnTriangle(index.getMesh().getTriangleTable(),
+					batch.getTriangles()[i], flat[3*i], flat[3*i + 1], flat[3*i + 2], point, 0));
+			if (Math.abs(batch.getDistances()[i] - expected[i].magnitude()) > TOLERANCE
+					|| Math.abs(onTriangle - batch.getDistances()[i]) > TOLERANCE) {
+				failures++;
+			}
+		}
+		System.out.printf("%s (batch): %.1f ms, %d of %d queries differ from brute force\n",
+				name, elapsed/1e6, failures, queries.length);
+	}
+}
@@ -0,0 +1,102 @@
+package cis.pa3.tools;
+
+import Jama.Matrix;
+
+/**
+ * Anderson acceleration of a fixed point iteration x = G(x). Given the
+ * current point x and the plain step G(x), it returns the combination of the
+ * last few plain steps whose residuals G(x) - x best cancel, found by least
+ * squares over the differences of the residuals in a small history window.
+ * With an empty history, or if the least squares problem is degenerate, the
+ * plain step is returned.
+ */
+public class AndersonAccelerator {
+	private final int dim;
+	// differences of the plain steps and of the residuals, one per column, in a ring
+	private final double[][] stepDiffs, residualDiffs;
+	private final double[] lastStep, lastResidual, residual;
+	private int count, next;
+	private boolean started;
+
+	/**
+	 * Creates an accelerator with an empty history
+	 * @param dim the number of parameters
+	 * @param window the number of past steps combined, at least 1
+	 */
+	public AndersonAccelerator(int dim, int window) {
+		if (dim < 1 || window < 1) {
+			throw new IllegalArgumentException("Dimension and window must be positive");
+		}
+		this.dim = dim;
+		this.stepDiffs = new double[window][dim];
+		this.residualDiffs = new double[window][dim];
+		this.lastStep = new double[dim];
+		this.lastResidual = new double[dim];
+		this.residual = new double[dim];
+	}
+
+	/**
+	 * Adds a plain step to the history and returns the accelerated point
+	 * @param x the current point
+	 * @param step the plain step G(x) from it
+	 * @return the next point
+	 */
+	public double[] accelerate(double[] x, double[] step) {
+		for (int k = 0; k < this.dim; k++) {
+			this.residual[k] = step[k] - x[k];
+		}
+		if (this.started) {
+			for (int k = 0; k < this.dim; k++) {
+				this.stepDiffs[this.next][k] = step[k] - this.lastStep[k];
+				this.residualDiffs[this.next][k] = this.residual[k] - this.lastResidual[k];
+			}
+			this.next = (this.next + 1) % this.stepDiffs.length;
+			this.count = Math.min(this.count + 1, this.stepDiffs.length);
+		}
+		System.arraycopy(step, 0, this.lastStep, 0, this.dim);
+		System.arraycopy(this.residual, 0, this.lastResidual, 0, this.dim);
+		this.started = true;
+		double[] result = step.clone();
+		if (this.count == 0) {
+			return result;
+		}
+		// minimize |residual - residualDiffs gamma| over gamma
+		Matrix F = new Matrix(this.dim, this.count);
+		for (int j = 0; j < this.count; j++) {
+			for (int k = 0; k < this.dim; k++) {
+				F.set(k, j, this.residualDiffs[j][k]);
+			}
+		}
+		Matrix gamma;
+		try {
+			gamma = F.qr().solve(new Matrix(this.residual, this.dim));
+		} catch (RuntimeException e) {
+			return result;
+		}
+		for (int j = 0; j < this.count; j++) {
+			double g = gamma.get(j, 0);
+			if (Double.isNaN(g) || Double.isInfinite(g)) {
+				return step.clone();
+			}
+			for (int k = 0; k < this.dim; k++) {
+				result[k] -= this.stepDiffs[j][k]*g;
+			}
+		}
+		return result;
+	}
+	/**
+	 * Forgets the history, so that the next call returns its plain step
+	 */
+	public void reset() {
+		this.count = 0;
+		this.next = 0;
+		this.started = false;
+	}
+	/**
+	 * Returns the number of past steps currently combined
+	 * @return the history size, at most the window
+	 */
+	public int getHistorySize() {
+		return this.count;
+	}
+}
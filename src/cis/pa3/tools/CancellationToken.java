@@ -0,0 +1,24 @@
+package cis.pa3.tools;
+
+/**
+ * A flag one thread raises to ask work running on another thread to stop.
+ * The work checks it between steps, so it stops at the end of the current
+ * one and keeps the result it has so far. A token stays cancelled.
+ */
+public class CancellationToken {
+	private volatile boolean cancelled;
+
+	/**
+	 * Asks the work holding this token to stop
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+	/**
+	 * Returns whether the work was asked to stop
+	 * @return true once cancel was called
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+}
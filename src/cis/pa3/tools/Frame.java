@@ -64,5 +64,71 @@ public class Frame {
 		Matrix rotationTimesVector = this.rotationMatrix.times(vector.getMatrix());
 		return new ColumnVector(rotationTimesVector.plus(this.translationVector.getMatrix()));
 	}
+	
+	/**
+	 * Returns the frame as six numbers: the rotation vector (the rotation axis
+	 * scaled by the angle) followed by the translation vector
+	 * 
+	 * @return The parameters of this frame
+	 */
+	public double[] toParameters() {
+		Matrix R = this.rotationMatrix;
+		double cos = Math.max(-1, Math.min(1, (R.trace() - 1)/2));
+		double angle = Math.acos(cos);
+		double[] w = {R.get(2, 1) - R.get(1, 2), R.get(0, 2) - R.get(2, 0), R.get(1, 0) - R.get(0, 1)};
+		double[] x = new double[6];
+		if (angle < 1e-8) {
+			for (int k = 0; k < 3; k++) {
+				x[k] = w[k]/2;
+			}
+		} else if (Math.PI - angle < 1e-6) {
+			// near a half turn the axis comes from the largest diagonal entry of R + I
+			int a = 0;
+			for (int k = 1; k < 3; k++) {
+				if (R.get(k, k) > R.get(a, a)) {
+					a = k;
+				}
+			}
+			double axisA = Math.sqrt((R.get(a, a) + 1)/2);
+			for (int k = 0; k < 3; k++) {
+				x[k] = angle*(k == a ? axisA : (R.get(k, a) + R.get(a, k))/(4*axisA));
+			}
+		} else {
+			for (int k = 0; k < 3; k++) {
+				x[k] = angle*w[k]/(2*Math.sin(angle));
+			}
+		}
+		for (int k = 0; k < 3; k++) {
+			x[3 + k] = this.translationVector.get(k);
+		}
+		return x;
+	}
+	
+	/**
+	 * Creates a frame from the six numbers returned by toParameters
+	 * 
+	 * @param x The rotation vector followed by the translation vector
+	 * @return The new frame
+	 */
+	public static Frame fromParameters(double[] x) {
+		Matrix R = rotationFromVector(new ColumnVector(new double[] {x[0], x[1], x[2]}));
+		return new Frame(R, new ColumnVector(new double[] {x[3], x[4], x[5]}));
+	}
+	
+	/**
+	 * Rodrigues' formula for the rotation by the angle |w| about the axis w
+	 * 
+	 * @param w The rotation vector
+	 * @return The rotation matrix
+	 */
+	public static Matrix rotationFromVector(ColumnVector w) {
+		double theta = w.magnitude();
+		Matrix I = Matrix.identity(3, 3);
+		if (theta == 0) {
+			return I;
+		}
+		Matrix K = w.times(1/theta).skew();
+		return I.plus(K.times(Math.sin(theta))).plus(K.times(K).times(1 - Math.cos(theta)));
+	}
 
 }
\ No newline at end of file
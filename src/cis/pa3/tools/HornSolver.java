@@ -0,0 +1,365 @@
+package cis.pa3.tools;
+
+import Jama.Matrix;
+
+/**
+ * Horn's quaternion registration of 3-D point pairs, specialized so that a
+ * solve allocates nothing and may be repeated on the same solver any number
+ * of times. The points are read straight from interleaved x, y, z arrays: one
+ * pass finds the centroids, and a second accumulates the 3x3 cross-covariance
+ * and the sums of the scale factor. The rotation is the eigenvector of the
+ * largest eigenvalue of Horn's symmetric 4x4 matrix; that eigenvalue is the
+ * largest root of the matrix's characteristic quartic, found by Newton's method
+ * from an upper bound, and the eigenvector is the longest column of the
+ * adjugate of the matrix minus the eigenvalue. When the largest eigenvalue is
+ * nearly repeated those columns are too short to be accurate, and Jacobi
+ * rotations diagonalize the matrix instead.
+ *
+ * The results equal those of HornRegistration up to rounding, including its
+ * scale factor, which the translation is computed with.
+ */
+public class HornSolver {
+	private static final int DIM = 3;
+	private static final int MAX_NEWTON_STEPS = 50;
+	private static final int MAX_JACOBI_SWEEPS = 50;
+	// the adjugate column must be at least this long relative to the cube of
+	// the matrix norm for its direction to be trusted
+	private static final double MIN_ADJUGATE = 1e-6;
+	private final double[] n = new double[16];
+	private final double[] a = new double[16];
+	private final double[] v = new double[16];
+	private final double[] q = new double[4];
+	private final double[] rotation = new double[DIM*DIM];
+	private final double[] translation = new double[DIM];
+	private double scale, eigenvalue;
+	private int jacobiCount;
+
+	/**
+	 * Registers the source points onto the target points
+	 * @param sources the source points, x, y and z of each point in turn
+	 * @param targets the target points, in the same layout and order
+	 * @param count the number of pairs
+	 * @param doScale whether to find the scale factor the translation is computed with
+	 * @throws IllegalArgumentException if there are fewer than four pairs
+	 */
+	public void solve(double[] sources, double[] targets, int count, boolean doScale) {
+		if (count < 4) {
+			throw new IllegalArgumentException("Need at least four point pairs.");
+		}
+		double ax = 0, ay = 0, az = 0, bx = 0, by = 0, bz = 0;
+		for (int i = 0; i < count; i++) {
+			ax += sources[DIM*i];
+			ay += sources[DIM*i + 1];
+			az += sources[DIM*i + 2];
+			bx += targets[DIM*i];
+			by += targets[DIM*i + 1];
+			bz += targets[DIM*i + 2];
+		}
+		ax /= count; ay /= count; az /= count;
+		bx /= count; by /= count; bz /= count;
+		double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+		double targetSpread = 0;
+		for (int i = 0; i < count; i++) {
+			double px = sources[DIM*i] - ax, py = sources[DIM*i + 1] - ay, pz = sources[DIM*i + 2] - az;
+			double qx = targets[DIM*i] - bx, qy = targets[DIM*i + 1] - by, qz = targets[DIM*i + 2] - bz;
+			sxx += px*qx; sxy += px*qy; sxz += px*qz;
+			syx += py*qx; syy += py*qy; syz += py*qz;
+			szx += pz*qx; szy += pz*qy; szz += pz*qz;
+			targetSpread += qx*qx + qy*qy + qz*qz;
+		}
+		this.rotationFrom(sxx, sxy, sxz, syx, syy, syz, szx, szy, szz);
+		double[] R = this.rotation;
+		if (doScale) {
+			// HornRegistration's factor: the spread of the targets over the
+			// products of each target with its rotated source, whose sum is tr(R S)
+			double rotated = R[0]*sxx + R[1]*syx + R[2]*szx
+					+ R[3]*sxy + R[4]*syy + R[5]*szy
+					+ R[6]*sxz + R[7]*syz + R[8]*szz;
+			this.scale = targetSpread/rotated;
+		} else {
+			this.scale = 1;
+		}
+		this.translation[0] = bx - (R[0]*ax + R[1]*ay + R[2]*az)*this.scale;
+		this.translation[1] = by - (R[3]*ax + R[4]*ay + R[5]*az)*this.scale;
+		this.translation[2] = bz - (R[6]*ax + R[7]*ay + R[8]*az)*this.scale;
+	}
+	/**
+	 * Registers point pairs given only by their cross-covariance and
+	 * centroids, without scale, for callers that keep running sums of the
+	 * pairs rather than the points
+	 * @param covariance the sum over the pairs of each source point minus its
+	 *        centroid times the transpose of its target point minus theirs, row by row
+	 * @param sourceCentroid the centroid of the source points
+	 * @param targetCentroid the centroid of the target points
+	 */
+	public void solve(double[] covariance, double[] sourceCentroid, double[] targetCentroid) {
+		double[] S = covariance;
+		this.rotationFrom(S[0], S[1], S[2], S[3], S[4], S[5], S[6], S[7], S[8]);
+		this.scale = 1;
+		double[] R = this.rotation;
+		for (int r = 0; r < DIM; r++) {
+			this.translation[r] = targetCentroid[r] - (R[DIM*r]*sourceCentroid[0] + R[DIM*r + 1]*sourceCentroid[1]
+					+ R[DIM*r + 2]*sourceCentroid[2]);
+		}
+	}
+
+	/**
+	 * Returns the rotation of the last solve, overwritten by the next one
+	 * @return the rotation matrix, row by row
+	 */
+	public double[] getRotation() {
+		return this.rotation;
+	}
+	/**
+	 * Returns the translation of the last solve, overwritten by the next one
+	 * @return the translation vector
+	 */
+	public double[] getTranslation() {
+		return this.translation;
+	}
+	/**
+	 * Returns the scale factor of the last solve
+	 * @return the factor, 1 if no scale was asked for
+	 */
+	public double getScale() {
+		return this.scale;
+	}
+	/**
+	 * Returns the largest eigenvalue of Horn's matrix in the last solve
+	 * @return the eigenvalue
+	 */
+	public double getEigenvalue() {
+		return this.eigenvalue;
+	}
+	/**
+	 * Returns how many solves fell back to Jacobi rotations
+	 * @return the number of solves with a nearly repeated largest eigenvalue
+	 */
+	public int getJacobiCount() {
+		return this.jacobiCount;
+	}
+	/**
+	 * Returns the registration of the last solve as a new frame
+	 * @return the frame moving the source points onto the target points
+	 */
+	public Frame getFrame() {
+		Matrix R = new Matrix(DIM, DIM);
+		for (int r = 0; r < DIM; r++) {
+			for (int c = 0; c < DIM; c++) {
+				R.set(r, c, this.rotation[DIM*r + c]);
+			}
+		}
+		return new Frame(R, new ColumnVector(this.translation.clone()));
+	}
+
+	/**
+	 * Builds Horn's matrix of a cross-covariance into n and the rotation of
+	 * its dominant eigenvector into rotation
+	 */
+	private void rotationFrom(double sxx, double sxy, double sxz, double syx, double syy, double syz,
+			double szx, double szy, double szz) {
+		double[] n = this.n;
+		n[0] = sxx + syy + szz; n[1] = syz - szy;        n[2] = szx - sxz;         n[3] = sxy - syx;
+		n[4] = n[1];            n[5] = sxx - syy - szz;  n[6] = sxy + syx;         n[7] = szx + sxz;
+		n[8] = n[2];            n[9] = n[6];             n[10] = -sxx + syy - szz; n[11] = syz + szy;
+		n[12] = n[3];           n[13] = n[7];            n[14] = n[11];            n[15] = -sxx - syy + szz;
+		this.dominantEigenvector();
+		double norm = Math.sqrt(this.q[0]*this.q[0] + this.q[1]*this.q[1] + this.q[2]*this.q[2] + this.q[3]*this.q[3]);
+		double q0 = this.q[0]/norm, qx = this.q[1]/norm, qy = this.q[2]/norm, qz = this.q[3]/norm;
+		double[] R = this.rotation;
+		R[0] = q0*q0 + qx*qx - qy*qy - qz*qz;
+		R[1] = 2*(qx*qy - q0*qz);
+		R[2] = 2*(qx*qz + q0*qy);
+		R[3] = 2*(qx*qy + q0*qz);
+		R[4] = q0*q0 - qx*qx + qy*qy - qz*qz;
+		R[5] = 2*(qy*qz - q0*qx);
+		R[6] = 2*(qx*qz - q0*qy);
+		R[7] = 2*(qy*qz + q0*qx);
+		R[8] = q0*q0 - qx*qx - qy*qy + qz*qz;
+	}
+	/**
+	 * Finds the eigenvector of the largest eigenvalue of n into q
+	 */
+	private void dominantEigenvector() {
+		double[] n = this.n;
+		// n has zero trace, so its characteristic polynomial is
+		// l^4 + c2 l^2 + c1 l + c0 with c2 = -tr(n^2)/2, c1 = -tr(n^3)/3
+		double trace2 = 0, trace3 = 0;
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				double square = 0;
+				for (int k = 0; k < 4; k++) {
+					square += n[4*i + k]*n[4*k + j];
+				}
+				trace3 += square*n[4*j + i];
+			}
+			for (int k = 0; k < 4; k++) {
+				trace2 += n[4*i + k]*n[4*k + i];
+			}
+		}
+		double c2 = -trace2/2, c1 = -trace3/3, c0 = determinant4(n);
+		double bound = Math.sqrt(trace2);
+		if (bound == 0) {
+			// no spread at all: every rotation fits equally, take the identity
+			this.q[0] = 1;
+			this.q[1] = this.q[2] = this.q[3] = 0;
+			this.eigenvalue = 0;
+			return;
+		}
+		// the Frobenius norm bounds every eigenvalue, and above the largest
+		// root the quartic is increasing and convex, so Newton's method falls
+		// monotonically onto that root
+		double l = bound;
+		for (int step = 0; step < MAX_NEWTON_STEPS; step++) {
+			double l2 = l*l;
+			double p = (l2 + c2)*l2 + c1*l + c0;
+			double dp = (4*l2 + 2*c2)*l + c1;
+			if (dp <= 0) {
+				break;
+			}
+			double next = l - p/dp;
+			if (!(next < l)) {
+				break;
+			}
+			l = next;
+		}
+		double threshold = MIN_ADJUGATE*bound*bound*bound;
+		if (!this.adjugateColumn(l, threshold)) {
+			this.jacobiCount++;
+			this.jacobi();
+			return;
+		}
+		// the root loses digits when the next eigenvalue is close; the Rayleigh
+		// quotient of the vector found with it is exact to the square of the
+		// vector's error, and gives the vector again more precisely
+		double numerator = 0, denominator = 0;
+		for (int i = 0; i < 4; i++) {
+			double row = 0;
+			for (int k = 0; k < 4; k++) {
+				row += n[4*i + k]*this.q[k];
+			}
+			numerator += this.q[i]*row;
+			denominator += this.q[i]*this.q[i];
+		}
+		l = numerator/denominator;
+		if (!this.adjugateColumn(l, threshold)) {
+			this.jacobiCount++;
+			this.jacobi();
+			return;
+		}
+		this.eigenvalue = l;
+	}
+	/**
+	 * Takes the longest column of the adjugate of n - l I into q; for an
+	 * eigenvalue l every column is a multiple of its eigenvector
+	 * @return false if no column is longer than the threshold
+	 */
+	private boolean adjugateColumn(double l, double threshold) {
+		double[] a = this.a;
+		System.arraycopy(this.n, 0, a, 0, 16);
+		for (int i = 0; i < 4; i++) {
+			a[5*i] -= l;
+		}
+		double longest = 0;
+		int column = -1;
+		for (int j = 0; j < 4; j++) {
+			double length = 0;
+			for (int i = 0; i < 4; i++) {
+				double cofactor = cofactor(a, j, i);
+				length += cofactor*cofactor;
+			}
+			if (length > longest) {
+				longest = length;
+				column = j;
+			}
+		}
+		if (column < 0 || longest < threshold*threshold) {
+			return false;
+		}
+		for (int i = 0; i < 4; i++) {
+			this.q[i] = cofactor(a, column, i);
+		}
+		return true;
+	}
+	/**
+	 * Diagonalizes n by cyclic Jacobi rotations and takes the eigenvector of
+	 * the largest diagonal entry into q
+	 */
+	private void jacobi() {
+		double[] a = this.a, v = this.v;
+		System.arraycopy(this.n, 0, a, 0, 16);
+		for (int i = 0; i < 16; i++) {
+			v[i] = i % 5 == 0 ? 1 : 0;
+		}
+		for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+			double off = 0;
+			for (int i = 0; i < 4; i++) {
+				for (int j = i + 1; j < 4; j++) {
+					off += a[4*i + j]*a[4*i + j];
+				}
+			}
+			if (off == 0) {
+				break;
+			}
+			for (int p = 0; p < 3; p++) {
+				for (int r = p + 1; r < 4; r++) {
+					double apr = a[4*p + r];
+					if (apr == 0) {
+						continue;
+					}
+					double theta = (a[4*r + r] - a[4*p + p])/(2*apr);
+					double t = Math.signum(theta)/(Math.abs(theta) + Math.sqrt(theta*theta + 1));
+					if (theta == 0) {
+						t = 1;
+					}
+					double c = 1/Math.sqrt(t*t + 1), s = t*c;
+					for (int k = 0; k < 4; k++) {
+						double akp = a[4*k + p], akr = a[4*k + r];
+						a[4*k + p] = c*akp - s*akr;
+						a[4*k + r] = s*akp + c*akr;
+					}
+					for (int k = 0; k < 4; k++) {
+						double apk = a[4*p + k], ark = a[4*r + k];
+						a[4*p + k] = c*apk - s*ark;
+						a[4*r + k] = s*apk + c*ark;
+					}
+					for (int k = 0; k < 4; k++) {
+						double vkp = v[4*k + p], vkr = v[4*k + r];
+						v[4*k + p] = c*vkp - s*vkr;
+						v[4*k + r] = s*vkp + c*vkr;
+					}
+				}
+			}
+		}
+		int largest = 0;
+		for (int i = 1; i < 4; i++) {
+			if (a[5*i] > a[5*largest]) {
+				largest = i;
+			}
+		}
+		this.eigenvalue = a[5*largest];
+		for (int i = 0; i < 4; i++) {
+			this.q[i] = v[4*i + largest];
+		}
+	}
+
+	/**
+	 * The cofactor of entry (i, j) of a 4x4 matrix: the signed determinant of
+	 * the matrix without row i and column j
+	 */
+	private static double cofactor(double[] m, int i, int j) {
+		int r0 = i == 0 ? 1 : 0, r1 = i <= 1 ? 2 : 1, r2 = i <= 2 ? 3 : 2;
+		int c0 = j == 0 ? 1 : 0, c1 = j <= 1 ? 2 : 1, c2 = j <= 2 ? 3 : 2;
+		double minor = m[4*r0 + c0]*(m[4*r1 + c1]*m[4*r2 + c2] - m[4*r1 + c2]*m[4*r2 + c1])
+				- m[4*r0 + c1]*(m[4*r1 + c0]*m[4*r2 + c2] - m[4*r1 + c2]*m[4*r2 + c0])
+				+ m[4*r0 + c2]*(m[4*r1 + c0]*m[4*r2 + c1] - m[4*r1 + c1]*m[4*r2 + c0]);
+		return (i + j) % 2 == 0 ? minor : -minor;
+	}
+	private static double determinant4(double[] m) {
+		double det = 0;
+		for (int j = 0; j < 4; j++) {
+			det += m[j]*cofactor(m, 0, j);
+		}
+		return det;
+	}
+}
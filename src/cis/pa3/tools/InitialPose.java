@@ -0,0 +1,13 @@
+package cis.pa3.tools;
+
+/**
+ * The ways ICP can choose the registration it starts iterating from
+ */
+public enum InitialPose {
+	/** the identity, which suits data taken close to the pose of the mesh */
+	IDENTITY,
+	/** a descriptor and RANSAC alignment of the points onto the mesh, with GlobalAlignment */
+	GLOBAL_ALIGNMENT,
+	/** the best of short ICP runs from many rotations, with MultiHypothesisICP */
+	MULTI_HYPOTHESIS
+}
@@ -37,4 +37,60 @@ public class Math3D {
 		avg = avg/ld.size();
 		return avg;
 	}
+
+	/**
+	 * Finds the k-th smallest of the first count values by quickselect, in
+	 * linear expected time and without sorting. The values are reordered in
+	 * place so that the result sits at position k with no larger value before
+	 * it and no smaller value after it.
+	 * @param values the values, which are reordered
+	 * @param count the number of values to select from
+	 * @param k the rank, 0 for the smallest
+	 * @return the k-th smallest value
+	 */
+	public static double select(double[] values, int count, int k) {
+		if (k < 0 || k >= count || count > values.length) {
+			throw new IllegalArgumentException("Rank " + k + " is not within " + count + " values");
+		}
+		int lo = 0, hi = count - 1;
+		while (lo < hi) {
+			// median of three as the pivot, then a Hoare partition
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < values[lo]) {
+				swap(values, mid, lo);
+			}
+			if (values[hi] < values[lo]) {
+				swap(values, hi, lo);
+			}
+			if (values[hi] < values[mid]) {
+				swap(values, hi, mid);
+			}
+			double pivot = values[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(values, i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				break;
+			}
+		}
+		return values[k];
+	}
+	private static void swap(double[] values, int i, int j) {
+		double t = values[i];
+		values[i] = values[j];
+		values[j] = t;
+	}
 }
\ No newline at end of file
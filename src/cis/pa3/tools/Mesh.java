@@ -4,39 +4,158 @@ import java.util.ArrayList;
 import java.util.List;
 
 import cis.pa3.data.MeshData;
-import cis.pa3.geometry.Triangle;;
+import cis.pa3.geometry.Triangle;
+import cis.pa3.geometry.TriangleTable;
 
 public class Mesh {
 	private static final int DIM = 3;
 	private PointCloud vertexdata;
 	private PointCloud tridata;
 	private List<Triangle> triangles;
+	private PackedMesh packed;
+	private TriangleTable table;
+	private MeshAdjacency adjacency;
+	private double[] normals;
 	public Mesh(MeshData meshdata) {
 		this.vertexdata = meshdata.getVertices();
 		this.tridata = meshdata.getTriangles();
-		this.triangles = new ArrayList<>();
-		this.makeTriangles();
+		this.packed = new PackedMesh(this.vertexdata, this.tridata);
+	}
+	/**
+	 * Wraps a packed mesh, such as one read from a binary mesh file; the point
+	 * clouds are only created if they are asked for
+	 * @param packed the packed mesh
+	 */
+	public Mesh(PackedMesh packed) {
+		this.packed = packed;
 	}
 	public void setVertices(PointCloud vertices) {
+		this.tridata = this.getTriangleIndices();
 		this.vertexdata = vertices;
+		this.triangles = null;
+		this.packed = null;
+		this.table = null;
+		this.adjacency = null;
+		this.normals = null;
 	}
 	public void setTriangles(PointCloud triangles) {
+		this.vertexdata = this.getVertices();
 		this.tridata = triangles;
+		this.triangles = null;
+		this.packed = null;
+		this.table = null;
+		this.adjacency = null;
+		this.normals = null;
 	}
 	public PointCloud getVertices() {
+		if (this.vertexdata == null) {
+			this.vertexdata = unpack(this.packed.getVertices(), this.packed.getVertexCount());
+		}
 		return this.vertexdata;
 	}
+	/**
+	 * Returns the vertex indices of the triangles
+	 * @return one point of three indices per triangle
+	 */
+	public PointCloud getTriangleIndices() {
+		if (this.tridata == null) {
+			int[] indices = this.packed.getIndices();
+			double[] values = new double[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				values[i] = indices[i];
+			}
+			this.tridata = unpack(values, this.packed.getTriangleCount());
+		}
+		return this.tridata;
+	}
+	/**
+	 * Returns the triangles as objects; they are only created on the first call
+	 * since the closest point searches run on the packed arrays
+	 * @return the list of triangles
+	 */
 	public List<Triangle> getTriangles() {
+		if (this.triangles == null) {
+			this.makeTriangles();
+		}
 		return this.triangles;
 	}
+	/**
+	 * Returns the mesh as flat vertex and index arrays
+	 * @return the packed mesh
+	 */
+	public PackedMesh getPacked() {
+		if (this.packed == null) {
+			this.packed = new PackedMesh(this.vertexdata, this.tridata);
+		}
+		return this.packed;
+	}
+	/**
+	 * Returns the precomputed per-triangle records used by the closest point searches
+	 * @return the triangle table
+	 */
+	public TriangleTable getTriangleTable() {
+		if (this.table == null) {
+			this.table = new TriangleTable(this.getPacked());
+		}
+		return this.table;
+	}
+	/**
+	 * Returns the edge and vertex connectivity of the triangles
+	 * @return the mesh adjacency
+	 */
+	public MeshAdjacency getAdjacency() {
+		if (this.adjacency == null) {
+			this.adjacency = new MeshAdjacency(this.getPacked());
+		}
+		return this.adjacency;
+	}
+	/**
+	 * Returns the unit normals of the triangles, by the right hand rule over
+	 * their corners; a degenerate triangle has a zero normal
+	 * @return three coordinates per triangle
+	 */
+	public double[] getFaceNormals() {
+		if (this.normals == null) {
+			PackedMesh mesh = this.getPacked();
+			double[] normals = new double[DIM*mesh.getTriangleCount()];
+			double[] e1 = new double[DIM], e2 = new double[DIM];
+			for (int t = 0; t < mesh.getTriangleCount(); t++) {
+				for (int k = 0; k < DIM; k++) {
+					e1[k] = mesh.getCoordinate(t, 1, k) - mesh.getCoordinate(t, 0, k);
+					e2[k] = mesh.getCoordinate(t, 2, k) - mesh.getCoordinate(t, 0, k);
+				}
+				double nx = e1[1]*e2[2] - e1[2]*e2[1];
+				double ny = e1[2]*e2[0] - e1[0]*e2[2];
+				double nz = e1[0]*e2[1] - e1[1]*e2[0];
+				double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+				if (length > 0) {
+					normals[DIM*t] = nx/length;
+					normals[DIM*t + 1] = ny/length;
+					normals[DIM*t + 2] = nz/length;
+				}
+			}
+			this.normals = normals;
+		}
+		return this.normals;
+	}
 	private void makeTriangles() {
-		for (int i = 0; i < this.tridata.getSize(); i++) {
-			ColumnVector vindices = this.tridata.get(i);
+		PointCloud vertexcloud = this.getVertices();
+		PointCloud tricloud = this.getTriangleIndices();
+		this.triangles = new ArrayList<>();
+		for (int i = 0; i < tricloud.getSize(); i++) {
+			ColumnVector vindices = tricloud.get(i);
 			List<ColumnVector> vertices = new ArrayList<>();
 			for (int j = 0; j < DIM; j++) {
-				vertices.add(this.vertexdata.get((int) vindices.get(j)));
+				vertices.add(vertexcloud.get((int) vindices.get(j)));
 			}
 			this.triangles.add(new Triangle(vertices));
 		}
 	}
+	private static PointCloud unpack(double[] values, int count) {
+		List<ColumnVector> points = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			points.add(new ColumnVector(new double[] {values[DIM*i], values[DIM*i + 1], values[DIM*i + 2]}));
+		}
+		return count == 0 ? new PointCloud(DIM) : new PointCloud(points);
+	}
 }
\ No newline at end of file
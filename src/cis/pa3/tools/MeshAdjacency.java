@@ -0,0 +1,130 @@
+package cis.pa3.tools;
+
+import java.util.Arrays;
+
+/**
+ * The connectivity of a packed mesh: for every triangle the triangle across
+ * each of its edges and the ring of triangles sharing a vertex with it, and
+ * for every vertex the triangles that use it. All are derived from the
+ * triangle indices, since the neighbor columns of a .sur file are not kept
+ * (and are often -1). Edge k of a triangle joins its corners k and k + 1 (mod 3).
+ */
+public class MeshAdjacency {
+	private static final int DIM = 3;
+	private final int[] edgeNeighbors;
+	private final int[] vertexStart;
+	private final int[] vertexTriangles;
+	private final int[] ringStart;
+	private final int[] ringTriangles;
+
+	/**
+	 * Builds the adjacency of a packed mesh
+	 * @param mesh the packed mesh
+	 */
+	public MeshAdjacency(PackedMesh mesh) {
+		int n = mesh.getTriangleCount();
+		int[] indices = mesh.getIndices();
+		// triangles around each vertex, stored compressed by vertex
+		this.vertexStart = new int[mesh.getVertexCount() + 1];
+		for (int i = 0; i < indices.length; i++) {
+			this.vertexStart[indices[i] + 1]++;
+		}
+		for (int v = 0; v < mesh.getVertexCount(); v++) {
+			this.vertexStart[v + 1] += this.vertexStart[v];
+		}
+		this.vertexTriangles = new int[indices.length];
+		int[] fill = Arrays.copyOf(this.vertexStart, mesh.getVertexCount());
+		for (int i = 0; i < indices.length; i++) {
+			this.vertexTriangles[fill[indices[i]]++] = i/DIM;
+		}
+		// the triangle across an edge is the other triangle around its first
+		// vertex that also uses its second vertex
+		this.edgeNeighbors = new int[DIM*n];
+		Arrays.fill(this.edgeNeighbors, -1);
+		for (int t = 0; t < n; t++) {
+			for (int k = 0; k < DIM; k++) {
+				int a = indices[DIM*t + k];
+				int b = indices[DIM*t + (k + 1) % DIM];
+				for (int i = this.vertexStart[a]; i < this.vertexStart[a + 1]; i++) {
+					int other = this.vertexTriangles[i];
+					if (other != t && uses(indices, other, b)) {
+						this.edgeNeighbors[DIM*t + k] = other;
+						break;
+					}
+				}
+			}
+		}
+		// the ring of each triangle, every neighbor once
+		this.ringStart = new int[n + 1];
+		int[] ring = new int[DIM*indices.length];
+		int[] lastSeen = new int[n];
+		Arrays.fill(lastSeen, -1);
+		int size = 0;
+		for (int t = 0; t < n; t++) {
+			for (int k = 0; k < DIM; k++) {
+				int v = indices[DIM*t + k];
+				for (int i = this.vertexStart[v]; i < this.vertexStart[v + 1]; i++) {
+					int other = this.vertexTriangles[i];
+					if (other != t && lastSeen[other] != t) {
+						lastSeen[other] = t;
+						if (size == ring.length) {
+							ring = Arrays.copyOf(ring, 2*ring.length);
+						}
+						ring[size++] = other;
+					}
+				}
+			}
+			this.ringStart[t + 1] = size;
+		}
+		this.ringTriangles = Arrays.copyOf(ring, size);
+	}
+
+	/**
+	 * Returns the triangle across an edge
+	 * @param triangle the triangle index
+	 * @param edge 0, 1 or 2
+	 * @return the neighboring triangle, or -1 on the boundary of the mesh
+	 */
+	public int getEdgeNeighbor(int triangle, int edge) {
+		return this.edgeNeighbors[DIM*triangle + edge];
+	}
+	/**
+	 * Returns the number of other triangles that share a vertex with a triangle
+	 * @param triangle the triangle index
+	 * @return the size of its ring
+	 */
+	public int getRingSize(int triangle) {
+		return this.ringStart[triangle + 1] - this.ringStart[triangle];
+	}
+	/**
+	 * Returns one of the other triangles that share a vertex with a triangle
+	 * @param triangle the triangle index
+	 * @param i the position in the ring, below its size
+	 * @return the neighboring triangle index
+	 */
+	public int getRingTriangle(int triangle, int i) {
+		return this.ringTriangles[this.ringStart[triangle] + i];
+	}
+	/**
+	 * Returns the number of triangles that use a vertex
+	 * @param vertex the vertex index
+	 * @return the number of triangles around the vertex
+	 */
+	public int getVertexDegree(int vertex) {
+		return this.vertexStart[vertex + 1] - this.vertexStart[vertex];
+	}
+	/**
+	 * Returns one of the triangles that use a vertex
+	 * @param vertex the vertex index
+	 * @param i the position around the vertex, below its degree
+	 * @return the triangle index
+	 */
+	public int getVertexTriangle(int vertex, int i) {
+		return this.vertexTriangles[this.vertexStart[vertex] + i];
+	}
+
+	private static boolean uses(int[] indices, int triangle, int vertex) {
+		return indices[DIM*triangle] == vertex || indices[DIM*triangle + 1] == vertex
+				|| indices[DIM*triangle + 2] == vertex;
+	}
+}
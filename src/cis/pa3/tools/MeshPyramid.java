@@ -0,0 +1,167 @@
+package cis.pa3.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A level-of-detail pyramid of a mesh. Level 0 is the mesh itself and every
+ * further level is simplified by vertex clustering with twice the cell size
+ * of the one before: the vertices in each cubic cell are merged into their
+ * average, and triangles that collapse or repeat another are dropped. Each
+ * level is simplified from the full mesh so that errors do not accumulate.
+ */
+public class MeshPyramid {
+	private static final int DIM = 3;
+	/** the first level's cells, in units of the mean edge length */
+	public static final double BASE_CELL_SCALE = 2.0;
+	/** levels with fewer triangles than this are not added */
+	public static final int MIN_TRIANGLES = 64;
+	// bits per cell coordinate and per cluster in the packed keys below
+	private static final int KEY_BITS = 21;
+	private static final long KEY_LIMIT = 1L << KEY_BITS;
+	private final List<Mesh> levels = new ArrayList<>();
+
+	/**
+	 * Builds up to maxLevels levels of a mesh, including the mesh itself
+	 * @param mesh the full resolution mesh
+	 * @param maxLevels the largest number of levels
+	 */
+	public MeshPyramid(Mesh mesh, int maxLevels) {
+		if (maxLevels < 1) {
+			throw new IllegalArgumentException("A pyramid needs at least one level");
+		}
+		this.levels.add(mesh);
+		double cellSize = BASE_CELL_SCALE*meanEdgeLength(mesh.getPacked());
+		while (this.levels.size() < maxLevels) {
+			Mesh coarse = simplify(mesh, cellSize);
+			int previous = this.getCoarsest().getPacked().getTriangleCount();
+			int count = coarse.getPacked().getTriangleCount();
+			if (count < MIN_TRIANGLES || count >= previous) {
+				break;
+			}
+			this.levels.add(coarse);
+			cellSize *= 2;
+		}
+	}
+
+	/**
+	 * Returns the number of levels, which may be fewer than asked for if the
+	 * mesh became too small
+	 * @return the number of levels
+	 */
+	public int getLevelCount() {
+		return this.levels.size();
+	}
+	/**
+	 * Returns one level of the pyramid
+	 * @param level 0 for the full mesh up to getLevelCount() - 1 for the coarsest
+	 * @return the mesh of that level
+	 */
+	public Mesh getLevel(int level) {
+		return this.levels.get(level);
+	}
+	public Mesh getCoarsest() {
+		return this.levels.get(this.levels.size() - 1);
+	}
+
+	/**
+	 * Simplifies a mesh by merging the vertices in each cell of a uniform grid
+	 * @param mesh the mesh to simplify
+	 * @param cellSize the edge length of a grid cell
+	 * @return the simplified mesh
+	 * @throws IllegalArgumentException if the mesh spans 2^21 or more cells
+	 * along an axis, or merges into 2^21 or more clusters
+	 */
+	public static Mesh simplify(Mesh mesh, double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Cell size must be positive");
+		}
+		PackedMesh packed = mesh.getPacked();
+		double[] vertices = packed.getVertices();
+		int[] indices = packed.getIndices();
+		int numVertices = packed.getVertexCount();
+		double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		for (int v = 0; v < numVertices; v++) {
+			for (int k = 0; k < DIM; k++) {
+				min[k] = Math.min(min[k], vertices[DIM*v + k]);
+			}
+		}
+		// assign every vertex to the cluster of its cell
+		Map<Long, Integer> cells = new HashMap<>();
+		int[] clusterOf = new int[numVertices];
+		double[] sums = new double[DIM*numVertices];
+		int[] counts = new int[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			long key = 0;
+			for (int k = 0; k < DIM; k++) {
+				double cell = (vertices[DIM*v + k] - min[k])/cellSize;
+				if (cell >= KEY_LIMIT) {
+					throw new IllegalArgumentException("The mesh spans too many cells of size " + cellSize);
+				}
+				key = (key << KEY_BITS) | (long) cell;
+			}
+			Integer cluster = cells.get(key);
+			if (cluster == null) {
+				cluster = cells.size();
+				cells.put(key, cluster);
+			}
+			clusterOf[v] = cluster;
+			counts[cluster]++;
+			for (int k = 0; k < DIM; k++) {
+				sums[DIM*cluster + k] += vertices[DIM*v + k];
+			}
+		}
+		int numClusters = cells.size();
+		if (numClusters >= KEY_LIMIT) {
+			throw new IllegalArgumentException("The mesh merges into too many clusters: " + numClusters);
+		}
+		double[] merged = new double[DIM*numClusters];
+		for (int c = 0; c < numClusters; c++) {
+			for (int k = 0; k < DIM; k++) {
+				merged[DIM*c + k] = sums[DIM*c + k]/counts[c];
+			}
+		}
+		// keep the triangles whose corners land in three different clusters, once each
+		int[] kept = new int[indices.length];
+		int size = 0;
+		Set<Long> seen = new HashSet<>();
+		for (int t = 0; t < packed.getTriangleCount(); t++) {
+			int a = clusterOf[indices[DIM*t]], b = clusterOf[indices[DIM*t + 1]], c = clusterOf[indices[DIM*t + 2]];
+			if (a == b || b == c || a == c) {
+				continue;
+			}
+			int lo = Math.min(a, Math.min(b, c)), hi = Math.max(a, Math.max(b, c));
+			int mid = a + b + c - lo - hi;
+			if (!seen.add(((long) lo << 2*KEY_BITS) | ((long) mid << KEY_BITS) | hi)) {
+				continue;
+			}
+			kept[size++] = a;
+			kept[size++] = b;
+			kept[size++] = c;
+		}
+		return new Mesh(new PackedMesh(merged, Arrays.copyOf(kept, size)));
+	}
+
+	/**
+	 * Average length of the triangle edges of a mesh
+	 */
+	private static double meanEdgeLength(PackedMesh packed) {
+		double total = 0;
+		for (int t = 0; t < packed.getTriangleCount(); t++) {
+			for (int j = 0; j < DIM; j++) {
+				double length2 = 0;
+				for (int k = 0; k < DIM; k++) {
+					double d = packed.getCoordinate(t, (j + 1) % DIM, k) - packed.getCoordinate(t, j, k);
+					length2 += d*d;
+				}
+				total += Math.sqrt(length2);
+			}
+		}
+		return total/(DIM*packed.getTriangleCount());
+	}
+}
@@ -0,0 +1,126 @@
+package cis.pa3.tools;
+
+import cis.pa3.data.MeshData;
+
+/**
+ * A triangle mesh stored as two flat arrays: the vertex coordinates as
+ * x0, y0, z0, x1, y1, z1, ... and the triangle vertex indices as
+ * i0, j0, k0, i1, j1, k1, ...
+ */
+public class PackedMesh {
+	private static final int DIM = 3;
+	private final double[] vertices;
+	private final int[] indices;
+
+	/**
+	 * Packs the vertices and triangles of a parsed mesh file
+	 * @param meshdata the mesh file data
+	 */
+	public PackedMesh(MeshData meshdata) {
+		this(meshdata.getVertices(), meshdata.getTriangles());
+	}
+	/**
+	 * Packs a point cloud of vertices and a point cloud of vertex index triples
+	 * @param vertices the vertex coordinates
+	 * @param triangles the vertex indices of each triangle
+	 */
+	public PackedMesh(PointCloud vertices, PointCloud triangles) {
+		this(packVertices(vertices), packIndices(triangles));
+	}
+	/**
+	 * Wraps existing flat arrays without copying them
+	 * @param vertices the vertex coordinates, three per vertex
+	 * @param indices the vertex indices, three per triangle
+	 */
+	public PackedMesh(double[] vertices, int[] indices) {
+		if (vertices.length % DIM != 0 || indices.length % DIM != 0) {
+			throw new IllegalArgumentException("Arrays must hold three values per vertex and triangle");
+		}
+		int numVertices = vertices.length/DIM;
+		for (int i = 0; i < indices.length; i++) {
+			if (indices[i] < 0 || indices[i] >= numVertices) {
+				throw new IllegalArgumentException("Triangle refers to missing vertex " + indices[i]);
+			}
+		}
+		this.vertices = vertices;
+		this.indices = indices;
+	}
+
+	public int getVertexCount() {
+		return this.vertices.length/DIM;
+	}
+	public int getTriangleCount() {
+		return this.indices.length/DIM;
+	}
+	/**
+	 * Returns the flat vertex coordinate array; not a copy
+	 * @return the vertex coordinates
+	 */
+	public double[] getVertices() {
+		return this.vertices;
+	}
+	/**
+	 * Returns the flat triangle index array; not a copy
+	 * @return the vertex indices
+	 */
+	public int[] getIndices() {
+		return this.indices;
+	}
+	/**
+	 * Returns the index of a corner of a triangle
+	 * @param triangle the triangle index
+	 * @param corner 0, 1 or 2
+	 * @return the vertex index
+	 */
+	public int getVertexIndex(int triangle, int corner) {
+		return this.indices[DIM*triangle + corner];
+	}
+	/**
+	 * Returns one coordinate of a corner of a triangle
+	 * @param triangle the triangle index
+	 * @param corner 0, 1 or 2
+	 * @param axis 0, 1 or 2 for x, y or z
+	 * @return the coordinate
+	 */
+	public double getCoordinate(int triangle, int corner, int axis) {
+		return this.vertices[DIM*this.indices[DIM*triangle + corner] + axis];
+	}
+
+	/**
+	 * Hash of the triangle coordinates, used to tell whether a file saved
+	 * for a mesh belongs to this one
+	 * @return the hash
+	 */
+	public long getChecksum() {
+		long hash = 1;
+		for (int i = 0; i < this.getTriangleCount(); i++) {
+			for (int v = 0; v < DIM; v++) {
+				for (int k = 0; k < DIM; k++) {
+					hash = 31*hash + Double.doubleToLongBits(this.getCoordinate(i, v, k));
+				}
+			}
+		}
+		return hash;
+	}
+
+	private static double[] packVertices(PointCloud cloud) {
+		double[] packed = new double[DIM*cloud.getSize()];
+		for (int i = 0; i < cloud.getSize(); i++) {
+			ColumnVector vertex = cloud.get(i);
+			for (int k = 0; k < DIM; k++) {
+				packed[DIM*i + k] = vertex.get(k);
+			}
+		}
+		return packed;
+	}
+	private static int[] packIndices(PointCloud cloud) {
+		int[] packed = new int[DIM*cloud.getSize()];
+		for (int i = 0; i < cloud.getSize(); i++) {
+			ColumnVector triangle = cloud.get(i);
+			for (int k = 0; k < DIM; k++) {
+				packed[DIM*i + k] = (int) triangle.get(k);
+			}
+		}
+		return packed;
+	}
+}
@@ -0,0 +1,93 @@
+package cis.pa3.tools;
+
+import Jama.Matrix;
+
+/**
+ * One linearized point-to-plane registration step. Given source points a_i,
+ * target points b_i and the surface normals n_i at the targets, it finds the
+ * small rotation w (about the centroid of the sources) and translation t that
+ * minimize the sum of ((R a_i + t - b_i) . n_i)^2 with R approximated by
+ * I + skew(w), by solving the 6x6 normal equations. The rotation of the
+ * resulting frame is the exact rotation by w.
+ */
+public class PointToPlaneRegistration {
+	private static final int DIM = 3, DOF = 6;
+	private final Frame frame;
+	private final double angle, shift;
+	/**
+	 * Computes the step upon initialization
+	 * @param A the source points, one per column
+	 * @param B the target points, one per column
+	 * @param N the unit normals at the targets, one per column
+	 * @throws IllegalArgumentException if there are fewer than six point pairs
+	 *         or they do not constrain all six degrees of freedom
+	 */
+	public PointToPlaneRegistration(Matrix A, Matrix B, Matrix N) {
+		int numpts = A.getColumnDimension();
+		if (numpts < DOF) {
+			throw new IllegalArgumentException("Need at least six point pairs.");
+		}
+		double[] centroid = new double[DIM];
+		for (int i = 0; i < numpts; i++) {
+			for (int k = 0; k < DIM; k++) {
+				centroid[k] += A.get(k, i)/numpts;
+			}
+		}
+		Matrix JTJ = new Matrix(DOF, DOF);
+		Matrix JTr = new Matrix(DOF, 1);
+		double[] J = new double[DOF];
+		for (int i = 0; i < numpts; i++) {
+			double ax = A.get(0, i) - centroid[0], ay = A.get(1, i) - centroid[1], az = A.get(2, i) - centroid[2];
+			double nx = N.get(0, i), ny = N.get(1, i), nz = N.get(2, i);
+			J[0] = ay*nz - az*ny;
+			J[1] = az*nx - ax*nz;
+			J[2] = ax*ny - ay*nx;
+			J[3] = nx;
+			J[4] = ny;
+			J[5] = nz;
+			double r = (B.get(0, i) - A.get(0, i))*nx + (B.get(1, i) - A.get(1, i))*ny + (B.get(2, i) - A.get(2, i))*nz;
+			for (int p = 0; p < DOF; p++) {
+				for (int q = 0; q < DOF; q++) {
+					JTJ.set(p, q, JTJ.get(p, q) + J[p]*J[q]);
+				}
+				JTr.set(p, 0, JTr.get(p, 0) + J[p]*r);
+			}
+		}
+		Matrix x;
+		try {
+			x = JTJ.solve(JTr);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Point pairs do not constrain the registration.");
+		}
+		ColumnVector w = new ColumnVector(new double[] {x.get(0, 0), x.get(1, 0), x.get(2, 0)});
+		ColumnVector t = new ColumnVector(new double[] {x.get(3, 0), x.get(4, 0), x.get(5, 0)});
+		this.angle = w.magnitude();
+		this.shift = t.magnitude();
+		Matrix R = Frame.rotationFromVector(w);
+		// x' = R(x - c) + c + t
+		ColumnVector c = new ColumnVector(centroid);
+		ColumnVector p = c.plus(t).minus(new ColumnVector(R.times(c.getMatrix())));
+		this.frame = new Frame(R, p);
+	}
+	/**
+	 * Returns the frame that moves the source points onto the target planes
+	 * @return the step as a frame
+	 */
+	public Frame getFrame() {
+		return this.frame;
+	}
+	/**
+	 * Returns the angle of the step's rotation about the centroid of the sources
+	 * @return the angle in radians
+	 */
+	public double getAngle() {
+		return this.angle;
+	}
+	/**
+	 * Returns the length of the step's translation of the centroid of the sources
+	 * @return the distance moved
+	 */
+	public double getShift() {
+		return this.shift;
+	}
+}
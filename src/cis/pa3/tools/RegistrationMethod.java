@@ -0,0 +1,11 @@
+package cis.pa3.tools;
+
+/**
+ * The ways an ICP iteration can update the registration from its point pairs
+ */
+public enum RegistrationMethod {
+	/** a full rigid registration of the pairs, with HornSolver */
+	POINT_TO_POINT,
+	/** one linearized step toward the planes of the matched triangles, with PointToPlaneRegistration */
+	POINT_TO_PLANE
+}